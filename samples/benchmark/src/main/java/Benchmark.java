@@ -0,0 +1,303 @@
+import static com.dashjoin.jsonata.Jsonata.jsonata;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import com.dashjoin.jsonata.Jsonata;
+import com.dashjoin.jsonata.Jsonata.Engine;
+import com.dashjoin.jsonata.Jsonata.Frame;
+import com.dashjoin.jsonata.PreparedExpression;
+
+/**
+ * Micro benchmarks of the engines, run with (after mvn install of the library):
+ *
+ * mvn compile exec:java [-Dexec.args=callbacks|tailcalls|prepared|typed|numeric|operators|invariants|lambdas|composition|objects|sequences|singletons]
+ */
+public class Benchmark {
+
+  static final String[] EXPRESSIONS = {
+      "$sum(items.(price * quantity))",
+      "items[price > 50].{'name': name, 'total': price * quantity}",
+      "($f := function($n) { $n <= 1 ? 1 : $n * $f($n - 1) }; $f(20))"
+  };
+
+  static final String[] TAIL_CALLS = {
+      "($loop := function($n, $acc) { $n = 0 ? $acc : $loop($n - 1, $acc + 1) }; $loop(100000, 0))",
+      "($even := function($n) { $n = 0 ? true : $odd($n - 1) }; $odd := function($n) { $n = 0 ? false : $even($n - 1) }; $even(100000))",
+      "($total := function($l, $i, $acc) { $i = $count($l) ? $acc : $total($l, $i + 1, $acc + $l[$i]) }; $total(items.price, 0, 0))"
+  };
+
+  public static void main(String[] args) {
+    String only = args.length > 0 ? args[0] : null;
+    if (only == null || only.equals("callbacks"))
+      callbacks();
+    if (only == null || only.equals("tailcalls"))
+      tailcalls();
+    if (only == null || only.equals("prepared"))
+      prepared();
+    if (only == null || only.equals("typed"))
+      typed();
+    if (only == null || only.equals("numeric"))
+      numeric();
+    if (only == null || only.equals("operators"))
+      operators();
+    if (only == null || only.equals("invariants"))
+      invariants();
+    if (only == null || only.equals("lambdas"))
+      lambdas();
+    if (only == null || only.equals("composition"))
+      composition();
+    if (only == null || only.equals("objects"))
+      objects();
+    if (only == null || only.equals("sequences"))
+      sequences();
+    if (only == null || only.equals("singletons"))
+      singletons();
+  }
+
+  /**
+   * Interpreter without hooks vs. no-op entry / exit callbacks vs. runtime bounds
+   */
+  static void callbacks() {
+    Object data = data(100);
+    for (String expr : EXPRESSIONS) {
+      Jsonata e = jsonata(expr);
+      e.setEngine(Engine.INTERPRETER);
+
+      Frame hooks = e.createFrame();
+      hooks.setEvaluateEntryCallback((exp, input, env) -> {});
+      hooks.setEvaluateExitCallback((exp, input, env, res) -> {});
+
+      measure(expr + " (no callbacks)", () -> e.evaluate(data));
+      measure(expr + " (callbacks)", () -> e.evaluate(data, hooks));
+      measure(expr + " (runtime bounds)", () -> {
+        Frame bounds = e.createFrame();
+        bounds.setRuntimeBounds(60000, 1000);
+        e.evaluate(data, bounds);
+      });
+    }
+  }
+
+  /**
+   * Deep tail recursion (self and mutual tail calls)
+   */
+  static void tailcalls() {
+    Object data = data(100);
+    for (String expr : TAIL_CALLS)
+      for (Engine engine : new Engine[] {Engine.INTERPRETER, Engine.COMPILED}) {
+        Jsonata e = jsonata(expr);
+        e.setEngine(engine);
+        measure(expr + " (" + engine + ")", () -> e.evaluate(data));
+      }
+  }
+
+  /**
+   * Per call variables: bindings frame vs. prepared expression
+   */
+  static void prepared() {
+    Object data = data(100);
+    String expr = "$sum(items[price > $min].(price * quantity)) * $factor";
+    for (Engine engine : new Engine[] {Engine.INTERPRETER, Engine.COMPILED}) {
+      Jsonata e = jsonata(expr);
+      e.setEngine(engine);
+      measure(expr + " (bindings, " + engine + ")", () -> {
+        Frame bindings = e.createFrame();
+        bindings.bind("min", 50);
+        bindings.bind("factor", 2);
+        e.evaluate(data, bindings);
+      });
+      PreparedExpression p = Jsonata.prepare(expr, "min", "factor");
+      p.getJsonata().setEngine(engine);
+      measure(expr + " (prepared, " + engine + ")", () -> p.evaluate(data, 50, 2));
+    }
+  }
+
+  /**
+   * Operators with operands of known type (built-in function results and literals)
+   */
+  static void typed() {
+    Object data = data(100);
+    String expr = "items.($count(%.items) * 2 + $count(%.items) % 3 > 10 and $count(%) != 0)";
+    for (Engine engine : new Engine[] {Engine.INTERPRETER, Engine.COMPILED, Engine.BYTECODE}) {
+      Jsonata e = jsonata(expr);
+      e.setEngine(engine);
+      measure(expr + " (" + engine + ")", () -> e.evaluate(data));
+    }
+  }
+
+  /**
+   * Numeric aggregation over a large array
+   */
+  static void numeric() {
+    Object data = data(10000);
+    for (String expr : new String[] {"$sum(items.(price * quantity))", "$sum([1..10000].($ * 2 + 1))"})
+      for (Engine engine : new Engine[] {Engine.INTERPRETER, Engine.COMPILED}) {
+        Jsonata e = jsonata(expr);
+        e.setEngine(engine);
+        measure(expr + " (" + engine + ")", () -> e.evaluate(data));
+      }
+  }
+
+  /**
+   * Operator heavy predicate: time and allocation per evaluation
+   */
+  static void operators() {
+    Object data = data(100);
+    String expr = "items[(price > 10 and price < 90 or quantity = 3) and name != 'x' and -price < 0].name";
+    for (Engine engine : new Engine[] {Engine.INTERPRETER, Engine.COMPILED}) {
+      Jsonata e = jsonata(expr);
+      e.setEngine(engine);
+      measure(expr + " (" + engine + ")", () -> e.evaluate(data));
+      allocation(expr + " (" + engine + ")", () -> e.evaluate(data));
+    }
+  }
+
+  /**
+   * Predicate and lambda reading the root: O(n * n) unless the invariant part is evaluated once
+   */
+  static void invariants() {
+    Object data = data(1000);
+    for (String expr : new String[] {"items[price > $max($$.items.price) / 2].name",
+        "$filter($$.items, function($v){ $v.price in $$.items[quantity = 3].price }).name"})
+      for (Engine engine : new Engine[] {Engine.INTERPRETER, Engine.COMPILED}) {
+        Jsonata e = jsonata(expr);
+        e.setEngine(engine);
+        measure(expr + " (" + engine + ")", () -> e.evaluate(data));
+      }
+  }
+
+  /**
+   * Literal lambdas passed to the built-in higher order functions
+   */
+  static void lambdas() {
+    Object data = data(1000);
+    for (String expr : new String[] {"$map(items, function($v){ $v.price * 2 })",
+        "$filter(items, function($v, $i){ $v.quantity = 3 or $i < 10 }).name",
+        "$reduce(items.price, function($a, $b){ $a + $b })",
+        "$sort(items, function($l, $r){ $l.price < $r.price }).name"})
+      for (Engine engine : new Engine[] {Engine.INTERPRETER, Engine.COMPILED}) {
+        Jsonata e = jsonata(expr);
+        e.setEngine(engine);
+        measure(expr + " (" + engine + ")", () -> e.evaluate(data));
+        allocation(expr + " (" + engine + ")", () -> e.evaluate(data));
+      }
+  }
+
+  /**
+   * Function pipelines built with ~> and applied per item
+   */
+  static void composition() {
+    Object data = data(100);
+    for (String expr : new String[] {"items.(name ~> $trim ~> $uppercase ~> $substring(?, 0, 3))",
+        "($f := $trim ~> $uppercase ~> $substring(?, 0, 3); items.$f(name))"})
+      for (Engine engine : new Engine[] {Engine.INTERPRETER, Engine.COMPILED}) {
+        Jsonata e = jsonata(expr);
+        e.setEngine(engine);
+        measure(expr + " (" + engine + ")", () -> e.evaluate(data));
+        allocation(expr + " (" + engine + ")", () -> e.evaluate(data));
+      }
+  }
+
+  /**
+   * Object constructors of an output template
+   */
+  static void objects() {
+    Object data = data(100);
+    String expr = "items.{'name': name, 'price': price, 'quantity': quantity, 'total': price * quantity}";
+    for (Engine engine : new Engine[] {Engine.COMPILED, Engine.BYTECODE}) {
+      Jsonata e = jsonata(expr);
+      e.setEngine(engine);
+      measure(expr + " (" + engine + ")", () -> e.evaluate(data));
+      allocation(expr + " (" + engine + ")", () -> e.evaluate(data));
+    }
+  }
+
+  /**
+   * Sequences built from many parts
+   */
+  static void sequences() {
+    Object data = data(1000);
+    for (String expr : new String[] {"$reduce(items, function($acc, $i){ $append($acc, $i) }, [])",
+        "($p := items.price; [$p, $p, $p, $p, $p, $p, $p, $p, $p, $p])",
+        "$spread(items)",
+        "$reverse(items.price)"})
+      for (Engine engine : new Engine[] {Engine.INTERPRETER, Engine.COMPILED}) {
+        Jsonata e = jsonata(expr);
+        e.setEngine(engine);
+        measure(expr + " (" + engine + ")", () -> e.evaluate(data));
+        allocation(expr + " (" + engine + ")", () -> e.evaluate(data));
+      }
+  }
+
+  /**
+   * Bytes per evaluation of paths that create many empty and singleton sequences
+   */
+  static void singletons() {
+    Object data = data(100);
+    for (String expr : new String[] {"items[price > 50].name", "items.{'name': name, 'total': price * quantity}",
+        "$sum(items.(price * quantity))", "items[quantity = 3][0].name"})
+      for (Engine engine : new Engine[] {Engine.INTERPRETER, Engine.COMPILED, Engine.BYTECODE}) {
+        Jsonata e = jsonata(expr);
+        e.setEngine(engine);
+        allocation(expr + " (" + engine + ")", () -> e.evaluate(data));
+        measure(expr + " (" + engine + ")", () -> e.evaluate(data));
+      }
+  }
+
+  static Object data(int n) {
+    List<Object> items = new ArrayList<>();
+    for (int i = 0; i < n; i++) {
+      Map<String, Object> item = new LinkedHashMap<>();
+      item.put("name", "item" + i);
+      item.put("price", i);
+      item.put("quantity", i % 7);
+      items.add(item);
+    }
+    return Map.of("items", items);
+  }
+
+  /**
+   * Runs the benchmark for two seconds after a warm up of two seconds and prints the time per operation
+   */
+  static void measure(String name, Runnable op) {
+    run(op, 2_000_000_000L);
+    long[] res = run(op, 2_000_000_000L);
+    System.out.println(String.format("%-90s %10d ns/op", name, res[1] / res[0]));
+  }
+
+  /**
+   * Prints the bytes allocated per operation
+   */
+  static void allocation(String name, Runnable op) {
+    try {
+      // com.sun.management.ThreadMXBean (not required by the module)
+      Method allocated = Class.forName("com.sun.management.ThreadMXBean").getMethod("getThreadAllocatedBytes", long.class);
+      Object threads = ManagementFactory.getThreadMXBean();
+      long id = Thread.currentThread().getId();
+      long start = (Long) allocated.invoke(threads, id);
+      for (int i = 0; i < 1000; i++)
+        op.run();
+      long bytes = (Long) allocated.invoke(threads, id) - start;
+      System.out.println(String.format("%-90s %10d bytes/op", name, bytes / 1000));
+    } catch (ReflectiveOperationException e) {
+      System.out.println(name + ": allocation not measured (" + e + ")");
+    }
+  }
+
+  /**
+   * @return number of operations and nanos
+   */
+  static long[] run(Runnable op, long nanos) {
+    long count = 0;
+    long start = System.nanoTime();
+    long time;
+    do {
+      for (int i = 0; i < 100; i++)
+        op.run();
+      count += 100;
+    } while ((time = System.nanoTime() - start) < nanos);
+    return new long[] {count, time};
+  }
+}
@@ -0,0 +1,750 @@
+/**
+ * jsonata-java is the JSONata Java reference port
+ *
+ * Copyright Dashjoin GmbH. https://dashjoin.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dashjoin.jsonata;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Array;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.dashjoin.jsonata.Compiler.NamePathNode;
+import com.dashjoin.jsonata.Compiler.Node;
+import com.dashjoin.jsonata.Compiler.PathNode;
+import com.dashjoin.jsonata.Compiler.TypedComparisonNode;
+import com.dashjoin.jsonata.Compiler.TypedEqualityNode;
+import com.dashjoin.jsonata.Compiler.TypedNumericNode;
+import com.dashjoin.jsonata.Parser.Symbol;
+
+/**
+ * Generates a JVM class per expression.
+ *
+ * Literals, names, variables, operators, conditions and paths are inlined
+ * into a single eval method, so HotSpot can optimize across node boundaries.
+ * All other sub expressions call their compiled node.
+ */
+class Bytecode {
+
+    static final String NODE = "com/dashjoin/jsonata/Compiler$Node";
+    static final String COMPILER = "com/dashjoin/jsonata/Compiler";
+    static final String JSONATA = "com/dashjoin/jsonata/Jsonata";
+    static final String FRAME = "com/dashjoin/jsonata/Jsonata$Frame";
+    static final String SYMBOL = "com/dashjoin/jsonata/Parser$Symbol";
+    static final String OBJECT = "java/lang/Object";
+    static final String LIST = "java/util/List";
+
+    static final String EVAL = "(L" + JSONATA + ";L" + OBJECT + ";L" + FRAME + ";)L" + OBJECT + ";";
+    static final String BINARY = "(L" + OBJECT + ";L" + OBJECT + ";)L" + OBJECT + ";";
+    static final String BINARY_OP = "(L" + OBJECT + ";L" + OBJECT + ";Ljava/lang/String;)L" + OBJECT + ";";
+    static final String TYPED_OP = "(L" + JSONATA + ";L" + OBJECT + ";L" + OBJECT + ";Ljava/lang/String;)L" + OBJECT + ";";
+
+    static final AtomicInteger counter = new AtomicInteger();
+
+    /**
+     * Generate the class for an expression
+     * @param expr - compiled AST
+     * @return the node of the generated class or null if the expression cannot be generated
+     */
+    static Node generate(Symbol expr) {
+        Node root = Compiler.compile(expr);
+        Bytecode gen = new Bytecode();
+        if (!gen.inline(expr))
+            return null;
+        try {
+            String name = "com/dashjoin/jsonata/Bytecode$Expression" + counter.incrementAndGet();
+            byte[] bytes = gen.generateClass(name, expr);
+            Class<?> c = define(bytes);
+            Node node = (Node) c.getDeclaredConstructor(Symbol.class, Object[].class, Node[].class)
+                .newInstance(expr, gen.constants.toArray(), gen.nodes.toArray(new Node[0]));
+            node.predicates = root.predicates;
+            node.group = root.group;
+            return node;
+        } catch (ReflectiveOperationException | IOException | IllegalStateException | LinkageError e) {
+            // method too large etc.: stay with the compiled nodes
+            return null;
+        }
+    }
+
+    /**
+     * Lookup.defineHiddenClass (Java 15 and later, null on older runtimes)
+     */
+    static final Method defineHiddenClass;
+    static final Object noOptions;
+    static {
+        Method method = null;
+        Object options = null;
+        try {
+            Class<?> option = Class.forName("java.lang.invoke.MethodHandles$Lookup$ClassOption");
+            options = Array.newInstance(option, 0);
+            method = MethodHandles.Lookup.class.getMethod("defineHiddenClass", byte[].class, boolean.class, options.getClass());
+        } catch (ReflectiveOperationException e) {
+            // Java 11 - 14
+        }
+        defineHiddenClass = method;
+        noOptions = options;
+    }
+
+    /**
+     * Flag: generated classes are hidden classes, which are unloaded once their expression
+     * is no longer referenced. Otherwise they are defined in the class loader of the library
+     * and stay loaded for the life of the JVM (see Jsonata.count)
+     */
+    static final boolean unloadable = defineHiddenClass != null;
+
+    /**
+     * Define the generated class in this package
+     */
+    static Class<?> define(byte[] bytes) throws ReflectiveOperationException {
+        MethodHandles.Lookup lookup = MethodHandles.lookup();
+        if (!unloadable)
+            return lookup.defineClass(bytes);
+        return ((MethodHandles.Lookup) defineHiddenClass.invoke(lookup, bytes, true, noOptions)).lookupClass();
+    }
+
+    /**
+     * constants referenced by the generated code
+     */
+    final List<Object> constants = new ArrayList<>();
+
+    /**
+     * compiled nodes called by the generated code
+     */
+    final List<Node> nodes = new ArrayList<>();
+
+    /**
+     * Whether the expression can be inlined (predicates and grouping aside)
+     */
+    boolean inline(Symbol expr) {
+        switch (expr.type) {
+            case "string":
+            case "number":
+            case "value":
+            case "name":
+            case "variable":
+            case "parent":
+            case "condition":
+                return true;
+            case "binary":
+                switch ("" + expr.value) {
+                    case "+": case "-": case "*": case "/": case "%":
+                    case "=": case "!=": case "<": case "<=": case ">": case ">=":
+                    case "&": case "..": case "in": case "and": case "or":
+                        return true;
+                    default:
+                        return false;
+                }
+            case "unary":
+                return "-".equals(expr.value);
+            case "path":
+                if (expr.compiled instanceof NamePathNode)
+                    return expr.group == null;
+                if (!(expr.compiled instanceof PathNode) || ((PathNode) expr.compiled).interpreted || expr.group != null || expr.cse != null)
+                    return false;
+                for (Symbol step : expr.steps)
+                    if (step.consarray || step.type.equals("sort"))
+                        return false;
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Whether the value of an inlined expression never is a sequence
+     */
+    static boolean scalar(Symbol expr) {
+        switch (expr.type) {
+            case "string":
+            case "number":
+            case "value":
+                return true;
+            case "binary":
+                return !"..".equals(expr.value);
+            case "unary":
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    // class file
+
+    final Map<String, Integer> entries = new HashMap<>();
+    final ByteArrayOutputStream poolBytes = new ByteArrayOutputStream();
+    final DataOutputStream pool = new DataOutputStream(poolBytes);
+    int poolSize = 1;
+
+    int entry(String key, int tag, int a, int b, boolean twoRefs) throws IOException {
+        Integer idx = entries.get(key);
+        if (idx != null)
+            return idx;
+        pool.writeByte(tag);
+        pool.writeShort(a);
+        if (twoRefs)
+            pool.writeShort(b);
+        entries.put(key, poolSize);
+        return poolSize++;
+    }
+
+    int utf8(String s) throws IOException {
+        Integer idx = entries.get("U" + s);
+        if (idx != null)
+            return idx;
+        pool.writeByte(1);
+        pool.writeUTF(s);
+        entries.put("U" + s, poolSize);
+        return poolSize++;
+    }
+
+    int cls(String name) throws IOException {
+        return entry("C" + name, 7, utf8(name), 0, false);
+    }
+
+    int string(String s) throws IOException {
+        return entry("S" + s, 8, utf8(s), 0, false);
+    }
+
+    int ref(int tag, String owner, String name, String desc) throws IOException {
+        int c = cls(owner);
+        int nt = entry("N" + name + ":" + desc, 12, utf8(name), utf8(desc), true);
+        return entry(tag + owner + "." + name + ":" + desc, tag, c, nt, true);
+    }
+
+    byte[] generateClass(String name, Symbol expr) throws IOException {
+        int thisClass = cls(name);
+        int superClass = cls(NODE);
+
+        // constructor
+        Code init = new Code(4);
+        init.op(ALOAD_0);
+        init.op(ALOAD_0 + 1);
+        init.invoke(INVOKESPECIAL, NODE, "<init>", "(L" + SYMBOL + ";)V");
+        init.op(ALOAD_0);
+        init.op(ALOAD_0 + 2);
+        init.field(PUTFIELD, name, "constants", "[L" + OBJECT + ";");
+        init.op(ALOAD_0);
+        init.op(ALOAD_0 + 3);
+        init.field(PUTFIELD, name, "nodes", "[L" + NODE + ";");
+        init.op(RETURN);
+
+        // eval(jsonata, input, environment)
+        Code eval = new Code(4);
+        eval.self = name;
+        eval.core(expr, 2);
+        eval.op(ARETURN);
+        eval.handlers();
+
+        int code = utf8("Code");
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+
+        ByteArrayOutputStream methods = new ByteArrayOutputStream();
+        DataOutputStream m = new DataOutputStream(methods);
+        method(m, 0, utf8("<init>"), utf8("(L" + SYMBOL + ";[L" + OBJECT + ";[L" + NODE + ";)V"), code, init);
+        method(m, 0, utf8("eval"), utf8(EVAL), code, eval);
+
+        int constantsName = utf8("constants");
+        int constantsType = utf8("[L" + OBJECT + ";");
+        int nodesName = utf8("nodes");
+        int nodesType = utf8("[L" + NODE + ";");
+
+        out.writeInt(0xCAFEBABE);
+        out.writeShort(0);
+        out.writeShort(49);
+        out.writeShort(poolSize);
+        poolBytes.writeTo(out);
+        out.writeShort(0x0010 | 0x0020); // final, super
+        out.writeShort(thisClass);
+        out.writeShort(superClass);
+        out.writeShort(0);
+        out.writeShort(2);
+        for (int[] f : new int[][] {{constantsName, constantsType}, {nodesName, nodesType}}) {
+            out.writeShort(0x0010);
+            out.writeShort(f[0]);
+            out.writeShort(f[1]);
+            out.writeShort(0);
+        }
+        out.writeShort(2);
+        methods.writeTo(out);
+        out.writeShort(0);
+        return bytes.toByteArray();
+    }
+
+    void method(DataOutputStream m, int access, int name, int desc, int codeAttribute, Code c) throws IOException {
+        c.resolve();
+        if (c.length > 65535)
+            throw new IllegalStateException("method too large");
+        m.writeShort(access);
+        m.writeShort(name);
+        m.writeShort(desc);
+        m.writeShort(1);
+        m.writeShort(codeAttribute);
+        m.writeInt(12 + c.length + 8 * c.exceptions.size());
+        m.writeShort(c.maxStack);
+        m.writeShort(c.maxLocals);
+        m.writeInt(c.length);
+        m.write(c.code, 0, c.length);
+        m.writeShort(c.exceptions.size());
+        for (int[] e : c.exceptions)
+            for (int v : e)
+                m.writeShort(v);
+        m.writeShort(0);
+    }
+
+    static final int ACONST_NULL = 1, ICONST_0 = 3, BIPUSH = 16, SIPUSH = 17, LDC_W = 19, ILOAD = 21, ALOAD = 25,
+        ALOAD_0 = 42, AALOAD = 50, ISTORE = 54, ASTORE = 58, POP = 87, IINC = 132, IFEQ = 153, IFNE = 154,
+        IF_ICMPGE = 162, GOTO = 167, ARETURN = 176, RETURN = 177, GETSTATIC = 178, GETFIELD = 180, PUTFIELD = 181,
+        INVOKEVIRTUAL = 182, INVOKESPECIAL = 183, INVOKESTATIC = 184, INVOKEINTERFACE = 185, ATHROW = 191,
+        CHECKCAST = 192, INSTANCEOF = 193, IFNULL = 198;
+
+    static class Label {
+        int pos = -1;
+        final List<int[]> refs = new ArrayList<>();
+    }
+
+    /**
+     * Code of a method
+     */
+    class Code {
+        byte[] code = new byte[256];
+        int length, stack, maxStack, maxLocals;
+        String self;
+        final List<int[]> exceptions = new ArrayList<>();
+        final List<Object[]> pendingHandlers = new ArrayList<>();
+        final List<Label> labels = new ArrayList<>();
+
+        Code(int locals) {
+            maxLocals = locals;
+        }
+
+        void u1(int b) {
+            if (length == code.length)
+                code = Arrays.copyOf(code, length * 2);
+            code[length++] = (byte) b;
+        }
+
+        void u2(int s) {
+            u1(s >> 8);
+            u1(s);
+        }
+
+        void push(int n) {
+            stack += n;
+            if (stack > maxStack)
+                maxStack = stack;
+        }
+
+        int local() {
+            if (maxLocals >= 255)
+                throw new IllegalStateException("too many locals");
+            return maxLocals++;
+        }
+
+        void op(int op) {
+            u1(op);
+            switch (op) {
+                case ACONST_NULL: push(1); break;
+                case AALOAD: push(-1); break;
+                case POP: case ARETURN: case ATHROW: push(-1); break;
+                case RETURN: break;
+                default:
+                    if (op >= ALOAD_0 && op <= ALOAD_0 + 3) push(1);
+                    else if (op >= ICONST_0 - 1 && op <= ICONST_0 + 5) push(1);
+                    else throw new IllegalArgumentException("" + op);
+            }
+        }
+
+        void iconst(int v) {
+            if (v >= -1 && v <= 5) {
+                op(ICONST_0 + v);
+            } else if (v >= Byte.MIN_VALUE && v <= Byte.MAX_VALUE) {
+                u1(BIPUSH); u1(v); push(1);
+            } else {
+                u1(SIPUSH); u2(v); push(1);
+            }
+        }
+
+        void var(int op, int index) {
+            u1(op);
+            u1(index);
+            push(op == ALOAD || op == ILOAD ? 1 : -1);
+        }
+
+        void ldc(String s) throws IOException {
+            u1(LDC_W);
+            u2(string(s));
+            push(1);
+        }
+
+        void type(int op, String cls) throws IOException {
+            u1(op);
+            u2(cls(cls));
+        }
+
+        void field(int op, String owner, String name, String desc) throws IOException {
+            u1(op);
+            u2(ref(9, owner, name, desc));
+            push(op == GETSTATIC ? 1 : op == GETFIELD ? 0 : -2);
+        }
+
+        void invoke(int op, String owner, String name, String desc) throws IOException {
+            int args = 0;
+            for (int i = 1; desc.charAt(i) != ')'; i++) {
+                char c = desc.charAt(i);
+                while (c == '[')
+                    c = desc.charAt(++i);
+                if (c == 'L')
+                    i = desc.indexOf(';', i);
+                args++;
+            }
+            u1(op);
+            u2(ref(op == INVOKEINTERFACE ? 11 : 10, owner, name, desc));
+            if (op == INVOKEINTERFACE) {
+                u1(args + 1);
+                u1(0);
+            }
+            push((op == INVOKESTATIC ? 0 : -1) - args + (desc.endsWith(")V") ? 0 : 1));
+        }
+
+        void jump(int op, Label label) {
+            int pos = length;
+            u1(op);
+            label.refs.add(new int[] {pos, length});
+            u2(0);
+            if (op != GOTO)
+                push(op == IF_ICMPGE ? -2 : -1);
+            labels.add(label);
+        }
+
+        void mark(Label label, int stack) {
+            label.pos = length;
+            this.stack = stack;
+        }
+
+        void resolve() {
+            for (Label label : labels)
+                for (int[] ref : label.refs) {
+                    int offset = label.pos - ref[0];
+                    if (offset < Short.MIN_VALUE || offset > Short.MAX_VALUE)
+                        throw new IllegalStateException("branch too far");
+                    code[ref[1]] = (byte) (offset >> 8);
+                    code[ref[1] + 1] = (byte) offset;
+                }
+            labels.clear();
+        }
+
+        /**
+         * push constants[idx]
+         */
+        void constant(Object value) throws IOException {
+            int idx = constants.indexOf(value);
+            if (idx < 0 || constants.get(idx) != value) {
+                idx = constants.size();
+                constants.add(value);
+            }
+            op(ALOAD_0);
+            field(GETFIELD, self, "constants", "[L" + OBJECT + ";");
+            iconst(idx);
+            op(AALOAD);
+        }
+
+        /**
+         * push (Symbol) constants[idx]
+         */
+        void symbol(Symbol expr) throws IOException {
+            constant(expr);
+            type(CHECKCAST, SYMBOL);
+        }
+
+        /**
+         * push nodes[idx]
+         */
+        void node(Node node) throws IOException {
+            int idx = nodes.size();
+            nodes.add(node);
+            op(ALOAD_0);
+            field(GETFIELD, self, "nodes", "[L" + NODE + ";");
+            iconst(idx);
+            op(AALOAD);
+        }
+
+        /**
+         * Evaluate expr including predicates, grouping and sequence mangling
+         */
+        void value(Symbol expr, int in) throws IOException {
+            if (expr.predicate != null || (expr.group != null && !"path".equals(expr.type)) || expr.hoist >= 0 || !inline(expr)) {
+                // call the compiled node
+                node(expr.compiled);
+                op(ALOAD_0 + 1);
+                var(ALOAD, in);
+                op(ALOAD_0 + 3);
+                invoke(INVOKEVIRTUAL, NODE, "evaluate", EVAL);
+                return;
+            }
+            core(expr, in);
+            if (!scalar(expr)) {
+                iconst(expr.keepArray ? 1 : 0);
+                invoke(INVOKESTATIC, JSONATA, "mangle", "(L" + OBJECT + ";Z)L" + OBJECT + ";");
+            }
+        }
+
+        /**
+         * Evaluate expr according to its type
+         */
+        void core(Symbol expr, int in) throws IOException {
+            switch (expr.type) {
+                case "string":
+                    ldc((String) expr.value);
+                    break;
+                case "number":
+                case "value":
+                    constant(expr.value != null ? expr.value : Jsonata.NULL_VALUE);
+                    break;
+                case "name":
+                    var(ALOAD, in);
+                    ldc((String) expr.value);
+                    invoke(INVOKESTATIC, "com/dashjoin/jsonata/Functions", "lookup", "(L" + OBJECT + ";Ljava/lang/String;)L" + OBJECT + ";");
+                    break;
+                case "variable":
+                    if (((String) expr.value).isEmpty()) {
+                        var(ALOAD, in);
+                        invoke(INVOKESTATIC, COMPILER, "context", "(L" + OBJECT + ";)L" + OBJECT + ";");
+                    } else if (expr.frameDepth >= 0) {
+                        op(ALOAD_0 + 3);
+                        iconst(expr.frameDepth);
+                        iconst(expr.frameSlot);
+                        ldc((String) expr.value);
+                        invoke(INVOKEVIRTUAL, FRAME, "lookup", "(IILjava/lang/String;)L" + OBJECT + ";");
+                    } else if (expr.global) {
+                        op(ALOAD_0 + 3);
+                        ldc((String) expr.value);
+                        invoke(INVOKEVIRTUAL, FRAME, "lookupGlobal", "(Ljava/lang/String;)L" + OBJECT + ";");
+                    } else {
+                        op(ALOAD_0 + 3);
+                        ldc((String) expr.value);
+                        invoke(INVOKEVIRTUAL, FRAME, "lookup", "(Ljava/lang/String;)L" + OBJECT + ";");
+                    }
+                    break;
+                case "parent":
+                    op(ALOAD_0 + 3);
+                    ldc(expr.slot.label);
+                    invoke(INVOKEVIRTUAL, FRAME, "lookup", "(Ljava/lang/String;)L" + OBJECT + ";");
+                    break;
+                case "condition": {
+                    Label _else = new Label(), end = new Label();
+                    value(expr.condition, in);
+                    invoke(INVOKESTATIC, JSONATA, "boolize", "(L" + OBJECT + ";)Z");
+                    jump(IFEQ, _else);
+                    int base = stack;
+                    value(expr.then, in);
+                    jump(GOTO, end);
+                    mark(_else, base);
+                    if (expr._else != null)
+                        value(expr._else, in);
+                    else
+                        op(ACONST_NULL);
+                    mark(end, base + 1);
+                    break;
+                }
+                case "unary":
+                    value(expr.expression, in);
+                    symbol(expr);
+                    invoke(INVOKESTATIC, COMPILER, "negate", "(L" + OBJECT + ";L" + SYMBOL + ";)L" + OBJECT + ";");
+                    break;
+                case "binary":
+                    binary(expr, in);
+                    break;
+                case "path":
+                    path(expr, in);
+                    break;
+                default:
+                    throw new IllegalArgumentException(expr.type);
+            }
+        }
+
+        void binary(Symbol expr, int in) throws IOException {
+            String op = "" + expr.value;
+            switch (op) {
+                case "and":
+                case "or": {
+                    // the rhs is only evaluated if required
+                    Label done = new Label(), end = new Label();
+                    int base = stack;
+                    int test = op.equals("and") ? IFEQ : IFNE;
+                    value(expr.lhs, in);
+                    invoke(INVOKESTATIC, JSONATA, "boolize", "(L" + OBJECT + ";)Z");
+                    jump(test, done);
+                    int start = length;
+                    value(expr.rhs, in);
+                    int stop = length;
+                    pendingHandlers.add(new Object[] {start, stop, expr});
+                    invoke(INVOKESTATIC, JSONATA, "boolize", "(L" + OBJECT + ";)Z");
+                    jump(test, done);
+                    field(GETSTATIC, "java/lang/Boolean", op.equals("and") ? "TRUE" : "FALSE", "Ljava/lang/Boolean;");
+                    jump(GOTO, end);
+                    mark(done, base);
+                    field(GETSTATIC, "java/lang/Boolean", op.equals("and") ? "FALSE" : "TRUE", "Ljava/lang/Boolean;");
+                    mark(end, base + 1);
+                    return;
+                }
+                case "&":
+                case "..":
+                case "in":
+                    op(ALOAD_0 + 1);
+                    value(expr.lhs, in);
+                    value(expr.rhs, in);
+                    invoke(INVOKEVIRTUAL, JSONATA, op.equals("&") ? "evaluateStringConcat" : op.equals("..") ?
+                        "evaluateRangeExpression" : "evaluateIncludesExpression", BINARY);
+                    return;
+                default:
+                    op(ALOAD_0 + 1);
+                    value(expr.lhs, in);
+                    value(expr.rhs, in);
+                    ldc(op);
+                    if (expr.compiled instanceof TypedNumericNode || expr.compiled instanceof TypedEqualityNode || expr.compiled instanceof TypedComparisonNode) {
+                        // operands of known type (see Parser.infer)
+                        invoke(INVOKESTATIC, COMPILER, expr.compiled instanceof TypedNumericNode ? "numeric" :
+                            expr.compiled instanceof TypedEqualityNode ? "equality" : "comparison", TYPED_OP);
+                        return;
+                    }
+                    switch (op) {
+                        case "=": case "!=":
+                            invoke(INVOKEVIRTUAL, JSONATA, "evaluateEqualityExpression", BINARY_OP);
+                            break;
+                        case "<": case "<=": case ">": case ">=":
+                            invoke(INVOKEVIRTUAL, JSONATA, "evaluateComparisonExpression", BINARY_OP);
+                            break;
+                        default:
+                            invoke(INVOKEVIRTUAL, JSONATA, "evaluateNumericExpression", BINARY_OP);
+                    }
+            }
+        }
+
+        void path(Symbol expr, int in) throws IOException {
+            if (expr.compiled instanceof NamePathNode) {
+                // fused path
+                node(expr.compiled);
+                op(ALOAD_0 + 1);
+                var(ALOAD, in);
+                op(ALOAD_0 + 3);
+                invoke(INVOKEVIRTUAL, NODE, "eval", EVAL);
+                return;
+            }
+            int input = local(), result = local(), results = local(), index = local(), item = local(), res = local();
+
+            // if the first step is a variable reference ($...), including root reference ($$),
+            //   then the path is absolute rather than relative
+            Label wrap = new Label(), start = new Label(), end = new Label();
+            int base = stack;
+            if (!expr.steps.get(0).type.equals("variable")) {
+                var(ALOAD, in);
+                type(INSTANCEOF, LIST);
+                jump(IFEQ, wrap);
+                var(ALOAD, in);
+                type(CHECKCAST, LIST);
+                var(ASTORE, input);
+                jump(GOTO, start);
+            }
+            mark(wrap, base);
+            var(ALOAD, in);
+            invoke(INVOKESTATIC, "com/dashjoin/jsonata/Utils", "createSequence", "(L" + OBJECT + ";)L" + LIST + ";");
+            var(ASTORE, input);
+            mark(start, base);
+            op(ACONST_NULL);
+            var(ASTORE, result);
+
+            for (int ii = 0; ii < expr.steps.size(); ii++) {
+                Symbol step = expr.steps.get(ii);
+                Label loop = new Label(), skip = new Label(), done = new Label();
+
+                invoke(INVOKESTATIC, "com/dashjoin/jsonata/Utils", "createSequence", "()L" + LIST + ";");
+                var(ASTORE, results);
+                iconst(0);
+                var(ISTORE, index);
+
+                mark(loop, base);
+                var(ILOAD, index);
+                var(ALOAD, input);
+                invoke(INVOKEINTERFACE, LIST, "size", "()I");
+                jump(IF_ICMPGE, done);
+                var(ALOAD, input);
+                var(ILOAD, index);
+                invoke(INVOKEINTERFACE, LIST, "get", "(I)L" + OBJECT + ";");
+                var(ASTORE, item);
+                op(ALOAD_0 + 3);
+                invoke(INVOKESTATIC, COMPILER, "tick", "(L" + FRAME + ";)V");
+
+                value(step, item);
+                var(ASTORE, res);
+                if (step.stages != null)
+                    for (Symbol stage : step.stages) {
+                        op(ALOAD_0 + 1);
+                        node(((Symbol) stage.expr).compiled);
+                        var(ALOAD, res);
+                        op(ALOAD_0 + 3);
+                        invoke(INVOKESTATIC, COMPILER, "filter", "(L" + JSONATA + ";L" + NODE + ";L" + OBJECT + ";L" + FRAME + ";)L" + OBJECT + ";");
+                        var(ASTORE, res);
+                    }
+                var(ALOAD, res);
+                jump(IFNULL, skip);
+                var(ALOAD, results);
+                var(ALOAD, res);
+                invoke(INVOKEINTERFACE, LIST, "add", "(L" + OBJECT + ";)Z");
+                op(POP);
+                mark(skip, base);
+                u1(IINC); u1(index); u1(1);
+                jump(GOTO, loop);
+
+                mark(done, base);
+                var(ALOAD, results);
+                iconst(ii == expr.steps.size() - 1 ? 1 : 0);
+                invoke(INVOKESTATIC, COMPILER, "flatten", "(L" + LIST + ";Z)L" + LIST + ";");
+                var(ASTORE, result);
+                var(ALOAD, result);
+                invoke(INVOKEINTERFACE, LIST, "size", "()I");
+                jump(IFEQ, end);
+                var(ALOAD, result);
+                var(ASTORE, input);
+            }
+            mark(end, base);
+            var(ALOAD, result);
+            if (expr.keepSingletonArray)
+                invoke(INVOKESTATIC, COMPILER, "keepSingleton", "(L" + OBJECT + ";)L" + OBJECT + ";");
+        }
+
+        /**
+         * errors other than JException in the rhs of and / or are reported as unexpected
+         */
+        void handlers() throws IOException {
+            for (Object[] h : pendingHandlers) {
+                stack = 1;
+                exceptions.add(new int[] {(Integer) h[0], (Integer) h[1], length, cls("java/lang/RuntimeException")});
+                symbol((Symbol) h[2]);
+                invoke(INVOKESTATIC, COMPILER, "unexpected", "(Ljava/lang/RuntimeException;L" + SYMBOL + ";)Ljava/lang/RuntimeException;");
+                op(ATHROW);
+            }
+        }
+    }
+}
@@ -0,0 +1,1314 @@
+/**
+ * jsonata-java is the JSONata Java reference port
+ *
+ * Copyright Dashjoin GmbH. https://dashjoin.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dashjoin.jsonata;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.dashjoin.jsonata.Jsonata.Frame;
+import com.dashjoin.jsonata.Parser.Symbol;
+import com.dashjoin.jsonata.Utils.JList;
+
+/**
+ * Compiles the post-processed AST into a tree of executable nodes.
+ *
+ * Each symbol is linked to its node, so the evaluation helpers shared with the
+ * interpreter (grouping, sorting, transforms, ...) dispatch back into the
+ * compiled tree. Nodes call their children directly: there is no type switch
+ * and no callback lookup per node. The state of the evaluation is kept in the
+ * context of the frames (see EvaluationContext).
+ * Entry / exit callbacks are only supported by the interpreter.
+ */
+@SuppressWarnings({"rawtypes", "unchecked"})
+class Compiler {
+
+    /**
+     * Executable node
+     */
+    static abstract class Node {
+
+        /**
+         * The symbol this node has been compiled from
+         */
+        final Symbol expr;
+
+        /**
+         * Predicates applied to the result
+         */
+        Node[] predicates;
+
+        /**
+         * Group expression applied to the result (not for paths)
+         */
+        Symbol group;
+
+        Node(Symbol expr) {
+            this.expr = expr;
+        }
+
+        /**
+         * Evaluate the node and apply predicates, grouping and sequence mangling
+         * @param jsonata - per thread instance
+         * @param input - Input data to evaluate against
+         * @param environment - Environment
+         * @return Evaluated input data
+         */
+        final Object evaluate(Jsonata jsonata, Object input, Frame environment) {
+            tick(environment);
+            Object result = eval(jsonata, input, environment);
+            if (predicates != null)
+                for (Node predicate : predicates)
+                    result = filter(jsonata, predicate, result, environment);
+            if (group != null)
+                result = jsonata.evaluateGroupExpression(group, result, environment);
+            return Jsonata.mangle(result, expr.keepArray);
+        }
+
+        /**
+         * Evaluate the node according to its type
+         */
+        abstract Object eval(Jsonata jsonata, Object input, Frame environment);
+    }
+
+    /**
+     * Check the runtime bounds like Jsonata._evaluate does for every evaluated node
+     * @param environment - Environment
+     */
+    static void tick(Frame environment) {
+        Timebox timebox = environment.context.timebox;
+        if (timebox != null)
+            timebox.tick();
+    }
+
+    /**
+     * Compile the expression and all of its sub expressions
+     * @param expr - post-processed AST
+     * @return The node linked to expr
+     */
+    static Node compile(Symbol expr) {
+        if (expr == null)
+            return null;
+        if (expr.compiled != null)
+            return expr.compiled;
+
+        compileChildren(expr);
+
+        Node node = create(expr);
+        if (expr.predicate != null) {
+            node.predicates = new Node[expr.predicate.size()];
+            for (int i = 0; i < node.predicates.length; i++)
+                node.predicates[i] = compile((Symbol) expr.predicate.get(i).expr);
+        }
+        if (!"path".equals(expr.type))
+            node.group = expr.group;
+        if (expr.hoist >= 0)
+            node = new InvariantNode(node);
+        expr.compiled = node;
+        return node;
+    }
+
+    static void compileChildren(Symbol expr) {
+        compile(expr.lhs);
+        compile(expr.rhs);
+        compile(expr.condition);
+        compile(expr.then);
+        compile(expr._else);
+        compile(expr.procedure);
+        compile(expr.body);
+        compile(expr.expression);
+        compile(expr.pattern);
+        compile(expr.update);
+        compile(expr.delete);
+        compileAll(expr.steps);
+        compileAll(expr.arguments);
+        compileAll(expr.expressions);
+        compileAll(expr.terms);
+        compileStages(expr.stages);
+        compileStages(expr.predicate);
+        compilePairs(expr.lhsObject);
+        if (expr.group != null)
+            compilePairs(expr.group.lhsObject);
+    }
+
+    static void compileAll(List<Symbol> list) {
+        if (list != null)
+            for (Symbol s : list)
+                compile(s);
+    }
+
+    static void compileStages(List<Symbol> stages) {
+        if (stages != null)
+            for (Symbol stage : stages)
+                if (stage.expr instanceof Symbol)
+                    compile((Symbol) stage.expr);
+    }
+
+    static void compilePairs(List<Symbol[]> pairs) {
+        if (pairs != null)
+            for (Symbol[] pair : pairs) {
+                compile(pair[0]);
+                compile(pair[1]);
+            }
+    }
+
+    /**
+     * Loop invariant sub expression, evaluated once per environment (see Jsonata.evaluateInvariant)
+     */
+    static final class InvariantNode extends Node {
+        final Node node;
+
+        InvariantNode(Node node) {
+            super(node.expr);
+            this.node = node;
+        }
+
+        @Override
+        Object eval(Jsonata jsonata, Object input, Frame environment) {
+            return jsonata.evaluateInvariant(expr, node, input, environment);
+        }
+    }
+
+    static Node create(Symbol expr) {
+        switch (expr.type != null ? expr.type : "(null)") {
+            case "path":
+                if (names(expr))
+                    return new NamePathNode(expr);
+                return new PathNode(expr);
+            case "binary":
+                switch (expr.operator) {
+                    case ADD:
+                    case SUBTRACT:
+                    case MULTIPLY:
+                    case DIVIDE:
+                    case MODULO:
+                        if (expr.lhs.valueType == 'n' && expr.rhs.valueType == 'n')
+                            return new TypedNumericNode(expr);
+                        return new NumericNode(expr);
+                    case EQUAL:
+                    case NOT_EQUAL:
+                        if (typed(expr))
+                            return new TypedEqualityNode(expr);
+                        return new EqualityNode(expr);
+                    case LESS:
+                    case LESS_EQUAL:
+                    case GREATER:
+                    case GREATER_EQUAL:
+                        if (typed(expr))
+                            return new TypedComparisonNode(expr);
+                        return new ComparisonNode(expr);
+                    case CONCAT:
+                        return new ConcatNode(expr);
+                    case RANGE:
+                        return new RangeNode(expr);
+                    case IN:
+                        return new IncludesNode(expr);
+                    case AND:
+                        return new AndNode(expr);
+                    case OR:
+                        return new OrNode(expr);
+                    default:
+                        return new InterpretedNode(expr);
+                }
+            case "unary":
+                if (expr.literal != null)
+                    return new ConstantNode(expr);
+                switch (expr.operator) {
+                    case NEGATE:
+                        return new NegationNode(expr);
+                    case ARRAY:
+                        return new ArrayConstructorNode(expr);
+                    case OBJECT:
+                        if (FixedKeysObjectNode.applies(expr))
+                            return new FixedKeysObjectNode(expr);
+                        return new ObjectConstructorNode(expr);
+                    default:
+                        return new InterpretedNode(expr);
+                }
+            case "name":
+                return new NameNode(expr);
+            case "string":
+            case "number":
+            case "value":
+                return new LiteralNode(expr);
+            case "parent":
+                return new ParentNode(expr);
+            case "condition":
+                return new ConditionNode(expr);
+            case "block":
+                return new BlockNode(expr);
+            case "bind":
+                return new BindNode(expr);
+            case "function":
+                return new FunctionNode(expr);
+            case "variable":
+                return new VariableNode(expr);
+            case "lambda":
+                return new LambdaNode(expr);
+            case "apply":
+                return new ApplyNode(expr);
+            default:
+                return new InterpretedNode(expr);
+        }
+    }
+
+    /**
+     * Apply filter predicate to input data
+     * @param jsonata - per thread instance
+     * @param predicate - filter expression
+     * @param input - Input data to apply predicates against
+     * @param environment - Environment
+     * @return Result after applying predicates
+     */
+    static Object filter(Jsonata jsonata, Node predicate, Object input, Frame environment) {
+        var results = Utils.createSequence();
+        boolean tupleStream = input instanceof JList && ((JList)input).tupleStream;
+        if (tupleStream) {
+            ((JList)results).tupleStream = true;
+        }
+        if (!(input instanceof List)) { // isArray
+            input = Utils.createSequence(input);
+        }
+        List _input = (List)input;
+        if (predicate.expr.type.equals("number")) {
+            var index = ((Number)predicate.expr.value).intValue();  // round it down - was Math.floor
+            if (index < 0) {
+                // count in from end of array
+                index = _input.size() + index;
+            }
+            var item = 0<=index && index<_input.size() ? _input.get(index) : null;
+            if(item != null) {
+                if(item instanceof List) {
+                    results = (List)item;
+                } else {
+                    results.add(item);
+                }
+            }
+        } else if (predicate.expr.literal instanceof List && Utils.isArrayOfNumbers(predicate.expr.literal)) {
+            Jsonata.selectIndexes((List)predicate.expr.literal, _input, results);
+        } else {
+            environment.context.loops += _input.size();
+            // stop once a following positional predicate has all the matches it can select
+            int limit = predicate.expr.limit > 0 ? predicate.expr.limit : Integer.MAX_VALUE;
+            for (int index = 0; index < _input.size() && results.size() < limit; index++) {
+                var item = _input.get(index);
+                var context = item;
+                var env = environment;
+                if(tupleStream) {
+                    context = ((Map)item).get("@");
+                    env = jsonata.createFrameFromTuple(environment, (Map)item);
+                }
+                var res = predicate.evaluate(jsonata, context, env);
+                if (Utils.isNumeric(res)) {
+                    res = Utils.createSequence(res);
+                }
+                if (Utils.isArrayOfNumbers(res)) {
+                    for (Object ires : ((List)res)) {
+                        // round it down
+                        var ii = ((Number)ires).intValue(); // Math.floor(ires);
+                        if (ii < 0) {
+                            // count in from end of array
+                            ii = _input.size() + ii;
+                        }
+                        if (ii == index) {
+                            results.add(item);
+                        }
+                    }
+                } else if (Jsonata.boolize(res)) { // truthy
+                    results.add(item);
+                }
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Location path
+     */
+    static final class PathNode extends Node {
+
+        final Node[] steps;
+        final Node[][] stages;
+        final boolean[] sort;
+        final boolean absolute;
+
+        /**
+         * tuple streams, index stages and path groups are left to the interpreter helpers
+         */
+        final boolean interpreted;
+
+        PathNode(Symbol expr) {
+            super(expr);
+            int n = expr.steps.size();
+            steps = new Node[n];
+            stages = new Node[n][];
+            sort = new boolean[n];
+            boolean interpreted = false;
+            for (int i = 0; i < n; i++) {
+                Symbol step = expr.steps.get(i);
+                steps[i] = step.compiled;
+                sort[i] = step.type.equals("sort");
+                if (step.tuple != null)
+                    interpreted = true;
+                if (step.stages != null && !sort[i]) {
+                    stages[i] = new Node[step.stages.size()];
+                    for (int s = 0; s < stages[i].length; s++) {
+                        Symbol stage = step.stages.get(s);
+                        if (!"filter".equals(stage.type))
+                            interpreted = true;
+                        else
+                            stages[i][s] = ((Symbol) stage.expr).compiled;
+                    }
+                }
+            }
+            this.interpreted = interpreted;
+            absolute = expr.steps.get(0).type.equals("variable");
+        }
+
+        @Override
+        Object eval(Jsonata jsonata, Object input, Frame environment) {
+            if (interpreted)
+                return jsonata.evaluatePath(expr, input, environment);
+
+            List inputSequence;
+            // if the first step is a variable reference ($...), including root reference ($$),
+            //   then the path is absolute rather than relative
+            if (input instanceof List && !absolute) {
+                inputSequence = (List)input;
+            } else {
+                // if input is not an array, make it so
+                inputSequence = Utils.createSequence(input);
+            }
+
+            Object resultSequence = null;
+            // continue after the prefix shared with other paths if it was evaluated against this input
+            Object[] prefix = expr.cse != null ? environment.context.prefix(expr.cse) : null;
+            int first = 0;
+            if (prefix != null && prefix[0] == input) {
+                inputSequence = (List)prefix[1];
+                first = expr.cseSteps;
+            }
+            for (int ii = first; ii < steps.length; ii++) {
+                // if the first step is an explicit array constructor, then just evaluate that (i.e. don't iterate over a context array)
+                if (ii == 0 && expr.steps.get(0).consarray) {
+                    resultSequence = (List) steps[0].evaluate(jsonata, inputSequence, environment);
+                } else if (sort[ii]) {
+                    resultSequence = jsonata.evaluateStep(expr.steps.get(ii), inputSequence, environment, ii == steps.length - 1);
+                } else {
+                    resultSequence = evaluateStep(jsonata, ii, inputSequence, environment);
+                }
+
+                if (resultSequence == null || ((List)resultSequence).size() == 0) {
+                    break;
+                }
+                inputSequence = (List)resultSequence;
+                if (prefix != null && ii == expr.cseSteps - 1) {
+                    prefix[0] = input;
+                    prefix[1] = inputSequence;
+                }
+            }
+
+            if (expr.keepSingletonArray) {
+                resultSequence = keepSingleton(resultSequence);
+            }
+
+            if (expr.group != null) {
+                resultSequence = jsonata.evaluateGroupExpression(expr.group, resultSequence, environment);
+            }
+
+            return resultSequence;
+        }
+
+        Object evaluateStep(Jsonata jsonata, int index, List input, Frame environment) {
+            Node step = steps[index];
+            Node[] filters = stages[index];
+            boolean lastStep = index == steps.length - 1;
+
+            List result = Utils.createSequence();
+            environment.context.loops += input.size();
+            for (int ii = 0; ii < input.size(); ii++) {
+                var res = step.evaluate(jsonata, input.get(ii), environment);
+                if (filters != null) {
+                    for (Node filter : filters) {
+                        res = filter(jsonata, filter, res, environment);
+                    }
+                }
+                if (res != null) {
+                    result.add(res);
+                }
+            }
+
+            return flatten(result, lastStep);
+        }
+    }
+
+    /**
+     * Path of plain name steps (a.b.c): no predicates, sorting, focus, index or parent bindings
+     */
+    static boolean names(Symbol expr) {
+        if (expr.tuple != null || expr.seekingParent != null)
+            return false;
+        for (Symbol step : expr.steps)
+            if (!step.type.equals("name") || !Parser.plain(step))
+                return false;
+        return true;
+    }
+
+    /**
+     * Fused path of name steps: walks the maps and lists of the input depth first
+     * and only materializes the result sequence, instead of a sequence per step.
+     * The result is the same as evaluating the steps one after the other, including
+     * the flattening rules and the singleton array rule of the last step.
+     */
+    static final class NamePathNode extends Node {
+        final String[] names;
+
+        NamePathNode(Symbol expr) {
+            super(expr);
+            names = new String[expr.steps.size()];
+            for (int i = 0; i < names.length; i++)
+                names[i] = (String) expr.steps.get(i).value;
+        }
+
+        @Override
+        Object eval(Jsonata jsonata, Object input, Frame environment) {
+            List inputSequence = input instanceof List ? (List)input : Utils.createSequence(input);
+            int first = 0;
+            if (expr.cse != null) {
+                // continue after the prefix shared with other paths if it was evaluated against this input
+                Object[] prefix = environment.context.prefix(expr.cse);
+                if (prefix[0] != input) {
+                    List sequence = new Walk(names, expr.cseSteps, false).walk(environment.context, inputSequence, 0);
+                    if (sequence.isEmpty())
+                        return result(jsonata, sequence, environment);
+                    prefix[0] = input;
+                    prefix[1] = sequence;
+                }
+                inputSequence = (List)prefix[1];
+                first = expr.cseSteps;
+            }
+            return result(jsonata, new Walk(names, names.length, true).walk(environment.context, inputSequence, first), environment);
+        }
+
+        Object result(Jsonata jsonata, Object resultSequence, Frame environment) {
+            if (expr.keepSingletonArray) {
+                resultSequence = keepSingleton(resultSequence);
+            }
+            if (expr.group != null) {
+                resultSequence = jsonata.evaluateGroupExpression(expr.group, resultSequence, environment);
+            }
+            return resultSequence;
+        }
+    }
+
+    /**
+     * Depth first walk of the name steps [from, to)
+     */
+    static final class Walk {
+        final String[] names;
+        final int to;
+        final boolean lastStep;
+        final List out = Utils.createSequence();
+        // result of the last step while there is only one (singleton array rule)
+        Object single;
+        int count;
+        long loops;
+        Timebox timebox;
+
+        Walk(String[] names, int to, boolean lastStep) {
+            this.names = names;
+            this.to = to;
+            this.lastStep = lastStep;
+        }
+
+        List walk(EvaluationContext context, List input, int from) {
+            timebox = context.timebox;
+            for (int ii = 0; ii < input.size(); ii++)
+                step(input.get(ii), from);
+            context.loops += loops;
+            if (count == 1) {
+                if (lastStep && single instanceof List && !Utils.isSequence(single))
+                    return (List)single;
+                add(single);
+            }
+            return out;
+        }
+
+        void step(Object item, int index) {
+            loops++;
+            if (timebox != null)
+                timebox.tick();
+            Object res = Jsonata.mangle(Functions.lookup(item, names[index]), false);
+            if (res == null)
+                return;
+            if (index < to - 1) {
+                // the items of the step result are the input of the next step
+                if (!(res instanceof List) || (res instanceof JList && ((JList)res).cons))
+                    step(res, index + 1);
+                else
+                    for (Object r : (List)res)
+                        step(r, index + 1);
+            } else if (++count == 1) {
+                single = res;
+            } else {
+                if (count == 2)
+                    add(single);
+                add(res);
+            }
+        }
+
+        void add(Object res) {
+            if (!(res instanceof List) || (res instanceof JList && ((JList)res).cons)) {
+                out.add(res);
+            } else {
+                out.addAll((List)res);
+            }
+        }
+    }
+
+    /**
+     * Flatten the results of a path step
+     * @param result - step results per input item
+     * @param lastStep - flag the last step of a path
+     * @return Result sequence
+     */
+    static List flatten(List result, boolean lastStep) {
+        var resultSequence = Utils.createSequence();
+        if (lastStep && result.size()==1 && (result.get(0) instanceof List) && !Utils.isSequence(result.get(0))) {
+            resultSequence = (List) result.get(0);
+        } else {
+            // flatten the sequence
+            for (Object res : result) {
+                if (!(res instanceof List) || (res instanceof JList && ((JList)res).cons)) {
+                    // it's not an array - just push into the result sequence
+                    resultSequence.add(res);
+                } else {
+                    // res is a sequence - flatten it into the parent sequence
+                    resultSequence.addAll((List)res);
+                }
+            }
+        }
+        return resultSequence;
+    }
+
+    /**
+     * Flag the result of a path to keep singleton arrays
+     * @param resultSequence - path result
+     * @return Flagged result
+     */
+    static Object keepSingleton(Object resultSequence) {
+        // If we only got an ArrayList, convert it so we can set the keepSingleton flag
+        if (!(resultSequence instanceof JList))
+            resultSequence = new JList<>((List)resultSequence);
+
+        // if the array is explicitly constructed in the expression and marked to promote singleton sequences to array
+        if (((JList)resultSequence).cons && !((JList)resultSequence).sequence) {
+            resultSequence = Utils.createSequence(resultSequence);
+        }
+        ((JList)resultSequence).keepSingleton = true;
+        return resultSequence;
+    }
+
+    /**
+     * Base class of binary operators
+     */
+    static abstract class BinaryNode extends Node {
+        final Node lhs, rhs;
+        final String op;
+
+        BinaryNode(Symbol expr) {
+            super(expr);
+            lhs = expr.lhs.compiled;
+            rhs = expr.rhs.compiled;
+            op = expr.operator.symbol;
+        }
+    }
+
+    /**
+     * +, -, *, / and %
+     */
+    static final class NumericNode extends BinaryNode {
+        NumericNode(Symbol expr) { super(expr); }
+
+        @Override
+        Object eval(Jsonata jsonata, Object input, Frame environment) {
+            var l = lhs.evaluate(jsonata, input, environment);
+            var r = rhs.evaluate(jsonata, input, environment);
+            return jsonata.evaluateNumericExpression(l, r, op);
+        }
+    }
+
+    /**
+     * = and !=
+     */
+    static final class EqualityNode extends BinaryNode {
+        EqualityNode(Symbol expr) { super(expr); }
+
+        @Override
+        Object eval(Jsonata jsonata, Object input, Frame environment) {
+            var l = lhs.evaluate(jsonata, input, environment);
+            var r = rhs.evaluate(jsonata, input, environment);
+            return jsonata.evaluateEqualityExpression(l, r, op);
+        }
+    }
+
+    /**
+     * &lt;, &lt;=, &gt; and &gt;=
+     */
+    static final class ComparisonNode extends BinaryNode {
+        ComparisonNode(Symbol expr) { super(expr); }
+
+        @Override
+        Object eval(Jsonata jsonata, Object input, Frame environment) {
+            var l = lhs.evaluate(jsonata, input, environment);
+            var r = rhs.evaluate(jsonata, input, environment);
+            return jsonata.evaluateComparisonExpression(l, r, op);
+        }
+    }
+
+    /**
+     * @return true if the type of an operand of a comparison is known (see Parser.infer)
+     */
+    static boolean typed(Symbol expr) {
+        return expr.lhs.valueType != 0 || expr.rhs.valueType != 0;
+    }
+
+    /**
+     * +, -, *, / and % with numeric operands
+     */
+    static final class TypedNumericNode extends BinaryNode {
+        TypedNumericNode(Symbol expr) { super(expr); }
+
+        @Override
+        Object eval(Jsonata jsonata, Object input, Frame environment) {
+            var l = lhs.evaluate(jsonata, input, environment);
+            var r = rhs.evaluate(jsonata, input, environment);
+            return numeric(jsonata, l, r, op);
+        }
+    }
+
+    /**
+     * = and != with operands of known type
+     */
+    static final class TypedEqualityNode extends BinaryNode {
+        TypedEqualityNode(Symbol expr) { super(expr); }
+
+        @Override
+        Object eval(Jsonata jsonata, Object input, Frame environment) {
+            var l = lhs.evaluate(jsonata, input, environment);
+            var r = rhs.evaluate(jsonata, input, environment);
+            return equality(jsonata, l, r, op);
+        }
+    }
+
+    /**
+     * &lt;, &lt;=, &gt; and &gt;= with operands of known type
+     */
+    static final class TypedComparisonNode extends BinaryNode {
+        TypedComparisonNode(Symbol expr) { super(expr); }
+
+        @Override
+        Object eval(Jsonata jsonata, Object input, Frame environment) {
+            var l = lhs.evaluate(jsonata, input, environment);
+            var r = rhs.evaluate(jsonata, input, environment);
+            return comparison(jsonata, l, r, op);
+        }
+    }
+
+    /**
+     * Numeric operator specialized for integers and finite doubles: computes the result
+     * without the type checks of Jsonata.evaluateNumericExpression (see Numbers).
+     * Other operands (undefined, NaN, non-numeric, ...) use the generic operator.
+     */
+    static Object numeric(Jsonata jsonata, Object lhs, Object rhs, String op) {
+        if (Numbers.finite(lhs) && Numbers.finite(rhs))
+            return Numbers.arithmetic(lhs, rhs, op.charAt(0));
+        return jsonata.evaluateNumericExpression(lhs, rhs, op);
+    }
+
+    /**
+     * = and != specialized for strings, integers and booleans
+     */
+    static Object equality(Jsonata jsonata, Object lhs, Object rhs, String op) {
+        if ((lhs instanceof String && rhs instanceof String) || (lhs instanceof Boolean && rhs instanceof Boolean))
+            return lhs.equals(rhs) == (op.length() == 1);
+        if (lhs instanceof Integer && rhs instanceof Integer)
+            return ((Integer) lhs).intValue() == ((Integer) rhs).intValue() == (op.length() == 1);
+        return jsonata.evaluateEqualityExpression(lhs, rhs, op);
+    }
+
+    /**
+     * &lt;, &lt;=, &gt; and &gt;= specialized for strings and integers
+     */
+    static Object comparison(Jsonata jsonata, Object lhs, Object rhs, String op) {
+        int c;
+        if (lhs instanceof Integer && rhs instanceof Integer)
+            c = Integer.compare((Integer) lhs, (Integer) rhs);
+        else if (lhs instanceof String && rhs instanceof String)
+            c = ((String) lhs).compareTo((String) rhs);
+        else
+            return jsonata.evaluateComparisonExpression(lhs, rhs, op);
+        switch (op) {
+            case "<":
+                return c < 0;
+            case "<=":
+                return c <= 0;
+            case ">":
+                return c > 0;
+            default:
+                return c >= 0;
+        }
+    }
+
+    /**
+     * String concatenation &amp;
+     */
+    static final class ConcatNode extends BinaryNode {
+        ConcatNode(Symbol expr) { super(expr); }
+
+        @Override
+        Object eval(Jsonata jsonata, Object input, Frame environment) {
+            var l = lhs.evaluate(jsonata, input, environment);
+            var r = rhs.evaluate(jsonata, input, environment);
+            return jsonata.evaluateStringConcat(l, r);
+        }
+    }
+
+    /**
+     * Range ..
+     */
+    static final class RangeNode extends BinaryNode {
+        RangeNode(Symbol expr) { super(expr); }
+
+        @Override
+        Object eval(Jsonata jsonata, Object input, Frame environment) {
+            var l = lhs.evaluate(jsonata, input, environment);
+            var r = rhs.evaluate(jsonata, input, environment);
+            return jsonata.evaluateRangeExpression(l, r);
+        }
+    }
+
+    /**
+     * Inclusion in
+     */
+    static final class IncludesNode extends BinaryNode {
+        IncludesNode(Symbol expr) { super(expr); }
+
+        @Override
+        Object eval(Jsonata jsonata, Object input, Frame environment) {
+            var l = lhs.evaluate(jsonata, input, environment);
+            var r = rhs.evaluate(jsonata, input, environment);
+            return jsonata.evaluateIncludesExpression(l, r);
+        }
+    }
+
+    /**
+     * Boolean and - the rhs is only evaluated if required
+     */
+    static final class AndNode extends BinaryNode {
+        AndNode(Symbol expr) { super(expr); }
+
+        @Override
+        Object eval(Jsonata jsonata, Object input, Frame environment) {
+            var l = lhs.evaluate(jsonata, input, environment);
+            if (!Jsonata.boolize(l))
+                return false;
+            return Jsonata.boolize(evaluateRhs(this, jsonata, input, environment));
+        }
+    }
+
+    /**
+     * Boolean or - the rhs is only evaluated if required
+     */
+    static final class OrNode extends BinaryNode {
+        OrNode(Symbol expr) { super(expr); }
+
+        @Override
+        Object eval(Jsonata jsonata, Object input, Frame environment) {
+            var l = lhs.evaluate(jsonata, input, environment);
+            if (Jsonata.boolize(l))
+                return true;
+            return Jsonata.boolize(evaluateRhs(this, jsonata, input, environment));
+        }
+    }
+
+    /**
+     * deferred rhs of and / or: errors other than JException are reported as unexpected
+     */
+    static Object evaluateRhs(BinaryNode node, Jsonata jsonata, Object input, Frame environment) {
+        try {
+            return node.rhs.evaluate(jsonata, input, environment);
+        } catch (RuntimeException err) {
+            throw unexpected(err, node.expr);
+        }
+    }
+
+    static RuntimeException unexpected(RuntimeException err, Symbol expr) {
+        if (err instanceof JException)
+            return err;
+        return new JException("Unexpected", expr.position);
+    }
+
+    /**
+     * Unary minus
+     */
+    static final class NegationNode extends Node {
+        final Node expression;
+
+        NegationNode(Symbol expr) {
+            super(expr);
+            expression = expr.expression.compiled;
+        }
+
+        @Override
+        Object eval(Jsonata jsonata, Object input, Frame environment) {
+            return negate(expression.evaluate(jsonata, input, environment), expr);
+        }
+    }
+
+    static Object negate(Object result, Symbol expr) {
+        if (result == null)
+            return null;
+        if (Utils.isNumeric(result))
+            return Utils.convertNumber(-((Number) result).doubleValue());
+        throw new JException("D1002", expr.position, expr.value, result);
+    }
+
+    /**
+     * Array constructor
+     */
+    static final class ArrayConstructorNode extends Node {
+        final Node[] items;
+        final boolean[] nested;
+
+        ArrayConstructorNode(Symbol expr) {
+            super(expr);
+            items = new Node[expr.expressions.size()];
+            nested = new boolean[items.length];
+            for (int i = 0; i < items.length; i++) {
+                Symbol item = expr.expressions.get(i);
+                items[i] = item.compiled;
+                nested[i] = ("" + item.value).equals("[");
+            }
+        }
+
+        @Override
+        Object eval(Jsonata jsonata, Object input, Frame environment) {
+            Object result = new JList<>();
+            for (int idx = 0; idx < items.length; idx++) {
+                environment.isParallelCall = idx > 0;
+                Object value = items[idx].evaluate(jsonata, input, environment);
+                if (value != null) {
+                    if (nested[idx]) {
+                        if (result instanceof JList)
+                            ((List) result).add(value);
+                        else
+                            result = Utils.concatItem((List) result, value);
+                    } else
+                        result = Functions.append(result, value);
+                }
+            }
+            Utils.View.track(result, environment.context);
+            if (expr.consarray) {
+                if (!(result instanceof JList))
+                    result = new JList((List) result);
+                ((JList) result).cons = true;
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Object constructor
+     */
+    static final class ObjectConstructorNode extends Node {
+        ObjectConstructorNode(Symbol expr) { super(expr); }
+
+        @Override
+        Object eval(Jsonata jsonata, Object input, Frame environment) {
+            return jsonata.evaluateGroupExpression(expr, input, environment);
+        }
+    }
+
+    /**
+     * Object constructor with distinct string literal keys, e.g. {"name": name, "total": price * quantity}.
+     * The values are evaluated directly into a presized map. Grouping only applies to an array
+     * input, where the items are grouped by key (see Jsonata.evaluateGroupExpression)
+     */
+    static final class FixedKeysObjectNode extends Node {
+        final String[] keys;
+        final Node[] values;
+        final int capacity;
+
+        FixedKeysObjectNode(Symbol expr) {
+            super(expr);
+            keys = new String[expr.lhsObject.size()];
+            values = new Node[keys.length];
+            for (int i = 0; i < keys.length; i++) {
+                keys[i] = (String) expr.lhsObject.get(i)[0].value;
+                values[i] = expr.lhsObject.get(i)[1].compiled;
+            }
+            capacity = (int) (keys.length / 0.75f) + 1;
+        }
+
+        /**
+         * @return true if the keys are distinct string literals (duplicates raise D1009)
+         */
+        static boolean applies(Symbol expr) {
+            Set<Object> keys = new HashSet<>();
+            for (Symbol[] pair : expr.lhsObject)
+                if (!"string".equals(pair[0].type) || !keys.add(pair[0].value))
+                    return false;
+            return true;
+        }
+
+        @Override
+        Object eval(Jsonata jsonata, Object input, Frame environment) {
+            if (input instanceof List)
+                return jsonata.evaluateGroupExpression(expr, input, environment);
+            Map<Object, Object> result = new LinkedHashMap<>(capacity);
+            for (int i = 0; i < keys.length; i++) {
+                environment.isParallelCall = i > 0;
+                Object value = values[i].evaluate(jsonata, input, environment);
+                if (value != null)
+                    result.put(keys[i], value);
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Field name
+     */
+    static final class NameNode extends Node {
+        final String name;
+
+        NameNode(Symbol expr) {
+            super(expr);
+            name = (String) expr.value;
+        }
+
+        @Override
+        Object eval(Jsonata jsonata, Object input, Frame environment) {
+            return Functions.lookup(input, name);
+        }
+    }
+
+    /**
+     * String, number and value literals
+     */
+    static final class LiteralNode extends Node {
+        final Object value;
+
+        LiteralNode(Symbol expr) {
+            super(expr);
+            value = expr.value != null ? expr.value : Jsonata.NULL_VALUE;
+        }
+
+        @Override
+        Object eval(Jsonata jsonata, Object input, Frame environment) {
+            return value;
+        }
+    }
+
+    /**
+     * Array / object constructor folded into a constant by the optimizer
+     */
+    static final class ConstantNode extends Node {
+        final Object value;
+
+        ConstantNode(Symbol expr) {
+            super(expr);
+            value = expr.literal;
+        }
+
+        @Override
+        Object eval(Jsonata jsonata, Object input, Frame environment) {
+            return Utils.copy(value);
+        }
+    }
+
+    /**
+     * Parent operator %
+     */
+    static final class ParentNode extends Node {
+        final String label;
+
+        ParentNode(Symbol expr) {
+            super(expr);
+            label = expr.slot.label;
+        }
+
+        @Override
+        Object eval(Jsonata jsonata, Object input, Frame environment) {
+            return environment.lookup(label);
+        }
+    }
+
+    /**
+     * Conditional ?:
+     */
+    static final class ConditionNode extends Node {
+        final Node condition, then, _else;
+
+        ConditionNode(Symbol expr) {
+            super(expr);
+            condition = expr.condition.compiled;
+            then = expr.then.compiled;
+            _else = expr._else != null ? expr._else.compiled : null;
+        }
+
+        @Override
+        Object eval(Jsonata jsonata, Object input, Frame environment) {
+            if (Jsonata.boolize(condition.evaluate(jsonata, input, environment)))
+                return then.evaluate(jsonata, input, environment);
+            if (_else != null)
+                return _else.evaluate(jsonata, input, environment);
+            return null;
+        }
+    }
+
+    /**
+     * Block
+     */
+    static final class BlockNode extends Node {
+        final Node[] expressions;
+
+        BlockNode(Symbol expr) {
+            super(expr);
+            expressions = new Node[expr.expressions.size()];
+            for (int i = 0; i < expressions.length; i++)
+                expressions[i] = expr.expressions.get(i).compiled;
+        }
+
+        @Override
+        Object eval(Jsonata jsonata, Object input, Frame environment) {
+            Object result = null;
+            // create a new frame to limit the scope of variable assignments
+            var frame = expr.frameless ? environment : jsonata.createFrame(environment, expr.scope);
+            for (Node ex : expressions)
+                result = ex.evaluate(jsonata, input, frame);
+            return result;
+        }
+    }
+
+    /**
+     * Variable binding :=
+     */
+    static final class BindNode extends Node {
+        final Symbol variable;
+        final Node rhs;
+
+        BindNode(Symbol expr) {
+            super(expr);
+            variable = expr.lhs;
+            rhs = expr.rhs.compiled;
+        }
+
+        @Override
+        Object eval(Jsonata jsonata, Object input, Frame environment) {
+            var value = rhs.evaluate(jsonata, input, environment);
+            environment.bind(variable, value);
+            return value;
+        }
+    }
+
+    /**
+     * Variable reference
+     */
+    static final class VariableNode extends Node {
+        final String name;
+        final int depth, slot;
+        final boolean global;
+
+        VariableNode(Symbol expr) {
+            super(expr);
+            name = (String) expr.value;
+            depth = expr.frameDepth;
+            slot = expr.frameSlot;
+            global = expr.global;
+        }
+
+        @Override
+        Object eval(Jsonata jsonata, Object input, Frame environment) {
+            // if the variable name is empty string, then it refers to context value
+            if (name.isEmpty())
+                return context(input);
+            if (depth >= 0)
+                return environment.lookup(depth, slot, name);
+            if (global)
+                return environment.lookupGlobal(name);
+            return environment.lookup(name);
+        }
+    }
+
+    static Object context(Object input) {
+        return input instanceof JList && ((JList)input).outerWrapper ? ((JList)input).get(0) : input;
+    }
+
+    /**
+     * Lambda definition
+     */
+    static final class LambdaNode extends Node {
+        LambdaNode(Symbol expr) { super(expr); }
+
+        @Override
+        Object eval(Jsonata jsonata, Object input, Frame environment) {
+            return jsonata.evaluateLambda(expr, input, environment);
+        }
+    }
+
+    /**
+     * Function invocation
+     */
+    static final class FunctionNode extends Node {
+        final Node procedure;
+        final Node[] arguments;
+        final Object procName;
+        final String hint;
+
+        FunctionNode(Symbol expr) {
+            super(expr);
+            procedure = expr.procedure.compiled;
+            arguments = new Node[expr.arguments.size()];
+            for (int i = 0; i < arguments.length; i++)
+                arguments[i] = expr.arguments.get(i).compiled;
+            boolean path = "path".equals(expr.procedure.type);
+            procName = path ? expr.procedure.steps.get(0).value : expr.procedure.value;
+            hint = path ? (String) expr.procedure.steps.get(0).value : null;
+        }
+
+        @Override
+        Object eval(Jsonata jsonata, Object input, Frame environment) {
+            return call(jsonata, input, environment, Utils.NONE);
+        }
+
+        Object call(Jsonata jsonata, Object input, Frame environment, Object applytoContext) {
+            var proc = procedure.evaluate(jsonata, input, environment);
+
+            if (proc == null && hint != null && environment.lookup(hint) != null) {
+                // help the user out here if they simply forgot the leading $
+                throw new JException("T1005", expr.position, hint);
+            }
+
+            // aggregates of a path consume the results of the path as they are produced
+            if (applytoContext == Utils.NONE) {
+                var res = LazySequence.aggregate(jsonata, proc, expr, input, environment);
+                if (res != Utils.NONE)
+                    return res;
+            }
+
+            List<Object> evaluatedArgs = new ArrayList<>(arguments.length + 1);
+            if (applytoContext != Utils.NONE) {
+                evaluatedArgs.add(applytoContext);
+            }
+            // eager evaluation - evaluate the arguments
+            for (Node arg : arguments) {
+                evaluatedArgs.add(arg.evaluate(jsonata, input, environment));
+            }
+
+            // Error if proc is null
+            if (proc == null)
+                throw new JException("T1006", expr.position, procName);
+
+            try {
+                if (proc instanceof Symbol) {
+                    ((Symbol) proc).token = procName;
+                    ((Symbol) proc).position = expr.position;
+                }
+                // required by Functions.functionEval for current $eval() input context
+                environment.context.input = input;
+                environment.context.environment = environment;
+                if (expr.fuse) {
+                    var res = FusedLoop.apply(jsonata, proc, evaluatedArgs, input, environment);
+                    if (res != Utils.NONE)
+                        return res;
+                }
+                return jsonata.apply(proc, evaluatedArgs, input, environment);
+            } catch (JException jex) {
+                if (jex.location < 0) {
+                    // add the position field to the error
+                    jex.location = expr.position;
+                }
+                if (jex.current == null) {
+                    // and the Object identifier
+                    jex.current = expr.token;
+                }
+                throw jex;
+            } catch (RuntimeException err) {
+                throw err;
+            } catch (Exception err) {
+                throw new RuntimeException(err);
+            }
+        }
+    }
+
+    /**
+     * Function application ~>
+     */
+    static final class ApplyNode extends Node {
+        final Node lhs, rhs;
+
+        ApplyNode(Symbol expr) {
+            super(expr);
+            lhs = expr.lhs.compiled;
+            rhs = expr.rhs.compiled;
+        }
+
+        @Override
+        Object eval(Jsonata jsonata, Object input, Frame environment) {
+            var l = lhs.evaluate(jsonata, input, environment);
+
+            if (rhs instanceof FunctionNode) {
+                // this is a function _invocation_; invoke it with lhs expression as the first argument
+                return ((FunctionNode) rhs).call(jsonata, input, environment, l);
+            }
+
+            var func = rhs.evaluate(jsonata, input, environment);
+            if (!jsonata.isFunctionLike(func) && !jsonata.isFunctionLike(l)) {
+                throw new JException("T2006", expr.position, func);
+            }
+
+            if (jsonata.isFunctionLike(l)) {
+                // this is function chaining (func1 ~> func2)
+                return Composition.compose(l, func);
+            } else {
+                List args = new ArrayList<>();
+                args.add(l);
+                return jsonata.apply(func, args, null, environment);
+            }
+        }
+    }
+
+    /**
+     * Evaluated by the interpreter helpers (wildcards, descendants, regex, partial application, transforms)
+     */
+    static final class InterpretedNode extends Node {
+        InterpretedNode(Symbol expr) { super(expr); }
+
+        @Override
+        Object eval(Jsonata jsonata, Object input, Frame environment) {
+            environment.context.input = input;
+            environment.context.environment = environment;
+            return jsonata.evaluateSymbol(expr, input, environment);
+        }
+    }
+}
@@ -0,0 +1,123 @@
+/**
+ * jsonata-java is the JSONata Java reference port
+ *
+ * Copyright Dashjoin GmbH. https://dashjoin.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dashjoin.jsonata;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.dashjoin.jsonata.Jsonata.JFunction;
+import com.dashjoin.jsonata.Parser.Symbol;
+
+/**
+ * Function composition func1 ~> func2 (see Jsonata.evaluateApplyExpression).
+ *
+ * Calls the stages in order, each with the result of the previous stage, like
+ * λ($x){ $g($f($x)) } without creating a closure and a frame per stage.
+ * Compositions of compositions are flattened. A partial application of a built-in
+ * function (e.g. $substring(?, 0, 3)) is called directly with its bound arguments
+ * instead of through the lambda created by Jsonata.partialApplyNativeFunction.
+ */
+final class Composition extends JFunction {
+
+    final Object[] stages;
+
+    /**
+     * Per stage: the function and the arguments of a partial application of a built-in
+     * function, with the slot of the stage input (null if the stage is called as is)
+     */
+    final JFunction[] natives;
+    final Object[][] arguments;
+    final int[] holes;
+
+    Composition(Object[] stages) {
+        super(null, null);
+        this.stages = stages;
+        natives = new JFunction[stages.length];
+        arguments = new Object[stages.length][];
+        holes = new int[stages.length];
+        for (int i = 0; i < stages.length; i++)
+            if (stages[i] instanceof Symbol && ((Symbol) stages[i]).partialNative != null) {
+                Symbol partial = (Symbol) stages[i];
+                natives[i] = partial.partialNative;
+                arguments[i] = partial.partialArgs.toArray();
+                holes[i] = hole(arguments[i]);
+            }
+    }
+
+    /**
+     * @return the composition of two functions
+     */
+    static Composition compose(Object func1, Object func2) {
+        List<Object> stages = new ArrayList<>();
+        add(stages, func1);
+        add(stages, func2);
+        return new Composition(stages.toArray());
+    }
+
+    static void add(List<Object> stages, Object func) {
+        if (func instanceof Composition)
+            stages.addAll(Arrays.asList(((Composition) func).stages));
+        else
+            stages.add(func);
+    }
+
+    /**
+     * @return the slot the argument of a partial application is bound to
+     * (the first argument that is not bound, see Jsonata.partialApplyProcedure)
+     */
+    static int hole(Object[] args) {
+        for (int i = 0; i < args.length; i++)
+            if (args[i] == null)
+                return i;
+        return -1;
+    }
+
+    @Override
+    @SuppressWarnings("rawtypes") // signature of JFunctionCallable
+    public Object call(Object input, List args) {
+        Object value = args != null && !args.isEmpty() ? args.get(0) : null;
+        EvaluationContext context = EvaluationContext.current();
+        for (int i = 0; i < stages.length; i++) {
+            List<Object> stageArgs;
+            Object stage;
+            if (natives[i] != null) {
+                stage = natives[i];
+                stageArgs = new ArrayList<>(Arrays.asList(arguments[i]));
+                if (holes[i] >= 0)
+                    stageArgs.set(holes[i], value);
+            } else {
+                stage = stages[i];
+                stageArgs = new ArrayList<>(1);
+                stageArgs.add(value);
+            }
+            value = context.jsonata.apply(stage, stageArgs, null, context.environment);
+        }
+        return value;
+    }
+
+    @Override
+    public Object validate(Object args, Object context) {
+        return args;
+    }
+
+    @Override
+    public int getNumberOfArgs() {
+        return 1;
+    }
+}
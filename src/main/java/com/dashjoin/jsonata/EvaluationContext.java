@@ -0,0 +1,179 @@
+/**
+ * jsonata-java is the JSONata Java reference port
+ *
+ * Copyright Dashjoin GmbH. https://dashjoin.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dashjoin.jsonata;
+
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.dashjoin.jsonata.Jsonata.EntryCallback;
+import com.dashjoin.jsonata.Jsonata.ExitCallback;
+import com.dashjoin.jsonata.Jsonata.Frame;
+import com.dashjoin.jsonata.Parser.Symbol;
+
+/**
+ * State of a single evaluation.
+ *
+ * The context is created by Jsonata.evaluate and passed down the call chain
+ * with the frames of the evaluation (see Frame.context), so the parsed
+ * expression is never modified by an evaluation and can be shared freely.
+ */
+final class EvaluationContext {
+
+    /**
+     * Context of the evaluation running on this thread. Only used by built-in
+     * functions that need the context ($eval, $now, $millis and higher order
+     * functions) and only set for the duration of an evaluation
+     */
+    static final ThreadLocal<EvaluationContext> current = new ThreadLocal<>();
+
+    /**
+     * The evaluated expression
+     */
+    final Jsonata jsonata;
+
+    /**
+     * Returned by $now() and $millis()
+     */
+    final long timestamp;
+
+    /**
+     * Flag: the evaluation runs on the reference interpreter
+     */
+    boolean interpret;
+
+    /**
+     * Loop iterations of the evaluation
+     */
+    long loops;
+
+    /**
+     * Entry / exit callbacks, looked up once when the evaluation starts (null if not installed)
+     */
+    EntryCallback entryCallback;
+    ExitCallback exitCallback;
+
+    /**
+     * Runtime bounds governor (null if no bounds are set)
+     */
+    Timebox timebox;
+
+    /**
+     * Segmented stack (null if no stack bounds are set)
+     */
+    StackSegments stack;
+
+    /**
+     * Input and environment of the node being evaluated.
+     * This is required by Functions.functionEval for current $eval() input context
+     */
+    Object input;
+    Frame environment;
+
+    /**
+     * Pending tail call, see Jsonata.TAIL_CALL
+     */
+    Object tailProcedure;
+    List<Object> tailArguments;
+
+    /**
+     * Common path prefixes by key: last input and its sequence
+     */
+    Map<Object, Object[]> prefixes;
+
+    /**
+     * Values of loop invariant expressions: frame, version of the frame and value
+     */
+    Map<Symbol, Object[]> invariants;
+
+    /**
+     * Flag: the evaluation created a sequence view (see Utils.View), which is
+     * materialized before the result is handed back
+     */
+    boolean views;
+
+    EvaluationContext(Jsonata jsonata, long timestamp) {
+        this.jsonata = jsonata;
+        this.timestamp = timestamp;
+    }
+
+    /**
+     * Expression of the contexts created outside of an evaluation, parsed on first use
+     */
+    static final class Fallback {
+        static final Jsonata jsonata = Jsonata.jsonata("$");
+    }
+
+    /**
+     * @return the context of the evaluation running on this thread. Outside of an evaluation
+     * (e.g. a lambda returned by an evaluation is applied from Java), a new context is returned
+     */
+    static EvaluationContext current() {
+        EvaluationContext context = current.get();
+        if (context == null) {
+            Jsonata jsonata = Fallback.jsonata;
+            context = new EvaluationContext(jsonata, System.currentTimeMillis());
+            context.environment = jsonata.createFrame(jsonata.environment);
+            context.environment.context = context;
+        }
+        return context;
+    }
+
+    /**
+     * @param key - key of a common path prefix (see Parser.eliminate)
+     * @return last input the prefix was evaluated against and the resulting sequence
+     */
+    Object[] prefix(Object key) {
+        if (prefixes == null)
+            prefixes = new IdentityHashMap<>();
+        Object[] res = prefixes.get(key);
+        if (res == null)
+            prefixes.put(key, res = new Object[2]);
+        return res;
+    }
+
+    /**
+     * @param expr - loop invariant expression (see Parser.hoist)
+     * @return frame the value was last evaluated in, version of the frame and value
+     */
+    Object[] invariant(Symbol expr) {
+        if (invariants == null)
+            invariants = new IdentityHashMap<>();
+        Object[] res = invariants.get(expr);
+        if (res == null)
+            invariants.put(expr, res = new Object[3]);
+        return res;
+    }
+
+    /**
+     * Releases the references to the input and the state of the finished evaluation.
+     * Closures created by the evaluation can still be applied, but without callbacks and bounds
+     */
+    void close() {
+        input = null;
+        environment = null;
+        prefixes = null;
+        invariants = null;
+        tailProcedure = null;
+        tailArguments = null;
+        entryCallback = null;
+        exitCallback = null;
+        timebox = null;
+        stack = null;
+    }
+}
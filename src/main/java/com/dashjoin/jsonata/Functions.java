@@ -78,8 +78,7 @@ public class Functions {
             return null;
         }
 
-        double total = args.stream().mapToDouble(Number::doubleValue).sum();
-        return total;
+        return Numbers.sum(args);
     }
 
     /**
@@ -299,6 +298,21 @@ public class Functions {
      * @return
      */
     public static void validateInput(Object arg) {
+        validateInput(arg, null, 0);
+    }
+
+    /**
+     * @param level - levels of the input on the current stack segment (see StackSegments.full)
+     */
+    static void validateInput(Object arg, EvaluationContext context, int level) {
+        if (StackSegments.full(context, level)) {
+            context.stack.segment(context, () -> {
+                validateInput(arg, context, 0);
+                return null;
+            });
+            return;
+        }
+
         // if (arg == null)
         //   return null;
         
@@ -328,15 +342,15 @@ public class Functions {
 
         if (arg instanceof Map) {
             for (Entry<String, Object> e : ((Map<String, Object>) arg).entrySet()) {
-                validateInput(e.getKey());
-                validateInput(e.getValue());
+                validateInput(e.getKey(), context, level + 1);
+                validateInput(e.getValue(), context, level + 1);
             }
             return;
         }
 
         if ((arg instanceof List)) {
             for (Object v : (List) arg) {
-                validateInput(v);
+                validateInput(v, context, level + 1);
             }
             return;
         }
@@ -1521,7 +1535,9 @@ public class Functions {
 
 
     public static int getFunctionArity(Object func) {
-        if (func instanceof JFunction) {
+        if (func instanceof Composition) {
+            return ((JFunction)func).getNumberOfArgs();
+        } else if (func instanceof JFunction) {
             return ((JFunction)func).signature.getMinNumberOfArgs();
         } else {
             // Lambda
@@ -1561,9 +1577,12 @@ public class Functions {
      */
     public static Object funcApply(Object func, List funcArgs) throws Throwable {
         Object res;
-        if (isLambda(func))
-            res = Jsonata.current.get().apply(func, funcArgs, null, Jsonata.current.get().environment);
-        else
+        if (isLambda(func)) {
+            // the lambda belongs to the evaluation of its closure frame
+            Jsonata.Frame environment = ((Symbol)func).environment;
+            EvaluationContext context = Jsonata.context(environment);
+            res = context.jsonata.apply(func, funcArgs, null, environment != null ? environment : context.environment);
+        } else
             res = ((JFunction)func).call(null, funcArgs);
         return res;
     }
@@ -1841,9 +1860,7 @@ public class Functions {
             return arr;
         }
 
-        var result = new ArrayList<>(arr);
-        Collections.reverse(result);
-        return result;
+        return new Utils.ReversedList(arr);
     }
 
     /**
@@ -2090,16 +2107,15 @@ public class Functions {
             arg1 = Utils.createSequence(arg1);
         }
         if (!(arg2 instanceof List)) {
-            arg2 = new JList<>(Arrays.asList(arg2));
+            return Utils.concatItem((List)arg1, arg2);
         }
 
         // Shortcut:
         if (((List)arg1).isEmpty() && (arg2 instanceof Utils.RangeList))
             return arg2;
 
-        arg1 = new JList<>((List)arg1); // create a new copy!
-        ((List)arg1).addAll((List)arg2);
-        return arg1;
+        // a new copy or a concatenation of large lists
+        return Utils.concat((List)arg1, (List)arg2);
     }
 
     public static boolean isLambda(Object result) {
@@ -2375,7 +2391,8 @@ public class Functions {
         if(expr == null) {
             return null;
         }
-        Object input = Jsonata.current.get().input; // =  this.input;
+        EvaluationContext context = EvaluationContext.current();
+        Object input = context.input; // =  this.input;
         if(focus != null) {
             input = focus;
             // if the input is a JSON array, then wrap it in a singleton sequence so it gets treated as a single input
@@ -2386,9 +2403,10 @@ public class Functions {
         }
 
         Jsonata ast;
-        Jsonata.Frame env = Jsonata.current.get().environment;
+        Jsonata.Frame env = context.environment;
         try {
-            ast = jsonata(expr);
+            // evaluated in the frames of the caller
+            ast = new Jsonata(expr, true, null);
         } catch(Throwable err) {
             // error parsing the expression passed to $eval
             //populateMessage(err);
@@ -2397,7 +2415,7 @@ public class Functions {
         }
         Object result = null;
         try {
-            result = Jsonata.current.get().evaluate(ast.ast, input, env);
+            result = context.jsonata.evaluate(ast.ast, input, env);
         } catch(Throwable err) {
             // error evaluating the expression passed to $eval
             //populateMessage(err);
@@ -2412,7 +2430,7 @@ public class Functions {
     //      return datetime.fromMillis(timestamp.getTime(), picture, timezone);
     //  }, "<s?s?:s>"));
     public static String now(String picture, String timezone) {
-        long t = Jsonata.current.get().timestamp;
+        long t = EvaluationContext.current().timestamp;
         return dateTimeFromMillis(t, picture, timezone);
     }
 
@@ -2420,7 +2438,7 @@ public class Functions {
     //      return timestamp.getTime();
     //  }, "<:n>"));
     public static long millis() {
-        long t = Jsonata.current.get().timestamp;
+        long t = EvaluationContext.current().timestamp;
         return t;
     }
 }
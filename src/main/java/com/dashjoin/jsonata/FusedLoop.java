@@ -0,0 +1,200 @@
+/**
+ * jsonata-java is the JSONata Java reference port
+ *
+ * Copyright Dashjoin GmbH. https://dashjoin.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dashjoin.jsonata;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.dashjoin.jsonata.Jsonata.Frame;
+import com.dashjoin.jsonata.Jsonata.JFunction;
+import com.dashjoin.jsonata.Parser.Symbol;
+
+/**
+ * Fused loop of a built-in higher order function and a lambda (see Parser.fuse).
+ *
+ * $map, $filter, $reduce and $sort call their function argument per element with a new
+ * argument list and a new frame. If the function is a lambda whose frame cannot be captured,
+ * the loop evaluates its body in a single frame instead and binds the parameters directly into
+ * their slots. The results are the same as calling Functions.map, filter, foldLeft and sort.
+ */
+final class FusedLoop {
+
+    static final Set<String> NAMES = Set.of("map", "filter", "reduce", "sort");
+
+    /**
+     * Built-in functions by implementation
+     */
+    static final Map<Object, String> FUNCTIONS = new IdentityHashMap<>();
+    static {
+        for (String name : NAMES)
+            FUNCTIONS.put(Jsonata.staticFrame.lookup(name), name);
+    }
+
+    final Jsonata jsonata;
+    final Symbol proc;
+    final Frame env;
+
+    /**
+     * Slots of the parameters (-1 = bound by name)
+     */
+    final int[] slots;
+
+    FusedLoop(Jsonata jsonata, Symbol proc, Frame environment) {
+        this.jsonata = jsonata;
+        this.proc = proc;
+        env = jsonata.createFrame(proc.environment, proc.scope);
+        // the lambda runs in the evaluation of the caller
+        env.context = Jsonata.context(environment);
+        slots = new int[proc.arguments.size()];
+        for (int i = 0; i < slots.length; i++) {
+            slots[i] = -1;
+            if (env.names != null)
+                for (int j = 0; j < env.names.length; j++)
+                    if (env.names[j].equals(proc.arguments.get(i).value))
+                        slots[i] = j;
+        }
+    }
+
+    /**
+     * Applies a built-in higher order function
+     * @param proc - the function
+     * @param args - the evaluated arguments of the call
+     * @return the result or Utils.NONE if the function argument is not fused
+     */
+    static Object apply(Jsonata jsonata, Object proc, List<Object> args, Object input, Frame environment) {
+        String name = proc instanceof JFunction ? FUNCTIONS.get(proc) : null;
+        if (name == null || args.size() < 2 || !fused(args.get(1)))
+            return Utils.NONE;
+        @SuppressWarnings("unchecked")
+        List<Object> validated = (List<Object>) ((JFunction) proc).validate(args, input);
+        Object arr = validated.get(0);
+        if (arr == null)
+            // undefined inputs always return undefined
+            return null;
+        if (!(arr instanceof List)) {
+            List<Object> wrap = new ArrayList<>();
+            wrap.add(arr);
+            arr = wrap;
+        }
+        FusedLoop loop = new FusedLoop(jsonata, (Symbol) validated.get(1), environment);
+        switch (name) {
+            case "map":
+                return loop.map((List<?>) arr);
+            case "filter":
+                return loop.filter((List<?>) arr);
+            case "reduce":
+                return loop.foldLeft((List<?>) arr, validated.size() > 2 ? validated.get(2) : null);
+            default:
+                return loop.sort((List<?>) arr);
+        }
+    }
+
+    /**
+     * @return true if the function is a lambda that can be evaluated in a fused loop
+     */
+    static boolean fused(Object func) {
+        if (!(func instanceof Symbol) || !Functions.isLambda(func))
+            return false;
+        Symbol lambda = (Symbol) func;
+        return lambda.reuseFrame && lambda.signature == null && lambda.body instanceof Symbol;
+    }
+
+    /**
+     * Evaluates the lambda body with the first n arguments bound (see Functions.hofFuncArgs)
+     */
+    Object call(int n, Object arg1, Object arg2, Object arg3, Object arg4) {
+        env.reset();
+        n = Math.min(n, slots.length);
+        if (n > 0)
+            bind(0, arg1);
+        if (n > 1)
+            bind(1, arg2);
+        if (n > 2)
+            bind(2, arg3);
+        if (n > 3)
+            bind(3, arg4);
+        return jsonata.trampoline(jsonata.invoke(proc, env), null, env);
+    }
+
+    void bind(int i, Object value) {
+        if (slots[i] >= 0)
+            env.slots[slots[i]] = value;
+        else
+            env.bind((String) proc.arguments.get(i).value, value);
+    }
+
+    List<Object> map(List<?> arr) {
+        List<Object> result = Utils.createSequence();
+        for (int i = 0; i < arr.size(); i++) {
+            Object res = call(3, arr.get(i), Numbers.of(i), arr, null);
+            if (res != null)
+                result.add(res);
+        }
+        return result;
+    }
+
+    List<Object> filter(List<?> arr) {
+        List<Object> result = Utils.createSequence();
+        for (int i = 0; i < arr.size(); i++) {
+            Object entry = arr.get(i);
+            Boolean res = Functions.toBoolean(call(3, entry, Numbers.of(i), arr, null));
+            if (res != null && res)
+                result.add(entry);
+        }
+        return result;
+    }
+
+    Object foldLeft(List<?> sequence, Object init) {
+        if (slots.length < 2)
+            throw new JException("D3050", 1);
+        Object result;
+        int index;
+        if (init == null && sequence.size() > 0) {
+            result = sequence.get(0);
+            index = 1;
+        } else {
+            result = init;
+            index = 0;
+        }
+        for (; index < sequence.size(); index++)
+            result = call(4, result, sequence.get(index), Numbers.of(index), sequence);
+        return result instanceof Number ? Utils.convertNumber((Number) result) : result;
+    }
+
+    List<?> sort(List<?> arr) {
+        if (arr.size() <= 1)
+            return arr;
+        List<Object> result = new ArrayList<>(arr);
+        result.sort((o1, o2) -> {
+            Boolean swap;
+            try {
+                swap = Functions.toBoolean(call(2, o1, o2, null, null));
+            } catch (RuntimeException e) {
+                // reported like the comparator of Functions.sort
+                throw new RuntimeException(e);
+            }
+            if (swap == null)
+                return 0;
+            return swap ? 1 : -1;
+        });
+        return result;
+    }
+}
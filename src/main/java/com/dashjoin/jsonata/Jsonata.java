@@ -24,16 +24,26 @@
  */
 package com.dashjoin.jsonata;
 
+import java.lang.ref.Cleaner;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
-import java.util.concurrent.Callable;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.function.BiFunction;
 import java.util.function.Function;
 import java.util.function.Supplier;
@@ -41,7 +51,7 @@ import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 
-import com.dashjoin.jsonata.Parser.Infix;
+import com.dashjoin.jsonata.Parser.Operator;
 import com.dashjoin.jsonata.Parser.Symbol;
 import com.dashjoin.jsonata.Utils.JList;
 import com.dashjoin.jsonata.utils.Signature;
@@ -64,17 +74,99 @@ public class Jsonata {
     }
 
     public static class Frame {
-        final Map<String, Object> bindings = new LinkedHashMap<String,Object>();
+        /**
+         * Marks slots of variables that have not been bound yet
+         */
+        static final Object UNBOUND = new Object();
+
+        /**
+         * Bindings by name (created on first use)
+         */
+        Map<String, Object> bindings;
+
+        /**
+         * Bindings of the caller, layered read only under the bindings of a root frame
+         * (see Jsonata.evaluate)
+         */
+        Map<String, Object> layer;
 
         final Frame parent;
 
+        /**
+         * Lexically addressed variables of a block or lambda (null if the frame has no slots)
+         */
+        final String[] names;
+        final Object[] slots;
+
+        /**
+         * The nearest frame with slots
+         */
+        final Frame lexical;
+
+        /**
+         * The root frame of the evaluation (null for frames that are not created by an evaluation)
+         */
+        Frame root;
+
         public boolean isParallelCall;
 
+        /**
+         * Number of bindings of the frame (see version)
+         */
+        int bound;
+
+        /**
+         * The evaluation this frame belongs to (inherited from the enclosing frame,
+         * null for frames that are not created by an evaluation)
+         */
+        EvaluationContext context;
+
         public Frame(Frame enclosingEnvironment) {
+            this(enclosingEnvironment, null);
+        }
+
+        Frame(Frame enclosingEnvironment, String[] names) {
+            this(enclosingEnvironment, names, names != null ? unbound(names.length) : null);
+        }
+
+        /**
+         * @param slots - values of the variables (UNBOUND if not bound yet)
+         */
+        Frame(Frame enclosingEnvironment, String[] names, Object[] slots) {
             parent = enclosingEnvironment;
+            context = parent != null ? parent.context : null;
+            root = parent != null ? parent.root : null;
+            this.names = names;
+            this.slots = slots;
+            lexical = names != null ? this : parent != null ? parent.lexical : null;
+        }
+
+        static Object[] unbound(int length) {
+            Object[] slots = new Object[length];
+            Arrays.fill(slots, UNBOUND);
+            return slots;
+        }
+
+        /**
+         * Clears all bindings, so the frame of a lambda can be reused for a self tail call
+         */
+        void reset() {
+            bound++;
+            bindings = null;
+            if (slots != null)
+                Arrays.fill(slots, UNBOUND);
         }
 
         public void bind(String name, Object val) {
+            bound++;
+            if (names != null)
+                for (int i = 0; i < names.length; i++)
+                    if (names[i].equals(name)) {
+                        slots[i] = val;
+                        return;
+                    }
+            if (bindings == null)
+                bindings = new LinkedHashMap<String,Object>();
             bindings.put(name, val);
         }
 
@@ -84,20 +176,78 @@ public class Jsonata {
               function.signature.setFunctionName(name);
         }
         
+        /**
+         * Binding of a variable addressed by the parser
+         * @param variable - the bound variable or parameter (see Parser.slot)
+         */
+        void bind(Symbol variable, Object val) {
+            int slot = variable.frameSlot;
+            if (variable.frameDepth == 0 && names != null && slot < names.length && names[slot] == variable.value) {
+                bound++;
+                slots[slot] = val;
+            } else {
+                bind((String) variable.value, val);
+            }
+        }
+
         public<R> void bind(String name, Fn0<R> lambda) { bind(name, (Object) lambda); }
         public<A,R> void bind(String name, Fn1<A,R> lambda) { bind(name, (Object)lambda); }
         public<A,B,R> void bind(String name, Fn2<A,B,R> lambda) { bind(name, (Object)lambda); }
 
         public Object lookup(String name) {
-            // Important: if we have a null value,
-            // return it
-            if (bindings.containsKey(name))
-                return bindings.get(name);
-            if (parent!=null)
-                return parent.lookup(name);
+            for (Frame frame = this; frame != null; frame = frame.parent) {
+                if (frame.names != null)
+                    for (int i = 0; i < frame.names.length; i++)
+                        if (frame.names[i].equals(name) && frame.slots[i] != UNBOUND)
+                            return frame.slots[i];
+                // Important: if we have a null value,
+                // return it
+                if (frame.bindings != null && frame.bindings.containsKey(name))
+                    return frame.bindings.get(name);
+                if (frame.layer != null && frame.layer.containsKey(name))
+                    return frame.layer.get(name);
+            }
             return null;
         }
 
+        /**
+         * Lookup of a variable addressed by the parser
+         * @param depth - number of frames with slots to skip
+         * @param slot - index of the variable
+         * @param name - name of the variable (used if it has not been bound yet)
+         */
+        Object lookup(int depth, int slot, String name) {
+            Frame frame = lexical;
+            for (int i = 0; i < depth && frame != null; i++)
+                frame = frame.parent != null ? frame.parent.lexical : null;
+            if (frame == null || frame.names[slot] != name)
+                return lookup(name);
+            Object value = frame.slots[slot];
+            if (value != UNBOUND)
+                return value;
+            // e.g. a parameter of a prepared expression passed in the bindings
+            return frame.lookup(name);
+        }
+
+        /**
+         * Lookup of a variable that is not bound by the expression (built-ins, bindings and
+         * variables of the root frame): the frames of blocks, lambdas and tuples are skipped
+         * @param name - name of the variable
+         */
+        Object lookupGlobal(String name) {
+            return (root != null ? root : this).lookup(name);
+        }
+
+        /**
+         * @return changes with every binding of this frame and its enclosing frames
+         */
+        long version() {
+            long version = 0;
+            for (Frame frame = this; frame != null; frame = frame.parent)
+                version += frame.bound;
+            return version;
+        }
+
         /**
          * Sets the runtime bounds for this environment
          * 
@@ -108,6 +258,39 @@ public class Jsonata {
             new Timebox(this, timeout, maxRecursionDepth);
         }
 
+        /**
+         * Sets the runtime bounds for this environment
+         * 
+         * @param timeout Timeout in millis
+         * @param maxRecursionDepth Max recursion depth
+         * @param cpuTime Measure the timeout in CPU time of the evaluating thread
+         */
+        public void setRuntimeBounds(long timeout, int maxRecursionDepth, boolean cpuTime) {
+            new Timebox(this, timeout, maxRecursionDepth, cpuTime);
+        }
+
+        /**
+         * Bounds the depth of nested lambda calls instead of the stack of the evaluating thread:
+         * every 256 nested calls, the evaluation continues on a thread with a 4 MB stack
+         * 
+         * @param maxDepth Max depth of nested lambda calls
+         */
+        public void setStackBounds(int maxDepth) {
+            setStackBounds(maxDepth, 256, 4L << 20);
+        }
+
+        /**
+         * Bounds the depth of nested lambda calls instead of the stack of the evaluating thread
+         * (see StackSegments)
+         * 
+         * @param maxDepth Max depth of nested lambda calls
+         * @param segmentDepth Nested lambda calls per stack segment (lower for threads with small stacks)
+         * @param segmentSize Stack size of a segment in bytes
+         */
+        public void setStackBounds(int maxDepth, int segmentDepth, long segmentSize) {
+            new StackSegments(this, maxDepth, segmentDepth, segmentSize);
+        }
+
         public void setEvaluateEntryCallback(EntryCallback cb) {
             bind("__evaluate_entry", cb);
         }
@@ -128,17 +311,22 @@ public class Jsonata {
      */
     Object evaluate(Symbol expr, Object input, Frame environment) {
         // Thread safety:
-        // Make sure each evaluate is executed on an instance per thread
-        Jsonata _this = getPerThreadInstance();
-        // Save and restore the evaluation context so that nested
+        // the state of the evaluation is kept in the context of its frames
+        EvaluationContext context = environment.context;
+        // Save and restore the current input and environment so that nested
         // evaluations (e.g. $eval()) see the correct context.        
-        Object _input = _this.input;
-        Frame _environment = _this.environment;
+        Object _input = context.input;
+        Frame _environment = context.environment;
         try {
-          return _this._evaluate(expr, input, environment);
+          // run the compiled node unless this evaluation uses the reference interpreter
+          if (!context.interpret && expr.compiled!=null)
+              return expr.compiled.evaluate(this, input, environment);
+          if (expr.hoist >= 0)
+              return evaluateInvariant(expr, null, input, environment);
+          return _evaluate(expr, input, environment);
         } finally {
-            _this.input = _input;
-            _this.environment = _environment;
+            context.input = _input;
+            context.environment = _environment;
         }
     }
 
@@ -147,16 +335,68 @@ public class Jsonata {
 
         // Store the current input + environment
         // This is required by Functions.functionEval for current $eval() input context
-        this.input = input;
-        this.environment = environment;
+        EvaluationContext context = environment.context;
+        context.input = input;
+        context.environment = environment;
 
         if (parser.dbg) System.out.println("eval expr="+expr+" type="+expr.type);//+" input="+input);
 
-        var entryCallback = environment.lookup("__evaluate_entry");
-        if(entryCallback!=null) {
-            ((EntryCallback)entryCallback).callback(expr, input, environment);
+        if(context.entryCallback!=null) {
+            context.entryCallback.callback(expr, input, environment);
         }
+
+        if(context.timebox!=null) {
+            context.timebox.tick();
+        }
+ 
+        result = evaluateSymbol(expr, input, environment);
+ 
+        if (expr.predicate!=null)
+            for(var ii = 0; ii < expr.predicate.size(); ii++) {
+                result = /* await */ evaluateFilter(expr.predicate.get(ii).expr, result, environment);
+            }
  
+        if (!expr.type.equals("path") && expr.group!=null) {
+            result = /* await */ evaluateGroupExpression(expr.group, result, environment);
+        }
+ 
+        if(context.exitCallback!=null) {
+            context.exitCallback.callback(expr, input, environment, result);
+        }
+        
+        return mangle(result, expr.keepArray);
+    }
+
+    /**
+     * Evaluate a loop invariant sub expression (see Parser.hoist). The value is reused
+     * while the expression is evaluated in the same frames and none of them has been bound since
+     * @param node - compiled node of the expression (null = interpret)
+     */
+    Object evaluateInvariant(Symbol expr, Compiler.Node node, Object input, Frame environment) {
+        Frame frame = environment;
+        for (int i = 0; i < expr.hoist && frame.parent != null; i++)
+            frame = frame.parent;
+        long version = frame.version();
+        Object[] cached = environment.context.invariant(expr);
+        if (cached[0] == frame && (long) cached[1] == version)
+            return cached[2];
+        Object result = node != null ? node.evaluate(this, input, environment) : _evaluate(expr, input, environment);
+        cached[0] = frame;
+        cached[1] = version;
+        cached[2] = result;
+        return result;
+    }
+
+    /**
+     * Evaluate the expression according to its type, without applying
+     * predicates, grouping or sequence mangling
+     * @param {Object} expr - JSONata expression
+     * @param {Object} input - Input data to evaluate against
+     * @param {Object} environment - Environment
+     * @returns {*} Evaluated input data
+     */
+    Object evaluateSymbol(Symbol expr, Object input, Frame environment) {
+        Object result = null;
         if (expr.type!=null)
         switch (expr.type) {
             case "path":
@@ -178,10 +418,10 @@ public class Jsonata {
                 result = evaluateLiteral(expr); //, input, environment);
                 break;
             case "wildcard":
-                result = evaluateWildcard(expr, input); //, environment);
+                result = evaluateWildcard(expr, input, environment);
                 break;
             case "descendant":
-                result = evaluateDescendants(expr, input); //, environment);
+                result = evaluateDescendants(expr, input, environment);
                 break;
             case "parent":
                 result = environment.lookup(expr.slot.label);
@@ -217,25 +457,19 @@ public class Jsonata {
                 result = evaluateTransformExpression(expr, input, environment);
                 break;
         }
- 
-        if (expr.predicate!=null)
-            for(var ii = 0; ii < expr.predicate.size(); ii++) {
-                result = /* await */ evaluateFilter(expr.predicate.get(ii).expr, result, environment);
-            }
- 
-        if (!expr.type.equals("path") && expr.group!=null) {
-            result = /* await */ evaluateGroupExpression(expr.group, result, environment);
-        }
- 
-        var exitCallback = environment.lookup("__evaluate_exit");
-        if(exitCallback!=null) {
-            ((ExitCallback)exitCallback).callback(expr, input, environment, result);
-        }
-        
-        // mangle result (list of 1 element -> 1 element, empty list -> null)
+        return result;
+    }
+
+    /**
+     * mangle result (list of 1 element -> 1 element, empty list -> null)
+     * @param {Object} result - Evaluated result
+     * @param {boolean} keepArray - flag singleton arrays to be kept
+     * @returns {*} Mangled result
+     */
+    static Object mangle(Object result, boolean keepArray) {
         if(result!=null && Utils.isSequence(result) && !((JList)result).tupleStream) {
             JList _result = (JList)result;
-            if(expr.keepArray) {
+            if(keepArray) {
                 _result.keepSingleton = true;
             }
             if(_result.isEmpty()) {
@@ -271,8 +505,16 @@ public class Jsonata {
         var isTupleStream = false;
         List<Map> tupleBindings = null;
 
+        // continue after the prefix shared with other paths if it was evaluated against this input
+        Object[] prefix = expr.cse != null ? environment.context.prefix(expr.cse) : null;
+        int first = 0;
+        if (prefix != null && prefix[0] == input) {
+            inputSequence = (List)prefix[1];
+            first = expr.cseSteps;
+        }
+
         // evaluate each step in turn
-        for(var ii = 0; ii < expr.steps.size(); ii++) {
+        for(var ii = first; ii < expr.steps.size(); ii++) {
             var step = expr.steps.get(ii);
 
             if(step.tuple!=null) {
@@ -298,6 +540,11 @@ public class Jsonata {
                     inputSequence = (List)resultSequence;
             }
 
+            if (prefix != null && ii == expr.cseSteps - 1) {
+                prefix[0] = input;
+                prefix[1] = inputSequence;
+            }
+
         }
 
         if(isTupleStream) {
@@ -360,6 +607,7 @@ public class Jsonata {
 
         result = Utils.createSequence();
 
+        environment.context.loops += ((List)input).size();
         for(var ii = 0; ii < ((List)input).size(); ii++) {
             var res = /* await */ evaluate(expr, ((List)input).get(ii), environment);
             if(expr.stages!=null) {
@@ -519,8 +767,13 @@ public class Jsonata {
                     results.add(item);
                 }
             }
+        } else if (predicate.literal instanceof List && Utils.isArrayOfNumbers(predicate.literal)) {
+            selectIndexes((List)predicate.literal, (List)input, results);
         } else {
-            for (int index = 0; index < ((List)input).size(); index++) {
+            environment.context.loops += ((List)input).size();
+            // stop once a following positional predicate has all the matches it can select
+            int limit = predicate.limit > 0 ? predicate.limit : Integer.MAX_VALUE;
+            for (int index = 0; index < ((List)input).size() && results.size() < limit; index++) {
                 var item = ((List)input).get(index);
                 var context = item;
                 var env = environment;
@@ -552,6 +805,33 @@ public class Jsonata {
         return results;
     }
  
+    /**
+     * Filter with a constant array of indexes (e.g. [[0..9]]): selects the items at
+     * the indexes instead of evaluating the predicate against every item
+     * @param indexes - indexes (negative indexes count in from the end of the input)
+     * @param input - Input data to apply the predicate against
+     * @param results - the selected items are added in the order of the input
+     * @returns results
+     */
+    static List selectIndexes(List indexes, List input, List results) {
+        int[] positions = new int[indexes.size()];
+        int n = 0;
+        for (Object index : indexes) {
+            // round it down
+            var ii = ((Number)index).intValue();
+            if (ii < 0) {
+                // count in from end of array
+                ii = input.size() + ii;
+            }
+            if (0 <= ii && ii < input.size())
+                positions[n++] = ii;
+        }
+        Arrays.sort(positions, 0, n);
+        for (int i = 0; i < n; i++)
+            results.add(input.get(positions[i]));
+        return results;
+    }
+
     /**
      * Evaluate binary expression against input data
     * @param {Object} expr - JSONata expression
@@ -559,68 +839,57 @@ public class Jsonata {
     * @param {Object} environment - Environment
     * @returns {*} Evaluated input data
     */
-    /* async */ Object evaluateBinary(Symbol _expr, Object input, Frame environment) {
-    Infix expr = (Infix)_expr;
+    /* async */ Object evaluateBinary(Symbol expr, Object input, Frame environment) {
         Object result = null;
         var lhs = /* await */ evaluate(expr.lhs, input, environment);
-        String op = ""+expr.value;
-
-        if (op.equals("and") || op.equals("or")) {
-
-        //defer evaluation of RHS to allow short-circuiting
-        var evalrhs = /* async */ new Callable() {
-            public Object call() throws Exception {
-                return evaluate(expr.rhs, input, environment);
-            }
-        };
+        Operator op = expr.operator;
 
+        if (op == Operator.AND || op == Operator.OR) {
+            // short-circuit: the RHS is only evaluated if required
+            boolean lBool = boolize(lhs);
+            if (lBool == (op == Operator.OR))
+                return lBool;
             try {
-                return /* await */ evaluateBooleanExpression(lhs, evalrhs, op);
-            } catch(Exception err) {
-            if (!(err instanceof JException))
-                throw new JException("Unexpected", expr.position);
+                return boolize(/* await */ evaluate(expr.rhs, input, environment));
+            } catch(RuntimeException err) {
+                if (!(err instanceof JException))
+                    throw new JException("Unexpected", expr.position);
                 //err.position = expr.position;
                 //err.token = op;
-                throw (JException)err;
+                throw err;
             }
         }
 
-    var rhs = /* await */ evaluate(expr.rhs, input, environment); //evalrhs();
-    try {
-            switch (op) {
-                case "+":
-                case "-":
-                case "*":
-                case "/":
-                case "%":
-                    result = evaluateNumericExpression(lhs, rhs, op);
-                    break;
-                case "=":
-                case "!=":
-                    result = evaluateEqualityExpression(lhs, rhs, op);
-                    break;
-                case "<":
-                case "<=":
-                case ">":
-                case ">=":
-                    result = evaluateComparisonExpression(lhs, rhs, op);
-                    break;
-                case "&":
-                    result = evaluateStringConcat(lhs, rhs);
-                    break;
-                case "..":
-                    result = evaluateRangeExpression(lhs, rhs);
-                    break;
-                case "in":
-                    result = evaluateIncludesExpression(lhs, rhs);
-                    break;
+        var rhs = /* await */ evaluate(expr.rhs, input, environment); //evalrhs();
+        switch (op) {
+            case ADD:
+            case SUBTRACT:
+            case MULTIPLY:
+            case DIVIDE:
+            case MODULO:
+                result = evaluateNumericExpression(lhs, rhs, op.symbol);
+                break;
+            case EQUAL:
+            case NOT_EQUAL:
+                result = evaluateEqualityExpression(lhs, rhs, op.symbol);
+                break;
+            case LESS:
+            case LESS_EQUAL:
+            case GREATER:
+            case GREATER_EQUAL:
+                result = evaluateComparisonExpression(lhs, rhs, op.symbol);
+                break;
+            case CONCAT:
+                result = evaluateStringConcat(lhs, rhs);
+                break;
+            case RANGE:
+                result = evaluateRangeExpression(lhs, rhs);
+                break;
+            case IN:
+                result = evaluateIncludesExpression(lhs, rhs);
+                break;
             default:
-                throw new JException("Unexpected operator "+op, expr.position);
-            }
-        } catch(Exception err) {
-            //err.position = expr.position;
-            //err.token = op;
-            throw err;
+                throw new JException("Unexpected operator "+expr.value, expr.position);
         }
         return result;
     }
@@ -637,8 +906,12 @@ public class Jsonata {
     /* async */ Object evaluateUnary(Symbol expr, Object input, Frame environment) {
         Object result = null;
 
-        switch ((String)""+expr.value) { // Uli was: expr.value - where is value set???
-            case "-":
+        if (expr.literal != null)
+            // constant array / object constructor: copy the pre-built value
+            return Utils.copy(expr.literal);
+
+        switch (expr.operator) {
+            case NEGATE:
                 result = /* await */ evaluate(expr.expression, input, environment);
                 if (result==null) { //(typeof result === "undefined") {
                     result = null;
@@ -654,7 +927,7 @@ public class Jsonata {
                     );
                 }
                 break;
-            case "[":
+            case ARRAY:
             // array constructor - evaluate each item
             result = new JList<>(); // [];
             int idx = 0;
@@ -662,13 +935,17 @@ public class Jsonata {
                 environment.isParallelCall = idx > 0;
                 Object value = evaluate(item, input, environment);
                 if (value!=null) {
-                    if ((""+item.value).equals("["))
-                        ((List)result).add(value);
-                    else
+                    if (item.operator == Operator.ARRAY || "[".equals(item.value)) {
+                        if (result instanceof JList)
+                            ((List)result).add(value);
+                        else
+                            result = Utils.concatItem((List)result, value);
+                    } else
                         result = Functions.append(result, value);
                 }
                 idx++;
             }
+            Utils.View.track(result, environment.context);
             if(expr.consarray) {
                 if (!(result instanceof JList))
                     result = new JList((List)result);
@@ -676,7 +953,7 @@ public class Jsonata {
                 ((JList)result).cons = true; 
             }
             break;
-            case "{":
+            case OBJECT:
                 // object constructor - apply grouping
                 result = /* await */ evaluateGroupExpression(expr, input, environment);
                 break;
@@ -710,9 +987,10 @@ public class Jsonata {
      * Evaluate wildcard against input data
     * @param {Object} expr - JSONata expression
     * @param {Object} input - Input data to evaluate against
+    * @param {Object} environment - Environment
     * @returns {*} Evaluated input data
     */
-    Object evaluateWildcard(Symbol expr, Object input) {
+    Object evaluateWildcard(Symbol expr, Object input, Frame environment) {
         var results = Utils.createSequence();
         if ((input instanceof JList) && ((JList)input).outerWrapper && ((JList)input).size() > 0) {
             input = ((JList)input).get(0);
@@ -722,60 +1000,42 @@ public class Jsonata {
         // Object.keys(input).forEach(Object (key) {
                 var value = ((Map)input).get(key);
                 if((value instanceof List)) {
-                    value = flatten(value, null);
-                    results = (List)Functions.append(results, value);
-                } else {
+                    results = Utils.concat(results, Utils.flatten((List)value));
+                } else if (results instanceof JList) {
                     results.add(value);
+                } else {
+                    results = Utils.concatItem(results, value);
                 }
             }
         } else if (input instanceof List) {
             // Java: need to handle List separately
             for (Object value : ((List)input)) {
                 if((value instanceof List)) {
-                    value = flatten(value, null);
-                    results = (List)Functions.append(results, value);
-                } else {
+                    results = Utils.concat(results, Utils.flatten((List)value));
+                } else if (results instanceof JList) {
                     results.add(value);
+                } else {
+                    results = Utils.concatItem(results, value);
                 }
             }
         }
 
         // result = normalizeSequence(results);
-        return results;
+        return Utils.View.track(results, environment.context);
     }
 
-    /**
-     * Returns a flattened array
-    * @param {Array} arg - the array to be flatten
-    * @param {Array} flattened - carries the flattened array - if not defined, will initialize to []
-    * @returns {Array} - the flattened array
-    */
-    Object flatten(Object arg, List flattened) {
-        if(flattened == null) {
-            flattened = new ArrayList<>();
-        }
-        if(arg instanceof List) {
-            for (Object item : ((List)arg)) {
-                flatten(item, flattened);
-            }
-        } else {
-            flattened.add(arg);
-        }
-        return flattened;
-    }
- 
     /**
      * Evaluate descendants against input data
     * @param {Object} expr - JSONata expression
     * @param {Object} input - Input data to evaluate against
     * @returns {*} Evaluated input data
     */
-    Object evaluateDescendants(Symbol expr, Object input) {
+    Object evaluateDescendants(Symbol expr, Object input, Frame environment) {
         Object result = null;
         var resultSequence = Utils.createSequence();
         if (input != null) {
             // traverse all descendants of this object/array
-            recurseDescendants(input, resultSequence);
+            recurseDescendants(input, resultSequence, environment.context, 0);
             if (resultSequence.size() == 1) {
                 result = resultSequence.get(0);
             } else {
@@ -789,20 +1049,28 @@ public class Jsonata {
      * Recurse through descendants
     * @param {Object} input - Input data
     * @param {Object} results - Results
+    * @param level - levels of the input on the current stack segment (see StackSegments.full)
     */
-    void recurseDescendants(Object input, List results) {
+    void recurseDescendants(Object input, List results, EvaluationContext context, int level) {
+        if (StackSegments.full(context, level)) {
+            context.stack.segment(context, () -> {
+                recurseDescendants(input, results, context, 0);
+                return null;
+            });
+            return;
+        }
         // this is the equivalent of //* in XPath
         if (!(input instanceof List)) {
             results.add(input);
         }
         if (input instanceof List) {
             for (Object member : ((List)input)) { //input.forEach(Object (member) {
-                    recurseDescendants(member, results);
+                    recurseDescendants(member, results, context, level + 1);
             }
         } else if (input != null && input instanceof Map) {
             //Object.keys(input).forEach(Object (key) {
             for (Object key : ((Map)input).keySet()) {
-                    recurseDescendants(((Map)input).get(key), results);
+                    recurseDescendants(((Map)input).get(key), results, context, level + 1);
             }
         }
     }
@@ -815,8 +1083,6 @@ public class Jsonata {
      * @returns {*} Result
      */
     Object evaluateNumericExpression(Object _lhs, Object _rhs, String op) {
-        double result = 0;
-
         if (_lhs!=null && !Utils.isNumeric(_lhs)) {
             throw new JException("T2001", -1,
             op, _lhs
@@ -833,28 +1099,8 @@ public class Jsonata {
             return null;
         }
 
-        //System.out.println("op22 "+op+" "+_lhs+" "+_rhs);
-        double lhs = ((Number)_lhs).doubleValue();
-        double rhs = ((Number)_rhs).doubleValue();
-
-        switch (op) {
-            case "+":
-                result = lhs + rhs;
-                break;
-            case "-":
-                result = lhs - rhs;
-                break;
-            case "*":
-                result = lhs * rhs;
-                break;
-            case "/":
-                result = lhs / rhs;
-                break;
-            case "%":
-                result = lhs % rhs;
-                break;
-        }
-        return Utils.convertNumber(result);
+        // integral operands are computed on long (see Numbers)
+        return Numbers.arithmetic(_lhs, _rhs, op.charAt(0));
     }
  
      /**
@@ -867,11 +1113,7 @@ public class Jsonata {
     Object evaluateEqualityExpression(Object lhs, Object rhs, String op) {
         Object result = null;
 
-        // type checks
-        var ltype = lhs!=null ? lhs.getClass().getSimpleName() : null;
-        var rtype = rhs!=null ? rhs.getClass().getSimpleName() : null;
-
-        if (ltype == null || rtype == null) {
+        if (lhs == null || rhs == null) {
             // if either side is undefined, the result is false
             return false;
         }
@@ -994,29 +1236,6 @@ public class Jsonata {
         return result;
     }
  
-    /**
-     * Evaluate boolean expression against input data
-     * @param {Object} lhs - LHS value
-     * @param {Function} evalrhs - Object to evaluate RHS value
-     * @param {Object} op - opcode
-     * @returns {*} Result
-     */
-    /* async */ Object evaluateBooleanExpression(Object lhs, Callable evalrhs, String op) throws Exception {
-        Object result = null;
-
-        var lBool = boolize(lhs);
-
-        switch (op) {
-            case "and":
-                result = lBool && boolize(/* await */ evalrhs.call());
-                break;
-            case "or":
-                result = lBool || boolize(/* await */ evalrhs.call());
-                break;
-        }
-        return result;
-    }
-
     public static boolean boolize(Object value) {
         var booledValue = Functions.toBoolean(value);
         return booledValue == null ? false : booledValue;
@@ -1102,7 +1321,7 @@ public class Jsonata {
                         }
 
                         // append it as an array
-                        groups.get(key).data = Functions.append(groups.get(key).data, item);
+                        groups.get(key).data = Utils.View.track(Functions.append(groups.get(key).data, item), environment.context);
                     } else {
                         groups.put(key, entry);
                     }
@@ -1118,7 +1337,7 @@ public class Jsonata {
             var context = entry.data;
             var env = environment;
             if (reduce) {
-                var tuple = reduceTupleStream(entry.data);
+                var tuple = reduceTupleStream(entry.data, environment.context);
                 context = ((Map)tuple).get("@");
                 ((Map)tuple).remove("@");
                 env = createFrameFromTuple(environment, (Map)tuple);
@@ -1142,7 +1361,7 @@ public class Jsonata {
         return result;
     }
 
-    Object reduceTupleStream(Object _tupleStream) {
+    Object reduceTupleStream(Object _tupleStream, EvaluationContext context) {
         if(!(_tupleStream instanceof List)) {
             return _tupleStream;
         }
@@ -1159,7 +1378,7 @@ public class Jsonata {
 
 //             for(const prop in tupleStream[ii]) {
 
-            result.put(prop, Functions.append(result.get(prop), el.get(prop)));
+            result.put(prop, Utils.View.track(Functions.append(result.get(prop), el.get(prop)), context));
 
 //               result[prop] = fn.append(result[prop], tupleStream[ii][prop]);
             }
@@ -1229,7 +1448,7 @@ public class Jsonata {
         // The RHS is the expression to evaluate
         // The LHS is the name of the variable to bind to - should be a VARIABLE token (enforced by parser)
         var value = /* await */ evaluate(expr.rhs, input, environment);
-        environment.bind(""+expr.lhs.value, value);
+        environment.bind(expr.lhs, value);
         return value;
     }
  
@@ -1261,8 +1480,8 @@ public class Jsonata {
     /* async */ Object evaluateBlock(Symbol expr, Object input, Frame environment) {
         Object result = null;
         // create a new frame to limit the scope of variable assignments
-        // TODO, only do this if the post-parse stage has flagged this as required
-        var frame = createFrame(environment);
+        // (unless the parser has found that the block binds nothing)
+        var frame = expr.frameless ? environment : createFrame(environment, expr.scope);
         // invoke each expression in turn
         // only return the result of the last one
         for(var ex : expr.expressions) {
@@ -1297,6 +1516,10 @@ public class Jsonata {
         if (expr.value.equals("")) {
         // Empty string == "$" !
             result = input instanceof JList && ((JList)input).outerWrapper ? ((JList)input).get(0) : input;
+        } else if (expr.frameDepth >= 0) {
+            result = environment.lookup(expr.frameDepth, expr.frameSlot, (String)expr.value);
+        } else if (expr.global) {
+            result = environment.lookupGlobal((String)expr.value);
         } else  {
             result = environment.lookup((String)expr.value);
             if (parser.dbg) System.out.println("variable name="+expr.value+" val="+result);
@@ -1500,16 +1723,6 @@ public class Jsonata {
         return new JFunction(transformer, "<(oa):o>");
     }
  
-    static Symbol chainAST; // = new Parser().parse("function($f, $g) { function($x){ $g($f($x)) } }");
- 
-    static Symbol chainAST() {
-        if (chainAST==null) {
-            // only create on demand
-            chainAST = new Parser().parse("function($f, $g) { function($x){ $g($f($x)) } }");
-        }
-        return chainAST;
-    }
-
      /**
       * Apply the Object on the RHS using the sequence on the LHS as the first argument
       * @param {Object} expr - JSONata expression
@@ -1542,9 +1755,7 @@ public class Jsonata {
             if(isFunctionLike(lhs)) {
                 // this is Object chaining (func1 ~> func2)
                 // λ($f, $g) { λ($x){ $g($f($x)) } }
-                var chain = /* await */ evaluate(chainAST(), null, environment);
-                List args = new ArrayList<>(); args.add(lhs); args.add(func); // == [lhs, func]
-                result = /* await */ apply(chain, args, null, environment);
+                result = Composition.compose(lhs, func);
             } else {
                 List args = new ArrayList<>(); args.add(lhs); // == [lhs]
                 result = /* await */ apply(func, args, null, environment);
@@ -1559,29 +1770,6 @@ public class Jsonata {
         return Utils.isFunction(o) || Functions.isLambda(o) || (o instanceof Pattern);
     }
      
-    final static ThreadLocal<Jsonata> current = new ThreadLocal<>();
-
-    /**
-     * Returns a per thread instance of this parsed expression.
-     * 
-     * @return
-     */
-    Jsonata getPerThreadInstance() {
-        Jsonata threadInst = current.get();
-        // Fast path
-        if (threadInst!=null)
-            return threadInst;
-
-        synchronized(this) {
-            threadInst = current.get();
-            if (threadInst==null) {
-                threadInst = new Jsonata(this);
-                current.set(threadInst);
-            }
-            return threadInst;
-        }
-    }
-
      /**
       * Evaluate Object against input data
       * @param {Object} expr - JSONata expression
@@ -1592,8 +1780,6 @@ public class Jsonata {
      /* async */ Object evaluateFunction(Symbol expr, Object input, Frame environment, Object applytoContext) {
          Object result = null;
 
-         // this.current is set by getPerThreadInstance() at this point
- 
          // create the procedure
          // can"t assume that expr.procedure is a lambda type directly
          // could be an expression that evaluates to a Object (e.g. variable reference, parens expr etc.
@@ -1610,6 +1796,13 @@ public class Jsonata {
              );
          }
  
+        // aggregates of a path consume the results of the path as they are produced
+        if (applytoContext == Utils.NONE) {
+            result = LazySequence.aggregate(this, proc, expr, input, environment);
+            if (result != Utils.NONE)
+                return result;
+        }
+
         List<Object> evaluatedArgs = new ArrayList();
 
          if (applytoContext != Utils.NONE) {
@@ -1650,7 +1843,9 @@ public class Jsonata {
                  ((Symbol)proc).token = procName;
                  ((Symbol)proc).position = expr.position;
              }
-             result = /* await */ apply(proc, evaluatedArgs, input, environment);
+             // built-in higher order function with a literal lambda: run the fused loop
+             if (!expr.fuse || (result = FusedLoop.apply(this, proc, evaluatedArgs, input, environment)) == Utils.NONE)
+                 result = /* await */ apply(proc, evaluatedArgs, input, environment);
          } catch (JException jex) {
             if (jex.location<0) {
                 // add the position field to the error
@@ -1680,27 +1875,74 @@ public class Jsonata {
       * @returns {*} Result of procedure
       */
     /* async */ Object apply(Object proc, Object args, Object input, Object environment) {
-        var result = /* await */ applyInner(proc, args, input, environment);
-        while(Functions.isLambda(result) && ((Symbol)result).thunk == true) {
-            // trampoline loop - this gets invoked as a result of tail-call optimization
-            // the Object returned a tail-call thunk
-            // unpack it, evaluate its arguments, and apply the tail call
-            var next = /* await */ evaluate(((Symbol)result).body.procedure, ((Symbol)result).input, ((Symbol)result).environment);
-            if(((Symbol)result).body.procedure.type == "variable") {
-                if (next instanceof Symbol) // Java: not if JFunction
-                    ((Symbol)next).token = ((Symbol)result).body.procedure.value;
-                }
-                if (next instanceof Symbol) // Java: not if JFunction
-                ((Symbol)next).position = ((Symbol)result).body.procedure.position;
-                var evaluatedArgs = new ArrayList<>();
-                for(var ii = 0; ii < ((Symbol)result).body.arguments.size(); ii++) {
-                    evaluatedArgs.add(/* await */ evaluate(((Symbol)result).body.arguments.get(ii), ((Symbol)result).input, ((Symbol)result).environment));
-            }
+        return trampoline(/* await */ applyInner(proc, args, input, environment), input, environment);
+    }
 
+    /**
+     * Applies the tail calls returned by a procedure
+     * @param result - result of the procedure (TAIL_CALL for a tail call)
+     * @return the result of the last call
+     */
+    Object trampoline(Object result, Object input, Object environment) {
+        while(result == TAIL_CALL) {
+            // trampoline loop - this gets invoked as a result of tail-call optimization
+            // the procedure returned a tail call (see tailCall): apply it
+            var context = context(environment);
+            var next = context.tailProcedure;
+            var evaluatedArgs = context.tailArguments;
+            context.tailProcedure = null;
+            context.tailArguments = null;
             result = /* await */ applyInner(next, evaluatedArgs, input, environment);
         }
         return result;
     }
+
+    /**
+     * @return the arguments with the views created by the evaluation replaced by lists,
+     * which a function implemented outside of the library can modify (see Utils.View)
+     */
+    static Object materialize(Object args, Object environment) {
+        EvaluationContext context = context(environment);
+        return context.views ? Utils.convert(args, false, context, 0) : args;
+    }
+
+    /**
+     * @param environment - environment of the caller
+     * @return the context of the evaluation the caller belongs to
+     */
+    static EvaluationContext context(Object environment) {
+        if (environment instanceof Frame && ((Frame)environment).context != null)
+            return ((Frame)environment).context;
+        return EvaluationContext.current();
+    }
+
+    /**
+     * Result of a lambda body that ends with a tail call. The procedure and its
+     * evaluated arguments are passed in tailProcedure / tailArguments
+     */
+    static final Object TAIL_CALL = new Object();
+
+    /**
+     * Evaluates the procedure and arguments of a tail call (replaces the thunk)
+     * @param call - function call in tail position
+     * @return TAIL_CALL
+     */
+    Object tailCall(Symbol call, Object input, Frame environment) {
+        var next = /* await */ evaluate(call.procedure, input, environment);
+        if(call.procedure.type == "variable") {
+            if (next instanceof Symbol) // Java: not if JFunction
+                ((Symbol)next).token = call.procedure.value;
+        }
+        if (next instanceof Symbol) // Java: not if JFunction
+            ((Symbol)next).position = call.procedure.position;
+        var evaluatedArgs = new ArrayList<>(call.arguments.size());
+        for(var ii = 0; ii < call.arguments.size(); ii++) {
+            evaluatedArgs.add(/* await */ evaluate(call.arguments.get(ii), input, environment));
+        }
+        environment.context.tailProcedure = next;
+        environment.context.tailArguments = evaluatedArgs;
+        return TAIL_CALL;
+    }
  
      /**
       * Apply procedure or function
@@ -1719,7 +1961,7 @@ public class Jsonata {
              }
  
              if (Functions.isLambda(proc)) {
-                 result = /* await */ applyProcedure(proc, validatedArgs);
+                 result = /* await */ applyProcedure(proc, validatedArgs, environment);
              } /* FIXME: need in Java??? else if (proc && proc._jsonata_Object == true) {
                  var focus = {
                      environment: environment,
@@ -1748,13 +1990,18 @@ public class Jsonata {
                     //validatedArgs = null;
                 }
 
+                if (((JFunction)proc).external())
+                    validatedArgs = materialize(validatedArgs, environment);
                  result = ((JFunction)proc).call(input, (List)validatedArgs);
+                 // e.g. $reverse and $append return views
+                 if (result instanceof Utils.View)
+                    context(environment).views = true;
                 //  if (isPromise(result)) {
                 //      result = /* await */ result;
                 //  }
              } else if (proc instanceof JLambda) {
                 // System.err.println("Lambda "+proc);
-                List _args = (List)validatedArgs;
+                List _args = (List)materialize(validatedArgs, environment);
                 if (proc instanceof Fn0) {
                     result = ((Fn0)proc).get();
                 } else if (proc instanceof Fn1) {
@@ -1818,6 +2065,9 @@ public class Jsonata {
       * @returns {{lambda: boolean, input: *, environment: *, arguments: *, body: *}} Evaluated input data
       */
     Object evaluateLambda(Symbol expr, Object input, Frame environment) {
+        if(expr.thunk == true)
+            return tailCall(expr.body, input, environment);
+
         // make a Object (closure)
         var procedure = parser.new Symbol();
         
@@ -1827,9 +2077,8 @@ public class Jsonata {
         procedure.arguments = expr.arguments;
         procedure.signature = expr.signature;
         procedure.body = expr.body;
-        
-        if(expr.thunk == true)
-                procedure.thunk = true;
+        procedure.scope = expr.scope;
+        procedure.reuseFrame = expr.reuseFrame;
         
         // procedure.apply = /* async */ function(self, args) {
         //     return /* await */ apply(procedure, args, input, !!self ? self.environment : environment);
@@ -1867,9 +2116,9 @@ public class Jsonata {
             );
         }
         if (Functions.isLambda(proc)) {
-            result = partialApplyProcedure((Symbol)proc, (List)evaluatedArgs);
+            result = partialApplyProcedure((Symbol)proc, (List)evaluatedArgs, environment);
         } else if (Utils.isFunction(proc)) {
-            result = partialApplyNativeFunction((JFunction)proc /*.implementation*/, evaluatedArgs);
+            result = partialApplyNativeFunction((JFunction)proc /*.implementation*/, evaluatedArgs, environment);
     //  } else if (typeof proc === "function") {
     //      result = partialApplyNativeFunction(proc, evaluatedArgs);
         } else {
@@ -1905,36 +2154,87 @@ public class Jsonata {
       * Apply procedure
       * @param {Object} proc - Procedure
       * @param {Array} args - Arguments
+      * @param {Object} environment - Environment of the caller
       * @returns {*} Result of procedure
       */
-    /* async */ Object applyProcedure(Object _proc, Object _args) {
+    /* async */ Object applyProcedure(Object _proc, Object _args, Object environment) {
         List args = (List)_args;
         Symbol proc = (Symbol)_proc;
         Object result = null;
-        var env = createFrame(proc.environment);
-        for (int i=0; i<proc.arguments.size(); i++) {
-            if (i>=args.size()) break;
-            env.bind(""+proc.arguments.get(i).value, args.get(i));
-        }
+        var env = createFrame(proc.environment, proc.scope);
+        // the lambda runs in the evaluation of the caller
+        env.context = context(environment);
+        bindArguments(proc, args, env);
         if (proc.body instanceof Symbol) {
-            result = evaluate(proc.body, proc.input, env);
+            result = invoke(proc, env);
         } else throw new Error("Cannot execute procedure: "+proc+" "+proc.body);
         //  if (typeof proc.body === "function") {
         //      // this is a lambda that wraps a native Object - generated by partially evaluating a native
         //      result = /* await */ applyNativeFunction(proc.body, env);
         return result;
     }
+
+    /**
+     * Evaluates the body of a lambda in its frame (on a new stack segment if the current one is full)
+     */
+    Object invoke(Symbol proc, Frame env) {
+        StackSegments stack = env.context.stack;
+        if (stack == null)
+            return invokeBody(proc, env);
+        return stack.call(env.context, () -> invokeBody(proc, env));
+    }
+
+    Object invokeBody(Symbol proc, Frame env) {
+        Timebox timebox = env.context.timebox;
+        if (timebox == null)
+            return evaluateBody(proc, env);
+        timebox.enter();
+        try {
+            return evaluateBody(proc, env);
+        } finally {
+            timebox.exit();
+        }
+    }
+
+    /**
+     * Evaluates the body of a lambda. Self tail calls of lambdas whose frame
+     * cannot be captured rebind the arguments in the same frame and loop
+     * (other tail calls are returned to the trampoline in apply)
+     */
+    Object evaluateBody(Symbol proc, Frame env) {
+        var result = evaluate(proc.body, proc.input, env);
+        var context = env.context;
+        while (result == TAIL_CALL && context.tailProcedure == proc && proc.reuseFrame && proc.signature == null) {
+            if (context.timebox != null)
+                context.timebox.tick();
+            List args = context.tailArguments;
+            context.tailProcedure = null;
+            context.tailArguments = null;
+            env.reset();
+            bindArguments(proc, args, env);
+            result = evaluate(proc.body, proc.input, env);
+        }
+        return result;
+    }
+
+    static void bindArguments(Symbol proc, List args, Frame env) {
+        for (int i=0; i<proc.arguments.size(); i++) {
+            if (i>=args.size()) break;
+            env.bind(proc.arguments.get(i), args.get(i));
+        }
+    }
  
      /**
       * Partially apply procedure
       * @param {Object} proc - Procedure
       * @param {Array} args - Arguments
+      * @param {Object} environment - Environment
       * @returns {{lambda: boolean, input: *, environment: {bind, lookup}, arguments: Array, body: *}} Result of partially applied procedure
       */
-    Object partialApplyProcedure(Symbol proc, List<Symbol> args) {
+    Object partialApplyProcedure(Symbol proc, List<Symbol> args, Frame environment) {
         // create a closure, bind the supplied parameters and return a Object that takes the remaining (?) parameters
         // Note Uli: if no env, bind to default env so the native functions can be found
-        var env = createFrame(proc.environment!=null ? proc.environment : this.environment);
+        var env = createFrame(proc.environment!=null ? proc.environment : environment);
         var unboundArgs = new ArrayList<Symbol>();
         int index = 0;
         for (var param : proc.arguments) {
@@ -1953,6 +2253,7 @@ public class Jsonata {
         procedure.environment = env;
         procedure.arguments = unboundArgs;
         procedure.body = proc.body;
+        procedure.scope = proc.scope;
 
         return procedure;
     }
@@ -1961,9 +2262,15 @@ public class Jsonata {
       * Partially apply native function
       * @param {Function} native - Native function
       * @param {Array} args - Arguments
+      * @param {Object} environment - Environment
       * @returns {{lambda: boolean, input: *, environment: {bind, lookup}, arguments: Array, body: *}} Result of partially applying native function
       */
-    Object partialApplyNativeFunction(JFunction _native, List args) {
+    /**
+     * Lambdas wrapping the native functions that are partially applied, by body
+     */
+    final Map<String, Symbol> partials = new ConcurrentHashMap<>();
+
+    Object partialApplyNativeFunction(JFunction _native, List args, Frame environment) {
         // create a lambda Object that wraps and invokes the native function
         // get the list of declared arguments from the native function
         // this has to be picked out from the toString() value
@@ -1993,10 +2300,19 @@ public class Jsonata {
         //  }).toList();
         //  var body = "function(" + String.join(", ", sigArgs) + "){ _ }";
 
-        var bodyAST = parser.parse(body);
+        // the parser of this thread (the expression may be evaluated on several threads),
+        // the body is evaluated in the frames of the caller
+        var bodyAST = partials.computeIfAbsent(body, b -> getParser().parse(b, null, null, true));
         //bodyAST.body = _native;
 
-        var partial = partialApplyProcedure(bodyAST, (List)args);
+        var partial = (Symbol) partialApplyProcedure(bodyAST, (List)args, environment);
+        // the arguments bound by the partial application: a composition calls the native function directly
+        partial.partialNative = _native;
+        partial.partialArgs = new ArrayList<>();
+        for (int i=0; i<_native.getNumberOfArgs(); i++) {
+            Object arg = i<args.size() ? args.get(i) : null;
+            partial.partialArgs.add(arg instanceof Symbol && "?".equals(((Symbol)arg).value) ? null : arg);
+        }
         return partial;
     }
  
@@ -2123,6 +2439,15 @@ public class Jsonata {
         //  };
     }
 
+    /**
+     * Create frame with slots for the variables of a block or lambda
+     * @param enclosingEnvironment - enclosing frame
+     * @param scope - names of the slots (null for a frame without slots)
+     */
+    Frame createFrame(Frame enclosingEnvironment, String[] scope) {
+        return new Frame(enclosingEnvironment, scope);
+    }
+
     public static interface JLambda {
     }
 
@@ -2260,6 +2585,13 @@ public class Jsonata {
                 return args;
         }
 
+        /**
+         * @return true if the function is not a built-in function, i.e. it may modify its arguments
+         */
+        boolean external() {
+            return method != null ? method.getDeclaringClass() != Functions.class : function != null;
+        }
+
         public int getNumberOfArgs() {
             return method != null ? method.getParameterTypes().length : 0;
         }
@@ -2484,8 +2816,12 @@ public class Jsonata {
     List<Exception> errors;
     Frame environment;
     Symbol ast;
-    long timestamp;
-    Object input;
+
+    /**
+     * Variables of the root frame of an evaluation: the input and the parameters of a prepared expression
+     */
+    final String[] root;
+    static final String[] ROOT = {"$"};
 
     static {
         staticFrame = new Frame(null);
@@ -2499,16 +2835,76 @@ public class Jsonata {
       * @throws JException An exception if an error occured.
       */
     public static Jsonata jsonata(String expression) {
-        return new Jsonata(expression);
+        return new Jsonata(expression, true);
+    }
+
+     /**
+      * JSONata
+      * @param {Object} expr - JSONata expression
+      * @param optimize - fold constant sub expressions and remove dead code
+      *                   (disable to see every sub expression in the evaluation callbacks)
+      * @returns Evaluated expression
+      * @throws JException An exception if an error occured.
+      */
+    public static Jsonata jsonata(String expression, boolean optimize) {
+        return new Jsonata(expression, optimize);
+    }
+
+     /**
+      * Prepared expression with positional parameters. The references to the parameters
+      * are resolved when the expression is parsed, the values are passed per evaluation
+      * without creating a bindings frame:
+      * 
+      * <pre>
+      * var expr = Jsonata.prepare("items[price > $min].name", "min");
+      * expr.evaluate(input, 10);
+      * </pre>
+      * 
+      * @param expression - JSONata expression
+      * @param parameters - names of the parameters (without $)
+      * @returns Prepared expression
+      * @throws JException An exception if an error occured.
+      */
+    public static PreparedExpression prepare(String expression, String... parameters) {
+        String[] root = new String[parameters.length + 1];
+        root[0] = "$";
+        for (int i = 0; i < parameters.length; i++) {
+            if (parameters[i] == null || parameters[i].isEmpty() || Arrays.asList(root).contains(parameters[i]))
+                throw new IllegalArgumentException("Invalid or duplicate parameter: " + parameters[i]);
+            root[i + 1] = parameters[i].intern();
+        }
+        return new PreparedExpression(new Jsonata(expression, true, root));
     }
 
     /**
      * Internal constructor
      * @param expr
      */
-    Jsonata(String expr) { // boolean optionsRecover) {
+    Jsonata(String expr) {
+        this(expr, true);
+    }
+
+    /**
+     * Internal constructor
+     * @param expr
+     * @param optimize
+     */
+    Jsonata(String expr, boolean optimize) { // boolean optionsRecover) {
+        this(expr, optimize, ROOT);
+    }
+
+    /**
+     * Internal constructor
+     * @param expr
+     * @param optimize
+     * @param root - variables of the root frame: "$" and the parameters of a prepared expression
+     *               (null = "$", the expression is evaluated in the frames of its caller, see $eval)
+     */
+    Jsonata(String expr, boolean optimize, String[] root) {
+        this.root = root != null ? root : ROOT;
+        environment = createFrame(staticFrame);
         try {
-            ast = parser.parse(expr);//, optionsRecover);
+            ast = parser.parse(expr, optimize ? this::evaluateConstant : null, this.root.length > 1 ? this.root : null, root == null);//, optionsRecover);
             errors = ast.errors;
             ast.errors = null; //delete ast.errors;
         } catch(JException err) {
@@ -2516,9 +2912,6 @@ public class Jsonata {
             //populateMessage(err); // possible side-effects on `err`
             throw err;
         }
-        environment = createFrame(staticFrame);
-
-        timestamp = System.currentTimeMillis(); // will be overridden on each call to evalute()
 
         // Note: now and millis are implemented in Functions
         //  environment.bind("now", defineFunction(function(picture, timezone) {
@@ -2535,20 +2928,254 @@ public class Jsonata {
         //      jsonata.RegexEngine = RegExp;
         //  }
 
-        // Set instance for this thread
-        current.set(this);
+        // Note: the expression is not modified by evaluations,
+        // their state is kept in an EvaluationContext
+    }
+
+    /**
+     * Evaluates a constant sub expression at parse time (optimizer)
+     */
+    Object evaluateConstant(Symbol expr) {
+        // evaluated in a context of its own, without callbacks / bounds
+        // (the expression may be parsed during an evaluation)
+        var context = new EvaluationContext(this, System.currentTimeMillis());
+        var env = createFrame(environment);
+        env.context = context;
+        var _current = EvaluationContext.current.get();
+        EvaluationContext.current.set(context);
+        try {
+            return evaluate(expr, null, env);
+        } finally {
+            setCurrent(_current);
+        }
+    }
+
+    static void setCurrent(EvaluationContext context) {
+        if (context == null)
+            // do not keep an entry for threads that are done evaluating
+            EvaluationContext.current.remove();
+        else
+            EvaluationContext.current.set(context);
+    }
+
+    /**
+     * Evaluation engines
+     */
+    public static enum Engine {
+        /**
+         * Reference interpreter walking the AST
+         */
+        INTERPRETER,
+        /**
+         * Tree of pre-linked executable nodes compiled from the AST
+         */
+        COMPILED,
+        /**
+         * JVM class generated per expression.
+         * Sub expressions that cannot be generated run on the compiled nodes.
+         * The class is unloaded with the expression on Java 15 and later, on older
+         * runtimes it stays loaded for the life of the JVM
+         */
+        BYTECODE,
+        /**
+         * Starts in the interpreter and promotes the expression to the compiled
+         * and bytecode engines in the background once it is used frequently
+         * (to the compiled engine only on runtimes that cannot unload generated classes)
+         */
+        TIERED
+    }
+
+    /**
+     * Engine used by evaluate()
+     */
+    Engine engine = Engine.TIERED;
+
+    /**
+     * Engine the expression currently runs on
+     */
+    volatile Engine tier = Engine.INTERPRETER;
+
+    /**
+     * Returns the engine used by evaluate()
+     */
+    public Engine getEngine() {
+        return engine;
+    }
+
+    /**
+     * Selects the engine used by evaluate().
+     * 
+     * The tiered engine is the default: it promotes the expression in the background
+     * once it is used frequently. Selecting another engine compiles the expression
+     * right away. The interpreter is kept as reference
+     * implementation, i.e. for checking the engines against the test suite.
+     * Evaluations with entry / exit callbacks always run on the interpreter.
+     * 
+     * @param engine
+     */
+    public void setEngine(Engine engine) {
+        this.engine = engine;
+        if (engine != Engine.TIERED)
+            promote(engine);
+    }
+
+    /**
+     * Returns the engine the expression currently runs on
+     * (INTERPRETER, COMPILED or BYTECODE)
+     */
+    public Engine getTier() {
+        return tier;
+    }
+
+    /**
+     * Sets the number of invocations or loop iterations after which the tiered
+     * engine promotes the expression to the given tier
+     * 
+     * @param tier COMPILED or BYTECODE
+     * @param invocations
+     * @param loops
+     */
+    public void setPromotionThreshold(Engine tier, long invocations, long loops) {
+        if (tier == Engine.COMPILED)
+            compileThreshold = new long[] {invocations, loops};
+        else if (tier == Engine.BYTECODE)
+            bytecodeThreshold = new long[] {invocations, loops};
+        else
+            throw new IllegalArgumentException("No promotion threshold for " + tier);
     }
 
     /**
-     * Creates a clone of the given Jsonata instance.
-     * Package-private copy constructor used to create per thread instances.
+     * Promotion thresholds: invocations, loop iterations
+     */
+    long[] compileThreshold = {10, 10000};
+    long[] bytecodeThreshold = {10000, 1000000};
+
+    final LongAdder invocations = new LongAdder();
+    final LongAdder loopCount = new LongAdder();
+    final LongAdder promotions = new LongAdder();
+    final LongAdder promotionNanos = new LongAdder();
+
+    /**
+     * Flag: a promotion is running or no further promotion is possible
+     */
+    final AtomicBoolean promoting = new AtomicBoolean();
+
+    /**
+     * Node of the class generated for the bytecode tier
+     */
+    Compiler.Node bytecode;
+
+    /**
+     * Background thread compiling expressions promoted by the tiered engine
+     */
+    static final ExecutorService compiler = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "jsonata-compiler");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Count an evaluation and start a background promotion once the thresholds are crossed
+     */
+    void count(long loops) {
+        invocations.increment();
+        loopCount.add(loops);
+        if (promoting.get())
+            return;
+        Engine next = tier == Engine.INTERPRETER ? Engine.COMPILED : Engine.BYTECODE;
+        long[] threshold = next == Engine.COMPILED ? compileThreshold : bytecodeThreshold;
+        if (invocations.sum() < threshold[0] && loopCount.sum() < threshold[1])
+            return;
+        if (promoting.compareAndSet(false, true))
+            compiler.execute(() -> {
+                // bytecode is the last tier. Classes that cannot be unloaded are only
+                // generated on request (setEngine), not for every frequently used expression
+                boolean done = !promote(next) || next == Engine.BYTECODE || !Bytecode.unloadable;
+                promoting.set(done);
+            });
+    }
+
+    /**
+     * Compile the expression for the given engine and switch to it.
+     * Running evaluations continue on the previous tier.
      * 
-     * @param other
+     * @return true if the expression runs on the given engine afterwards
+     */
+    boolean promote(Engine engine) {
+        long start = System.nanoTime();
+        try {
+            if (engine == Engine.INTERPRETER) {
+                tier = Engine.INTERPRETER;
+                return true;
+            }
+            Compiler.compile(ast);
+            if (engine == Engine.BYTECODE) {
+                bytecode = Bytecode.generate(ast);
+                if (bytecode != null) {
+                    tier = Engine.BYTECODE;
+                    return true;
+                }
+            }
+            tier = Engine.COMPILED;
+            return engine == Engine.COMPILED;
+        } finally {
+            promotions.increment();
+            promotionNanos.add(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Tiered execution statistics of an expression
      */
-    Jsonata(Jsonata other) {
-        this.ast = other.ast;
-        this.environment = other.environment;
-        this.timestamp = other.timestamp;
+    public static class Statistics {
+        final Engine tier;
+        final long invocations, loops, promotions, promotionNanos;
+
+        Statistics(Engine tier, long invocations, long loops, long promotions, long promotionNanos) {
+            this.tier = tier;
+            this.invocations = invocations;
+            this.loops = loops;
+            this.promotions = promotions;
+            this.promotionNanos = promotionNanos;
+        }
+
+        /**
+         * engine the expression runs on
+         */
+        public Engine getTier() { return tier; }
+
+        /**
+         * number of evaluations
+         */
+        public long getInvocations() { return invocations; }
+
+        /**
+         * loop iterations over all evaluations on the interpreter and compiled tiers
+         */
+        public long getLoops() { return loops; }
+
+        /**
+         * number of promotions
+         */
+        public long getPromotions() { return promotions; }
+
+        /**
+         * time spent compiling in nanoseconds
+         */
+        public long getPromotionNanos() { return promotionNanos; }
+
+        @Override
+        public String toString() {
+            return "tier=" + tier + " invocations=" + invocations + " loops=" + loops +
+                " promotions=" + promotions + " promotionNanos=" + promotionNanos;
+        }
+    }
+
+    /**
+     * Returns the tiered execution statistics of this expression
+     */
+    public Statistics getStatistics() {
+        return new Statistics(tier, invocations.sum(), loopCount.sum(), promotions.sum(), promotionNanos.sum());
     }
 
     /**
@@ -2607,29 +3234,173 @@ public class Jsonata {
 
     /* async */
     public Object evaluate(Object input, Frame bindings) { // FIXME:, callback) {
+        return evaluate(input, bindings, null);
+    }
+
+    /**
+     * @param arguments - values of the parameters of a prepared expression (null = look them up by name)
+     */
+    Object evaluate(Object input, Frame bindings, Object[] arguments) {
+        Frame exec_env = start(input, bindings, arguments);
+        EvaluationContext context = exec_env.context;
+        Compiler.Node bytecode = tier == Engine.BYTECODE && !context.interpret ? this.bytecode : null;
+
+        Object it;
+        var _current = EvaluationContext.current.get();
+        EvaluationContext.current.set(context);
+        try {
+            if (bytecode != null)
+                it = bytecode.evaluate(this, context.input, exec_env);
+            else
+                it = /* await */ evaluate(ast, context.input, exec_env);
+        //  if (typeof callback === "function") {
+        //      callback(null, it);
+        //  }
+            if (outputConvertNulls || context.views)
+                it = Utils.convert(it, outputConvertNulls, context, 0);
+            return it;
+        } catch (Exception err) {
+            // insert error message into structure
+            populateMessage(err); // possible side-effects on `err`
+            throw err;
+        } finally {
+            setCurrent(_current);
+            finish(context);
+        }
+    }
+
+    /**
+     * Evaluate expression against input data, returning the items of the result as they are
+     * computed: the elements of an array result or the single value of the expression (no items if it is undefined).
+     * 
+     * Paths without tuple streams, sorting and grouping (e.g. orders.items[price > 10].name) are evaluated
+     * lazily, item by item, as the iterator is consumed (entry / exit callbacks are invoked for the steps).
+     * Other expressions are evaluated completely on this call. Runtime bounds apply to the whole iteration.
+     * 
+     * @param input - Input data to evaluate against
+     * @param bindings - Variable bindings (can be null)
+     * @return Iterator over the items of the result
+     */
+    public Iterator<Object> evaluateIterator(Object input, Frame bindings) {
+        if (!LazySequence.lazy(ast)) {
+            Object res = evaluate(input, bindings);
+            if (res == null)
+                return Collections.emptyIterator();
+            return res instanceof List ? ((List)res).iterator() : Collections.singletonList(res).iterator();
+        }
+
+        Frame exec_env = start(input, bindings, null);
+        EvaluationContext context = exec_env.context;
+        // created outside of the iterator, so the cleaning action does not keep it reachable
+        Runnable finish = () -> finish(context);
+        return new Iterator<Object>() {
+            LazySequence seq;
+            boolean done;
+
+            /**
+             * Finishes the evaluation once the iterator is exhausted or fails,
+             * or once it is collected if it is dropped before
+             */
+            final Cleaner.Cleanable finisher = Iterators.cleaner.register(this, finish);
+
+            @Override
+            public boolean hasNext() {
+                if (done)
+                    return false;
+                var _current = EvaluationContext.current.get();
+                EvaluationContext.current.set(context);
+                try {
+                    if (seq == null) {
+                        seq = new LazySequence(Jsonata.this, ast, context.input, exec_env);
+                        // like evaluate, a single null result is undefined
+                        if (outputConvertNulls && seq.defined() && seq.single && seq.ahead[0] == NULL_VALUE)
+                            seq.next();
+                    }
+                    if (seq.hasNext())
+                        return true;
+                    done = true;
+                    finisher.clean();
+                    return false;
+                } catch (RuntimeException err) {
+                    done = true;
+                    finisher.clean();
+                    populateMessage(err);
+                    throw err;
+                } finally {
+                    setCurrent(_current);
+                }
+            }
+
+            @Override
+            public Object next() {
+                if (!hasNext())
+                    throw new NoSuchElementException();
+                Object it = seq.next();
+                if (outputConvertNulls || context.views)
+                    return Utils.convert(it, outputConvertNulls, context, 0);
+                return it;
+            }
+        };
+    }
+
+    /**
+     * Finishes the evaluations of iterators that are dropped before they are exhausted
+     * (created on first use)
+     */
+    static final class Iterators {
+        static final Cleaner cleaner = Cleaner.create(r -> {
+            Thread thread = new Thread(r, "jsonata-iterators");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public Iterator<Object> evaluateIterator(Object input) {
+        return evaluateIterator(input, null);
+    }
+
+    /**
+     * Counts the loops of a finished evaluation and releases its state
+     */
+    void finish(EvaluationContext context) {
+        if (engine == Engine.TIERED)
+            count(context.loops);
+        context.close();
+    }
+
+    /**
+     * Prepares an evaluation: creates its root frame and context
+     * @param arguments - values of the parameters of a prepared expression (null = look them up by name)
+     * @return the root frame (its context holds the input to evaluate against)
+     */
+    Frame start(Object input, Frame bindings, Object[] arguments) {
                 // throw if the expression compiled with syntax errors
         if(errors != null) {
             throw new JException("S0500", 0);
         }
 
-        Frame exec_env;
+        // each evaluation has a root frame of its own, which carries its context
+        // and the bindings made by the expression.
+        // put the input document into the root frame as the root object
+        // (followed by the parameters of a prepared expression)
+        Object[] slots = new Object[root.length];
+        slots[0] = input;
+        if (arguments != null)
+            System.arraycopy(arguments, 0, slots, 1, arguments.length);
+        else
+            Arrays.fill(slots, 1, slots.length, Frame.UNBOUND);
+        Frame exec_env = new Frame(environment, root, slots);
+        exec_env.root = exec_env;
         if (bindings != null) {
-            //var exec_env;
-            // the variable bindings have been passed in - create a frame to hold these
-            exec_env = createFrame(environment);
-            for (var v : bindings.bindings.keySet()) {
-                exec_env.bind(v, bindings.lookup(v));
-            }
-        } else {
-            exec_env = environment;
+            // the variable bindings have been passed in - layer them over the environment
+            // (they are neither copied nor modified)
+            exec_env.layer = bindings.bindings;
         }
-        // put the input document into the environment as the root object
-        exec_env.bind("$", input);
 
-        // capture the timestamp and put it in the execution environment
+        // capture the timestamp and put it in the execution context
         // the $now() and $millis() functions will return this value - whenever it is called
-        timestamp = System.currentTimeMillis();
-        //exec_env.timestamp = timestamp;
+        var context = new EvaluationContext(this, System.currentTimeMillis());
+        exec_env.context = context;
 
         // if the input is a JSON array, then wrap it in a singleton sequence so it gets treated as a single input
         if((input instanceof List) && !Utils.isSequence(input)) {
@@ -2637,23 +3408,32 @@ public class Jsonata {
             ((JList)input).outerWrapper = true;
         }
 
-        if (validateInput)
-            Functions.validateInput(input);
+        // entry / exit callbacks and runtime bounds are resolved once per evaluation
+        context.entryCallback = (EntryCallback)exec_env.lookup("__evaluate_entry");
+        context.exitCallback = (ExitCallback)exec_env.lookup("__evaluate_exit");
+        var timebox = (Timebox)exec_env.lookup("__timebox");
 
-        Object it;
-        try {
-            it = /* await */ evaluate(ast, input, exec_env);
-        //  if (typeof callback === "function") {
-        //      callback(null, it);
-        //  }
-            if (outputConvertNulls)
-                it = Utils.convertNulls(it);
-            return it;
-        } catch (Exception err) {
-            // insert error message into structure
-            populateMessage(err); // possible side-effects on `err`
-            throw err;
-        }
+        // evaluations with entry / exit callbacks use the reference interpreter
+        Engine tier = this.tier;
+        context.interpret = tier == Engine.INTERPRETER || context.entryCallback != null || context.exitCallback != null;
+
+        // nested evaluations with the same bounds continue the running governor
+        var _current = EvaluationContext.current.get();
+        if (timebox != null)
+            timebox = _current != null && _current.timebox != null && _current.timebox.origin == timebox ?
+                _current.timebox : timebox.start();
+        context.timebox = timebox;
+
+        var stack = (StackSegments)exec_env.lookup("__stack");
+        if (stack != null)
+            stack = _current != null && _current.stack != null && _current.stack.origin == stack ?
+                _current.stack : stack.start();
+        context.stack = stack;
+
+        if (validateInput)
+            Functions.validateInput(input, context, 0);
+        context.input = input;
+        return exec_env;
     }
 
     public void assign(String name, Object value) {
@@ -0,0 +1,447 @@
+/**
+ * jsonata-java is the JSONata Java reference port
+ *
+ * Copyright Dashjoin GmbH. https://dashjoin.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dashjoin.jsonata;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.OptionalDouble;
+import java.util.PrimitiveIterator;
+import java.util.Spliterators;
+import java.util.stream.DoubleStream;
+import java.util.stream.StreamSupport;
+
+import com.dashjoin.jsonata.Jsonata.Frame;
+import com.dashjoin.jsonata.Jsonata.JFunction;
+import com.dashjoin.jsonata.Parser.Symbol;
+import com.dashjoin.jsonata.Utils.JList;
+
+/**
+ * Pull based sequence of the results of a path.
+ *
+ * Like Utils.RangeList, the sequence is not materialized: the steps of the path
+ * are evaluated item by item (depth first) as the results are consumed, so the
+ * intermediate sequences of Jsonata.evaluatePath are never built. The predicate of
+ * the last filter of a step is tested item by item as well, unless it selects
+ * constant indexes. The items are
+ * the values an iteration of the materialized result yields: the elements of an
+ * array result or the single value of the path.
+ *
+ * Only plain paths are evaluated lazily (see lazy). Consumers are
+ * Jsonata.evaluateIterator and the aggregate functions $count, $exists, $single,
+ * $sum, $max, $min and $average applied to a path (see aggregate).
+ */
+@SuppressWarnings({"rawtypes", "unchecked"})
+final class LazySequence implements Iterator<Object> {
+
+    static final Object END = new Object();
+
+    final Jsonata jsonata;
+    final List<Symbol> steps;
+    final Frame environment;
+
+    /**
+     * items being evaluated per step and the position of the next one
+     */
+    final List[] items;
+    final int[] positions;
+    int level;
+
+    /**
+     * input of the last filter of the step per step and the position of the next item to test
+     */
+    final List[] candidates;
+    final int[] cursors;
+
+    /**
+     * results of the last step not consumed yet: flattened items and the next unit
+     */
+    List buffer = Collections.emptyList();
+    int position;
+    Object pending = END;
+
+    /**
+     * items pulled ahead to determine the shape of the result (see start)
+     */
+    final Object[] ahead = new Object[2];
+    int aheadCount, aheadPosition;
+
+    /**
+     * the result of the path is defined (not undefined)
+     */
+    boolean defined;
+    boolean started;
+
+    /**
+     * the result of the path is a single value that is not an array
+     */
+    boolean single;
+
+    /**
+     * next item (END if there is none)
+     */
+    Object next;
+    boolean pulled;
+
+    /**
+     * @param path - a path accepted by lazy
+     */
+    LazySequence(Jsonata jsonata, Symbol path, Object input, Frame environment) {
+        this.jsonata = jsonata;
+        this.steps = path.steps;
+        this.environment = environment;
+        items = new List[steps.size()];
+        positions = new int[steps.size()];
+        candidates = new List[steps.size()];
+        cursors = new int[steps.size()];
+
+        List inputSequence;
+        // if the first step is a variable reference ($...), including root reference ($$),
+        //   then the path is absolute rather than relative
+        if (input instanceof List && !steps.get(0).type.equals("variable")) {
+            inputSequence = (List)input;
+        } else {
+            // if input is not an array, make it so
+            inputSequence = Utils.createSequence(input);
+        }
+        if (steps.get(0).consarray) {
+            // if the first step is an explicit array constructor, then just evaluate that (i.e. don't iterate over a context array)
+            Object res = jsonata.evaluate(steps.get(0), inputSequence, environment);
+            items[0] = Collections.emptyList();
+            items[1] = res != null ? (List)res : Collections.emptyList();
+            level = 1;
+        } else {
+            items[0] = inputSequence;
+        }
+    }
+
+    /**
+     * @return true if the path can be evaluated lazily: no tuple streams, sorting,
+     * path level predicates / grouping and singleton array flags
+     */
+    static boolean lazy(Symbol expr) {
+        if (!"path".equals(expr.type) || expr.predicate != null || expr.group != null || expr.tuple != null || expr.keepSingletonArray)
+            return false;
+        if (expr.steps.size() < 2 && expr.steps.get(0).consarray)
+            return false;
+        for (Symbol step : expr.steps) {
+            if (step.tuple != null || step.focus != null || step.index != null || step.ancestor != null || "sort".equals(step.type))
+                return false;
+            if (step.stages != null)
+                for (Symbol stage : step.stages)
+                    if (!"filter".equals(stage.type))
+                        return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return the next result of the last step (END if there is none)
+     */
+    Object unit() {
+        int last = steps.size() - 1;
+        while (level >= 0) {
+            Symbol step = steps.get(level);
+            List candidates = this.candidates[level];
+            if (candidates != null && cursors[level] < candidates.size()) {
+                // the last filter of the step is applied item by item
+                int index = cursors[level]++;
+                Object item = candidates.get(index);
+                int matches = matches((Symbol)step.stages.get(step.stages.size() - 1).expr, item, index, candidates.size());
+                if (matches == 0)
+                    continue;
+                List res = Utils.createSequence();
+                for (int i = 0; i < matches; i++)
+                    res.add(item);
+                if (level == last)
+                    return res;
+                descend(res);
+                continue;
+            }
+            if (positions[level] >= items[level].size()) {
+                level--;
+                continue;
+            }
+            Object item = items[level].get(positions[level]++);
+            environment.context.loops++;
+            Object res = jsonata.evaluate(step, item, environment);
+            if (step.stages != null) {
+                int eager = step.stages.size();
+                Symbol filter = (Symbol)step.stages.get(eager - 1).expr;
+                boolean lazy = !filter.type.equals("number") && !(filter.literal instanceof List && Utils.isArrayOfNumbers(filter.literal));
+                if (lazy)
+                    eager--;
+                for (int i = 0; i < eager; i++)
+                    res = jsonata.evaluateFilter(step.stages.get(i).expr, res, environment);
+                if (lazy) {
+                    this.candidates[level] = res instanceof List ? (List)res : Utils.createSequence(res);
+                    cursors[level] = 0;
+                    continue;
+                }
+            }
+            if (res == null)
+                continue;
+            if (level == last)
+                return res;
+            List next = flatten(res);
+            if (!next.isEmpty())
+                descend(next);
+        }
+        return END;
+    }
+
+    /**
+     * continues with the items of the next step
+     */
+    void descend(List next) {
+        level++;
+        items[level] = next;
+        positions[level] = 0;
+        candidates[level] = null;
+    }
+
+    /**
+     * @return how often the item at index is selected by the predicate (see Jsonata.evaluateFilter)
+     */
+    int matches(Symbol predicate, Object item, int index, int size) {
+        environment.context.loops++;
+        Object res = jsonata.evaluate(predicate, item, environment);
+        if (Utils.isNumeric(res))
+            res = Utils.createSequence(res);
+        if (Utils.isArrayOfNumbers(res)) {
+            int matches = 0;
+            for (Object ires : (List)res) {
+                // round it down
+                int ii = ((Number)ires).intValue();
+                if (ii < 0) {
+                    // count in from end of array
+                    ii = size + ii;
+                }
+                if (ii == index)
+                    matches++;
+            }
+            return matches;
+        }
+        return Jsonata.boolize(res) ? 1 : 0;
+    }
+
+    /**
+     * @return the items a step result adds to the sequence (see Jsonata.evaluateStep)
+     */
+    static List flatten(Object res) {
+        if (!(res instanceof List) || (res instanceof JList && ((JList)res).cons))
+            return Collections.singletonList(res);
+        return (List)res;
+    }
+
+    /**
+     * @return the next flattened item of the last step (END if there is none)
+     */
+    Object pull() {
+        while (position >= buffer.size()) {
+            Object unit = pending != END ? pending : unit();
+            pending = END;
+            if (unit == END)
+                return END;
+            buffer = flatten(unit);
+            position = 0;
+        }
+        return buffer.get(position++);
+    }
+
+    /**
+     * Evaluates the path until the shape of its result is known
+     */
+    void start() {
+        started = true;
+        Object first = unit();
+        if (first == END)
+            return;
+        Object second = unit();
+        if (second == END && first instanceof List && !Utils.isSequence(first)) {
+            // a single array is the result of the path (see Jsonata.evaluateStep)
+            defined = true;
+            buffer = (List)first;
+            return;
+        }
+        buffer = flatten(first);
+        pending = second;
+        Object item = pull();
+        if (item == END)
+            return;
+        defined = true;
+        Object following = pull();
+        if (following == END && item instanceof List) {
+            // a single array item is the result of the path (see Jsonata.mangle)
+            buffer = (List)item;
+            position = 0;
+            return;
+        }
+        ahead[aheadCount++] = item;
+        if (following != END)
+            ahead[aheadCount++] = following;
+        else
+            single = true;
+    }
+
+    /**
+     * @return true if the result of the path is defined
+     */
+    boolean defined() {
+        if (!started)
+            start();
+        return defined;
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (!pulled) {
+            if (!started)
+                start();
+            next = aheadPosition < aheadCount ? ahead[aheadPosition++] : pull();
+            pulled = true;
+        }
+        return next != END;
+    }
+
+    @Override
+    public Object next() {
+        if (!hasNext())
+            throw new NoSuchElementException();
+        pulled = false;
+        return next;
+    }
+
+    /**
+     * Built-in aggregate functions by implementation
+     */
+    static final Map<Object, String> AGGREGATES = new IdentityHashMap<>();
+    static {
+        for (String name : new String[] {"count", "exists", "single", "sum", "max", "min", "average"})
+            AGGREGATES.put(Jsonata.staticFrame.lookup(name), name);
+    }
+
+    /**
+     * Applies a built-in aggregate function to a path, consuming the results of the path
+     * as they are produced
+     * @param proc - the function
+     * @param expr - the function call
+     * @return the result or Utils.NONE if the call is not evaluated lazily
+     */
+    static Object aggregate(Jsonata jsonata, Object proc, Symbol expr, Object input, Frame environment) {
+        String name = proc instanceof JFunction ? AGGREGATES.get(proc) : null;
+        List<Symbol> arguments = expr.arguments;
+        if (name == null || arguments.size() != 1 || !lazy(arguments.get(0)))
+            return Utils.NONE;
+        EvaluationContext context = environment.context;
+        if (context.entryCallback != null || context.exitCallback != null)
+            return Utils.NONE;
+
+        var seq = new LazySequence(jsonata, arguments.get(0), input, environment);
+        // like the eager call, a single null is undefined for the array parameter of the
+        // function (see Signature.getSymbol), but it exists
+        boolean undefined = !seq.defined() || seq.single && seq.ahead[0] == Jsonata.NULL_VALUE;
+        switch (name) {
+            case "count": {
+                if (undefined)
+                    return 0;
+                int count = 0;
+                while (seq.hasNext()) {
+                    seq.next();
+                    count++;
+                }
+                return count;
+            }
+            case "exists":
+                return seq.defined();
+            case "single": {
+                if (undefined)
+                    return null;
+                if (!seq.hasNext())
+                    throw error(new JException("D3139", -1), expr);
+                Object result = seq.next();
+                if (seq.hasNext())
+                    throw error(new JException("D3138", 1), expr);
+                return result;
+            }
+            default: {
+                // undefined inputs always return undefined
+                if (undefined)
+                    return null;
+                // stops at the first item that is not a number: the function is then called
+                // with the items pulled so far and the rest, and reports the error
+                List items = Utils.createSequence();
+                boolean[] numbers = {true};
+                PrimitiveIterator.OfDouble values = new PrimitiveIterator.OfDouble() {
+                    @Override
+                    public boolean hasNext() {
+                        if (!seq.hasNext())
+                            return false;
+                        if (!(seq.next instanceof Number))
+                            return numbers[0] = false;
+                        return true;
+                    }
+
+                    @Override
+                    public double nextDouble() {
+                        Object item = seq.next();
+                        items.add(item);
+                        return ((Number)item).doubleValue();
+                    }
+                };
+                DoubleStream stream = StreamSupport.doubleStream(Spliterators.spliteratorUnknownSize(values, 0), false);
+                OptionalDouble res;
+                if (name.equals("sum"))
+                    res = OptionalDouble.of(stream.sum());
+                else if (name.equals("max"))
+                    res = stream.max();
+                else if (name.equals("min"))
+                    res = stream.min();
+                else
+                    res = stream.average();
+                if (!numbers[0]) {
+                    while (seq.hasNext())
+                        items.add(seq.next());
+                    List args = new ArrayList<>(1);
+                    args.add(seq.single ? items.get(0) : items);
+                    try {
+                        return jsonata.apply(proc, args, input, environment);
+                    } catch (JException jex) {
+                        throw error(jex, expr);
+                    }
+                }
+                return res.isPresent() ? Utils.convertNumber(res.getAsDouble()) : null;
+            }
+        }
+    }
+
+    /**
+     * adds the position of the function call to an error of the function (see Jsonata.evaluateFunction)
+     */
+    static JException error(JException jex, Symbol expr) {
+        if (jex.location < 0)
+            jex.location = expr.position;
+        if (jex.current == null)
+            jex.current = expr.token;
+        return jex;
+    }
+}
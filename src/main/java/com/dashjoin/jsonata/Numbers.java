@@ -0,0 +1,167 @@
+/**
+ * jsonata-java is the JSONata Java reference port
+ *
+ * Copyright Dashjoin GmbH. https://dashjoin.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dashjoin.jsonata;
+
+import java.util.List;
+
+/**
+ * Internal number representation.
+ *
+ * JSONata numbers are doubles. Integral values are represented as Integer
+ * (or Long if they exceed the int range), all other values as Double (see Utils.convertNumber).
+ * Arithmetic on integral values within the exact range of a double is computed on
+ * long, all other arithmetic on double. Results are only boxed once and small
+ * integral values are shared, so numeric workloads do not allocate per operation.
+ * The results are the same as computing every operation on double.
+ */
+final class Numbers {
+
+    /**
+     * Largest integer with an exact double representation
+     */
+    static final long MAX_EXACT = 1L << 53;
+
+    /**
+     * Shared boxes of small integral values
+     */
+    static final int CACHE_LOW = -128, CACHE_HIGH = 1023;
+    static final Integer[] CACHE = new Integer[CACHE_HIGH - CACHE_LOW + 1];
+    static {
+        for (int i = 0; i < CACHE.length; i++)
+            CACHE[i] = CACHE_LOW + i;
+    }
+
+    /**
+     * @return an integral value as Integer if it fits, Long otherwise
+     */
+    static Number of(long value) {
+        if (value >= CACHE_LOW && value <= CACHE_HIGH)
+            return CACHE[(int) value - CACHE_LOW];
+        if ((int) value == value)
+            return (int) value;
+        return value;
+    }
+
+    /**
+     * @return the value as integral number if it is integral, as Double otherwise
+     * (null for NaN, error D1001 for infinite values)
+     */
+    static Number of(double value) {
+        if (Double.isNaN(value))
+            return null;
+        if (Double.isInfinite(value))
+            throw new JException("D1001", 0, value);
+        long l = (long) value;
+        if (l == value)
+            return of(l);
+        return value;
+    }
+
+    /**
+     * @return true if the value is integral and within the exact range of a double
+     */
+    static boolean exact(Object value) {
+        if (value instanceof Integer)
+            return true;
+        if (value instanceof Long) {
+            long l = (Long) value;
+            return l >= -MAX_EXACT && l <= MAX_EXACT;
+        }
+        return false;
+    }
+
+    /**
+     * @return true if the value is a number the operators accept without further checks
+     * (see Utils.isNumeric)
+     */
+    static boolean finite(Object value) {
+        if (value instanceof Integer || value instanceof Long)
+            return true;
+        return value instanceof Double && Double.isFinite((Double) value);
+    }
+
+    /**
+     * Numeric operator +, -, *, / or %
+     * @param lhs - numeric LHS value
+     * @param rhs - numeric RHS value
+     * @param op - first character of the operator
+     * @return the result
+     */
+    static Number arithmetic(Object lhs, Object rhs, char op) {
+        if (exact(lhs) && exact(rhs)) {
+            long l = ((Number) lhs).longValue(), r = ((Number) rhs).longValue(), res;
+            switch (op) {
+                case '+':
+                    res = l + r;
+                    break;
+                case '-':
+                    res = l - r;
+                    break;
+                case '*':
+                    if (Math.abs(l) > Integer.MAX_VALUE || Math.abs(r) > Integer.MAX_VALUE)
+                        return arithmetic(l, r, op);
+                    res = l * r;
+                    break;
+                case '/':
+                    if (r == 0 || l % r != 0)
+                        return arithmetic(l, r, op);
+                    res = l / r;
+                    break;
+                default:
+                    if (r == 0)
+                        return arithmetic(l, r, op);
+                    res = l % r;
+            }
+            // results beyond the exact range are rounded like doubles
+            if (res >= -MAX_EXACT && res <= MAX_EXACT)
+                return of(res);
+            return of((double) res);
+        }
+        return arithmetic(((Number) lhs).doubleValue(), ((Number) rhs).doubleValue(), op);
+    }
+
+    static Number arithmetic(double lhs, double rhs, char op) {
+        switch (op) {
+            case '+':
+                return of(lhs + rhs);
+            case '-':
+                return of(lhs - rhs);
+            case '*':
+                return of(lhs * rhs);
+            case '/':
+                return of(lhs / rhs);
+            default:
+                return of(lhs % rhs);
+        }
+    }
+
+    /**
+     * Sum of numbers, on long while the values and the partial sums are exact
+     */
+    static Number sum(List<? extends Number> values) {
+        long total = 0;
+        for (Number value : values) {
+            if (!exact(value))
+                return of(values.stream().mapToDouble(Number::doubleValue).sum());
+            total += value.longValue();
+            if (total < -MAX_EXACT || total > MAX_EXACT)
+                return of(values.stream().mapToDouble(Number::doubleValue).sum());
+        }
+        return of(total);
+    }
+}
@@ -30,11 +30,18 @@ import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
 import java.util.stream.Collectors;
 
 import com.dashjoin.jsonata.Jsonata.Frame;
+import com.dashjoin.jsonata.Jsonata.JFunction;
 import com.dashjoin.jsonata.Tokenizer.Token;
 import com.dashjoin.jsonata.utils.Signature;
 
@@ -159,6 +166,53 @@ public class Parser {
         public boolean _jsonata_lambda;
         public Symbol ancestor;
 
+        // Executable node compiled from this symbol
+        Compiler.Node compiled;
+
+        // Variable resolution:
+        // names of the slots of a block / lambda frame
+        String[] scope;
+        // block that binds nothing and needs no frame
+        boolean frameless;
+        // address of a variable: frames with slots to skip and slot index (-1 = lookup by name)
+        // (bound variables and parameters: slot in the frame they are bound in)
+        int frameDepth = -1, frameSlot;
+        // variable not bound by the expression (built-ins, bindings, root frame):
+        // looked up from the root frame of the evaluation
+        boolean global;
+
+        // constant array / object constructor pre-built by the optimizer
+        Object literal;
+
+        // filter predicate followed by a positional predicate: number of matches needed (0 = all)
+        int limit;
+
+        // lambda whose frame cannot be captured by a closure: self tail calls rebind its frame
+        boolean reuseFrame;
+
+        // path sharing its first steps with other paths evaluated against the same context:
+        // key of the common prefix and number of steps
+        Object cse;
+        int cseSteps;
+
+        // type of the value inferred by infer (signature symbol 'n', 's' or 'b', 0 = unknown)
+        char valueType;
+
+        // operator of a binary or unary expression (see operators)
+        Operator operator;
+
+        // loop invariant sub expression of a loop body: number of frames the loop body
+        // creates around it (-1 = not invariant, see hoist)
+        int hoist = -1;
+
+        // call of a built-in higher order function with a literal lambda (see fuse)
+        boolean fuse;
+
+        // lambda of a partial application of a native function: the function and the bound
+        // arguments, null for the arguments that are not bound (see Jsonata.partialApplyNativeFunction)
+        JFunction partialNative;
+        List<Object> partialArgs;
+
 
         Symbol nud() {
             // error - symbol has been invoked as a unary operator
@@ -848,14 +902,14 @@ public class Parser {
             var thunk = new Symbol(); thunk.type = "lambda"; thunk.thunk = true; thunk.arguments = List.of(); thunk.position = expr.position;
             thunk.body = expr;
             result = thunk;
-        } else if (expr.type.equals("condition")) {
+        } else if (expr.type.equals("condition") && expr.predicate==null && expr.group==null) {
             // analyse both branches
             expr.then = tailCallOptimize(expr.then);
             if (expr._else != null) {
                 expr._else = tailCallOptimize(expr._else);
             }
             result = expr;
-        } else if (expr.type.equals("block")) {
+        } else if (expr.type.equals("block") && expr.predicate==null && expr.group==null) {
             // only the last expression in the block
             var length = expr.expressions.size();
             if (length > 0) {
@@ -1429,7 +1483,1061 @@ public class Parser {
         return res;
     }
 
+    /**
+     * Lexical scope of a block or lambda used by the variable resolution
+     */
+    static class Scope {
+        final Scope parent;
+        final Symbol owner;
+        final List<String> names = new ArrayList<>();
+        // variables are bound in this scope
+        boolean frame;
+        // variables of the root frame (root scope only)
+        String[] root;
+        // the expression is evaluated in the frames of its caller, see $eval (root scope only)
+        boolean nested;
+
+        Scope(Scope parent, Symbol owner) {
+            this.parent = parent;
+            this.owner = owner;
+        }
+
+        void declare(String name) {
+            frame = true;
+            if (!names.contains(name))
+                names.add(name);
+        }
+
+        /**
+         * @return the variables addressed by slot (null if there are none)
+         */
+        String[] slots() {
+            return owner != null ? owner.scope : root;
+        }
+    }
+
+    /**
+     * Variable resolution: assigns (depth, slot) addresses to the variables
+     * bound in blocks and lambdas, so they can be looked up without walking
+     * the frame chain by name. Blocks that bind nothing are marked as frameless.
+     * 
+     * Variables bound in tuple streams (focus, index and variables bound in
+     * path steps / predicates) are looked up by name. Built-ins and variables
+     * of the root frame are looked up by name starting at the root frame of the
+     * evaluation, except for the parameters of a prepared expression.
+     * Expressions using $eval are not resolved, since $eval can bind variables dynamically.
+     * 
+     * @param root - interned variables of the root frame addressed by slot (null = none)
+     * @param nested - the expression is evaluated in the frames of its caller (see $eval)
+     */
+    void resolve(Symbol ast, String[] root, boolean nested) {
+        Map<Symbol, Scope> scopes = new IdentityHashMap<>();
+        Set<String> dynamic = new HashSet<>();
+        Scope top = null;
+        if (root != null || nested) {
+            top = new Scope(null, null);
+            top.root = root;
+            top.nested = nested;
+        }
+        if (!declare(ast, top, false, scopes, dynamic, Collections.newSetFromMap(new IdentityHashMap<>())))
+            return;
+        for (Scope scope : scopes.values()) {
+            scope.names.removeAll(dynamic);
+            if (!scope.names.isEmpty())
+                scope.owner.scope = scope.names.stream().map(String::intern).toArray(String[]::new);
+            if (scope.owner.type.equals("block"))
+                scope.owner.frameless = !scope.frame;
+            else
+                scope.owner.reuseFrame = !captures(scope.owner.body, Collections.newSetFromMap(new IdentityHashMap<>()));
+        }
+        address(ast, top, scopes, dynamic, Collections.newSetFromMap(new IdentityHashMap<>()));
+    }
+
+    /**
+     * @return true if the expression can create a closure over the frame it is evaluated in
+     * (lambdas, partial application, function chaining and transforms)
+     */
+    static boolean captures(Symbol expr, Set<Symbol> visited) {
+        if (expr == null || !visited.add(expr))
+            return false;
+        switch (expr.type != null ? expr.type : "") {
+            case "lambda":
+                if (!expr.thunk)
+                    return true;
+                break;
+            case "partial":
+            case "apply":
+            case "transform":
+                return true;
+        }
+        for (Symbol s : children(expr))
+            if (captures(s, visited))
+                return true;
+        return false;
+    }
+
+    /**
+     * first pass: collect the variables bound per scope
+     * @return false if the expression uses $eval
+     */
+    boolean declare(Symbol expr, Scope scope, boolean tuple, Map<Symbol, Scope> scopes, Set<String> dynamic, Set<Symbol> visited) {
+        if (expr == null || !visited.add(expr))
+            return true;
+        switch (expr.type != null ? expr.type : "") {
+            case "variable":
+                return !"eval".equals(expr.value);
+            case "bind": {
+                String name = "" + expr.lhs.value;
+                if (tuple) {
+                    // the variable is bound in a tuple frame or in the frame of the scope
+                    dynamic.add(name);
+                    if (scope != null)
+                        scope.frame = true;
+                } else if (scope != null) {
+                    scope.declare(name);
+                }
+                return declare(expr.rhs, scope, tuple, scopes, dynamic, visited) &&
+                    declareAll(outer(expr), scope, tuple, scopes, dynamic, visited);
+            }
+            case "block": {
+                Scope block = new Scope(scope, expr);
+                scopes.put(expr, block);
+                return declareAll(expr.expressions, block, false, scopes, dynamic, visited) &&
+                    declareAll(outer(expr), scope, tuple, scopes, dynamic, visited);
+            }
+            case "lambda": {
+                // thunks are unpacked by the trampoline in the environment of their definition
+                Scope lambda = scope;
+                if (!expr.thunk) {
+                    lambda = new Scope(scope, expr);
+                    scopes.put(expr, lambda);
+                    for (Symbol arg : expr.arguments)
+                        lambda.declare("" + arg.value);
+                }
+                return declare(expr.body, lambda, expr.thunk && tuple, scopes, dynamic, visited) &&
+                    declareAll(outer(expr), scope, tuple, scopes, dynamic, visited);
+            }
+            case "path":
+                for (Symbol step : expr.steps) {
+                    if (step.tuple != null)
+                        tuple = true;
+                    if (step.focus != null)
+                        dynamic.add("" + step.focus);
+                    if (step.index != null)
+                        dynamic.add("" + step.index);
+                    // index bound after the predicates of the step
+                    if (step.stages != null)
+                        for (Symbol stage : step.stages)
+                            if ("index".equals(stage.type))
+                                dynamic.add("" + stage.value);
+                }
+                if (expr.tuple != null)
+                    tuple = true;
+                return declareAll(children(expr), scope, tuple, scopes, dynamic, visited);
+            default:
+                return declareAll(children(expr), scope, tuple, scopes, dynamic, visited);
+        }
+    }
+
+    boolean declareAll(List<Symbol> list, Scope scope, boolean tuple, Map<Symbol, Scope> scopes, Set<String> dynamic, Set<Symbol> visited) {
+        for (Symbol s : list)
+            if (!declare(s, scope, tuple, scopes, dynamic, visited))
+                return false;
+        return true;
+    }
+
+    /**
+     * second pass: address the variable references
+     */
+    void address(Symbol expr, Scope scope, Map<Symbol, Scope> scopes, Set<String> dynamic, Set<Symbol> visited) {
+        if (expr == null || !visited.add(expr))
+            return;
+        switch (expr.type != null ? expr.type : "") {
+            case "variable": {
+                String name = (String) expr.value;
+                if (name.isEmpty() || dynamic.contains(name))
+                    return;
+                int depth = 0;
+                Scope top = null;
+                for (Scope s = scope; s != null; s = s.parent) {
+                    top = s;
+                    String[] names = s.slots();
+                    if (names == null)
+                        continue;
+                    for (int i = 0; i < names.length; i++)
+                        if (names[i].equals(name)) {
+                            expr.value = names[i];
+                            expr.frameDepth = depth;
+                            expr.frameSlot = i;
+                            return;
+                        }
+                    depth++;
+                }
+                expr.global = top == null || !top.nested;
+                return;
+            }
+            case "bind":
+                slot(expr.lhs, scope != null ? scope.slots() : null);
+                address(expr.rhs, scope, scopes, dynamic, visited);
+                addressAll(outer(expr), scope, scopes, dynamic, visited);
+                return;
+            case "block":
+                addressAll(expr.expressions, scopes.get(expr), scopes, dynamic, visited);
+                addressAll(outer(expr), scope, scopes, dynamic, visited);
+                return;
+            case "lambda":
+                if (!expr.thunk)
+                    for (Symbol arg : expr.arguments)
+                        slot(arg, expr.scope);
+                address(expr.body, expr.thunk ? scope : scopes.get(expr), scopes, dynamic, visited);
+                addressAll(outer(expr), scope, scopes, dynamic, visited);
+                return;
+            default:
+                addressAll(children(expr), scope, scopes, dynamic, visited);
+        }
+    }
+
+    void addressAll(List<Symbol> list, Scope scope, Map<Symbol, Scope> scopes, Set<String> dynamic, Set<Symbol> visited) {
+        for (Symbol s : list)
+            address(s, scope, scopes, dynamic, visited);
+    }
+
+    /**
+     * address a variable bound in the frame of its scope (see Frame.bind(int, String, Object))
+     */
+    static void slot(Symbol variable, String[] names) {
+        if (names != null)
+            for (int i = 0; i < names.length; i++)
+                if (names[i].equals(variable.value)) {
+                    variable.value = names[i];
+                    variable.frameDepth = 0;
+                    variable.frameSlot = i;
+                    return;
+                }
+    }
+
+    /**
+     * Predicates and group expressions, evaluated in the environment of the symbol
+     */
+    static List<Symbol> outer(Symbol expr) {
+        List<Symbol> res = new ArrayList<>();
+        if (expr.predicate != null)
+            for (Symbol p : expr.predicate)
+                if (p.expr instanceof Symbol)
+                    res.add((Symbol) p.expr);
+        if (expr.group != null)
+            for (Symbol[] pair : expr.group.lhsObject) {
+                res.add(pair[0]);
+                res.add(pair[1]);
+            }
+        return res;
+    }
+
+    /**
+     * All sub expressions of a symbol (except bind targets and lambda parameters)
+     */
+    static List<Symbol> children(Symbol expr) {
+        List<Symbol> res = outer(expr);
+        for (Symbol s : new Symbol[] {expr.lhs, expr.rhs, expr.condition, expr.then, expr._else, expr.procedure,
+            expr.body, expr.expression, expr.pattern, expr.update, expr.delete})
+            if (s != null)
+                res.add(s);
+        for (List<Symbol> list : List.of(
+            expr.steps != null ? expr.steps : List.<Symbol>of(),
+            expr.arguments != null ? expr.arguments : List.<Symbol>of(),
+            expr.expressions != null ? expr.expressions : List.<Symbol>of(),
+            expr.terms != null ? expr.terms : List.<Symbol>of()))
+            res.addAll(list);
+        if (expr.stages != null)
+            for (Symbol stage : expr.stages)
+                if (stage.expr instanceof Symbol)
+                    res.add((Symbol) stage.expr);
+        if (expr.lhsObject != null)
+            for (Symbol[] pair : expr.lhsObject) {
+                res.add(pair[0]);
+                res.add(pair[1]);
+            }
+        return res;
+    }
+
+    /**
+     * Early termination of filters: a filter followed by a positional predicate
+     * with non-negative indexes (e.g. [0] or [[0..9]]) stops after the matches
+     * that the positional predicate can select
+     */
+    static void positional(Symbol expr, Set<Symbol> visited) {
+        if (expr == null || !visited.add(expr))
+            return;
+        for (List<Symbol> stages : Arrays.asList(expr.stages, expr.predicate))
+            if (stages != null)
+                for (int i = 0; i < stages.size() - 1; i++)
+                    if ("filter".equals(stages.get(i).type) && "filter".equals(stages.get(i + 1).type)) {
+                        int limit = positions((Symbol) stages.get(i + 1).expr);
+                        if (limit > 0)
+                            ((Symbol) stages.get(i).expr).limit = limit;
+                    }
+        for (Symbol s : children(expr))
+            positional(s, visited);
+    }
+
+    /**
+     * @return highest index + 1 selected by a constant positional predicate (0 = not positional or negative indexes)
+     */
+    static int positions(Symbol predicate) {
+        if ("number".equals(predicate.type) && plain(predicate)) {
+            int index = ((Number) predicate.value).intValue();
+            return index >= 0 ? index + 1 : 0;
+        }
+        if (!(predicate.literal instanceof List) || !Utils.isArrayOfNumbers(predicate.literal))
+            return 0;
+        int limit = 0;
+        for (Object value : (List<?>) predicate.literal) {
+            int index = ((Number) value).intValue();
+            if (index < 0)
+                return 0;
+            limit = Math.max(limit, index + 1);
+        }
+        return limit;
+    }
+
+    /**
+     * Operators of binary and unary expressions
+     */
+    enum Operator {
+        ADD("+"), SUBTRACT("-"), MULTIPLY("*"), DIVIDE("/"), MODULO("%"),
+        EQUAL("="), NOT_EQUAL("!="), LESS("<"), LESS_EQUAL("<="), GREATER(">"), GREATER_EQUAL(">="),
+        CONCAT("&"), RANGE(".."), IN("in"), AND("and"), OR("or"),
+        NEGATE("-"), ARRAY("["), OBJECT("{");
+
+        /**
+         * the operator as written in the expression
+         */
+        final String symbol;
+
+        Operator(String symbol) {
+            this.symbol = symbol;
+        }
+
+        /**
+         * @return the operator of a binary / unary expression (null if there is none)
+         */
+        static Operator of(Symbol expr) {
+            boolean unary = expr.type.equals("unary");
+            // single character operators are tokenized as Character
+            String symbol = "" + expr.value;
+            for (Operator op : values())
+                if (op.symbol.equals(symbol) && (op.ordinal() >= NEGATE.ordinal()) == unary)
+                    return op;
+            return null;
+        }
+    }
+
+    /**
+     * Resolves the operators of binary and unary expressions (see Symbol.operator),
+     * so the evaluation does not dispatch on the operator string
+     */
+    static void operators(Symbol expr, Set<Symbol> visited) {
+        if (expr == null || !visited.add(expr))
+            return;
+        if ("binary".equals(expr.type) || "unary".equals(expr.type))
+            expr.operator = Operator.of(expr);
+        for (Symbol s : children(expr))
+            operators(s, visited);
+    }
+
+    /**
+     * Type inference: infers the type of the values of sub expressions from literals,
+     * operators and the return types declared by the signatures of the built-in functions
+     * (see Symbol.valueType). The compiler specializes operators whose operand types are known.
+     * The inferred types are hints: a built-in function can be replaced by a binding
+     * and its result can be undefined, so the specialized operators check their operands
+     * and fall back to the generic operator.
+     * @return the inferred type of expr
+     */
+    static char infer(Symbol expr, Set<Symbol> visited) {
+        if (expr == null)
+            return 0;
+        if (!visited.add(expr))
+            return expr.valueType;
+        for (Symbol s : children(expr))
+            infer(s, visited);
+        if (expr.predicate != null || expr.group != null || expr.keepArray)
+            return 0;
+        switch (expr.type != null ? expr.type : "") {
+            case "number":
+                return expr.valueType = 'n';
+            case "string":
+                return expr.valueType = 's';
+            case "value":
+                return expr.valueType = expr.value instanceof Boolean ? 'b' : 0;
+            case "unary":
+                if ("-".equals(expr.value) && expr.expression.valueType == 'n')
+                    return expr.valueType = 'n';
+                return 0;
+            case "binary":
+                switch ("" + expr.value) {
+                    case "+":
+                    case "-":
+                    case "*":
+                    case "/":
+                    case "%":
+                        // the result of a division can be undefined (0 / 0)
+                        return expr.valueType = expr.lhs.valueType == 'n' && expr.rhs.valueType == 'n' ? 'n' : 0;
+                    case "&":
+                        return expr.valueType = 's';
+                    case "=":
+                    case "!=":
+                    case "<":
+                    case "<=":
+                    case ">":
+                    case ">=":
+                    case "in":
+                    case "and":
+                    case "or":
+                        return expr.valueType = 'b';
+                    default:
+                        return 0;
+                }
+            case "condition":
+                if (expr._else != null && expr.then.valueType == expr._else.valueType)
+                    return expr.valueType = expr.then.valueType;
+                return 0;
+            case "block":
+                if (expr.expressions.isEmpty())
+                    return 0;
+                return expr.valueType = expr.expressions.get(expr.expressions.size() - 1).valueType;
+            case "function": {
+                // built-in function (not bound in a block or lambda)
+                if (!"variable".equals(expr.procedure.type) || expr.procedure.frameDepth >= 0)
+                    return 0;
+                Object proc = Jsonata.staticFrame.lookup("" + expr.procedure.value);
+                String type = proc instanceof JFunction && ((JFunction) proc).signature != null ?
+                    ((JFunction) proc).signature.getReturnType() : null;
+                if (type != null && type.length() == 1 && "nsb".contains(type))
+                    return expr.valueType = type.charAt(0);
+                return 0;
+            }
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * Loop invariant hoisting: marks the sub expressions of loop bodies that depend
+     * neither on the context nor on a variable bound in a loop body (see Symbol.hoist),
+     * e.g. $max($$.limits.price) in items[price > $max($$.limits.price)].
+     * Loop bodies are evaluated per item or call: path steps, predicates, sort terms,
+     * group / object constructor pairs and lambda bodies.
+     * An invariant expression is evaluated once and reused while the frames it reads
+     * are unchanged (see Jsonata.evaluateInvariant). It only calls built-in functions that
+     * take no function arguments and do not default to the context, except $random and $eval.
+     */
+    static void hoist(Symbol ast) {
+        Hoisting state = new Hoisting();
+        bound(ast, false, state, Collections.newSetFromMap(new IdentityHashMap<>()));
+        hoist(ast, false, 0, state);
+    }
+
+    /**
+     * State of the invariant analysis
+     */
+    static class Hoisting {
+        // variables bound in loop bodies
+        final Set<String> bound = new HashSet<>();
+        // all bound variables (a built-in function can be replaced by a binding)
+        final Set<String> names = new HashSet<>();
+        // invariance of the expressions evaluated against the context of the loop body
+        final Map<Symbol, Boolean> invariants = new IdentityHashMap<>();
+        final Set<Symbol> visited = Collections.newSetFromMap(new IdentityHashMap<>());
+    }
+
+    /**
+     * collect the variables bound in loop bodies and the names of all bound variables
+     */
+    static void bound(Symbol expr, boolean body, Hoisting state, Set<Symbol> visited) {
+        if (expr == null || !visited.add(expr))
+            return;
+        List<String> names = new ArrayList<>();
+        // parameters and tuple variables are bound per call / item
+        boolean local = body;
+        switch (expr.type != null ? expr.type : "") {
+            case "bind":
+                names.add("" + expr.lhs.value);
+                break;
+            case "lambda":
+                for (Symbol arg : expr.arguments)
+                    names.add("" + arg.value);
+                local = true;
+                break;
+            case "path":
+                for (Symbol step : expr.steps) {
+                    if (step.focus != null)
+                        names.add("" + step.focus);
+                    if (step.index != null)
+                        names.add("" + step.index);
+                }
+                local = true;
+                break;
+        }
+        state.names.addAll(names);
+        if (local)
+            state.bound.addAll(names);
+        Set<Symbol> bodies = bodies(expr);
+        for (Symbol s : children(expr))
+            bound(s, body || bodies.contains(s), state, visited);
+    }
+
+    /**
+     * @return the sub expressions of expr that are evaluated per item or call
+     */
+    static Set<Symbol> bodies(Symbol expr) {
+        Set<Symbol> res = Collections.newSetFromMap(new IdentityHashMap<>());
+        res.addAll(outer(expr));
+        if (expr.stages != null)
+            for (Symbol stage : expr.stages)
+                if (stage.expr instanceof Symbol)
+                    res.add((Symbol) stage.expr);
+        if (expr.steps != null)
+            res.addAll(expr.steps);
+        if (expr.terms != null)
+            res.addAll(expr.terms);
+        if (expr.lhsObject != null)
+            for (Symbol[] pair : expr.lhsObject) {
+                res.add(pair[0]);
+                res.add(pair[1]);
+            }
+        if ("lambda".equals(expr.type) && !expr.thunk)
+            res.add(expr.body);
+        return res;
+    }
+
+    /**
+     * marks the invariant sub expressions of loop bodies
+     * @param body - expr is part of a loop body
+     * @param frames - frames created in the loop body around expr
+     */
+    static void hoist(Symbol expr, boolean body, int frames, Hoisting state) {
+        if (expr == null || !state.visited.add(expr))
+            return;
+        if (body && costly(expr) && invariant(expr, false, state)) {
+            expr.hoist = frames;
+            return;
+        }
+        descend(expr, body, frames, state);
+    }
+
+    static void descend(Symbol expr, boolean body, int frames, Hoisting state) {
+        // tuple streams and transforms evaluate their sub expressions in frames of their own
+        if ("transform".equals(expr.type) || "path".equals(expr.type) && tuple(expr))
+            return;
+        Set<Symbol> bodies = bodies(expr);
+        for (Symbol s : children(expr)) {
+            if (expr.steps != null && expr.steps.contains(s)) {
+                // the step itself is evaluated by the path
+                if (state.visited.add(s))
+                    descend(s, true, 0, state);
+            } else if (bodies.contains(s))
+                // a lambda body is evaluated in the frame of the call
+                hoist(s, true, s == expr.body ? 1 : 0, state);
+            else if ("block".equals(expr.type) && !expr.frameless && expr.expressions.contains(s))
+                hoist(s, body, frames + 1, state);
+            else
+                hoist(s, body, frames, state);
+        }
+    }
+
+    /**
+     * @return true if the path binds variables or refers to ancestors
+     */
+    static boolean tuple(Symbol path) {
+        if (path.tuple != null)
+            return true;
+        for (Symbol step : path.steps)
+            if (step.tuple != null || step.focus != null || step.index != null || step.ancestor != null)
+                return true;
+        return false;
+    }
+
+    /**
+     * @return true if evaluating the expression navigates the input or calls a function
+     */
+    static boolean costly(Symbol expr) {
+        if ("path".equals(expr.type) || "function".equals(expr.type))
+            return true;
+        for (Symbol s : children(expr))
+            if (costly(s))
+                return true;
+        return false;
+    }
+
+    /**
+     * @param relative - the context of expr is a value produced within the expression
+     * (a step following the first step of a path, a predicate or sort term)
+     * @return true if the value of the expression only depends on the root, literals and
+     * variables that are not bound in a loop body
+     */
+    static boolean invariant(Symbol expr, boolean relative, Hoisting state) {
+        if (expr == null)
+            return true;
+        Boolean res = relative ? null : state.invariants.get(expr);
+        if (res == null) {
+            res = pure(expr, relative, state);
+            if (!relative)
+                state.invariants.put(expr, res);
+        }
+        return res;
+    }
+
+    static boolean pure(Symbol expr, boolean relative, Hoisting state) {
+        if (expr.seekingParent != null || expr.tuple != null || expr.focus != null || expr.index != null || expr.ancestor != null)
+            return false;
+        // predicates, stages and grouping are evaluated against the items of the result
+        for (Symbol s : outer(expr))
+            if (!invariant(s, true, state))
+                return false;
+        if (expr.stages != null)
+            for (Symbol stage : expr.stages)
+                if (!"filter".equals(stage.type) || !invariant((Symbol) stage.expr, true, state))
+                    return false;
+        switch (expr.type != null ? expr.type : "") {
+            case "string":
+            case "number":
+            case "value":
+            case "regex":
+                return true;
+            case "variable":
+                // $ is the context
+                return "".equals(expr.value) ? relative : !state.bound.contains("" + expr.value);
+            case "name":
+            case "wildcard":
+            case "descendant":
+                return relative;
+            case "path":
+                for (int i = 0; i < expr.steps.size(); i++)
+                    if (!invariant(expr.steps.get(i), relative || i > 0, state))
+                        return false;
+                return true;
+            case "sort":
+                if (!relative)
+                    return false;
+                for (Symbol term : expr.terms)
+                    if (!invariant(term.expression, true, state))
+                        return false;
+                return true;
+            case "unary":
+                if (expr.operator == Operator.OBJECT) {
+                    if (expr.lhsObject == null)
+                        return true;
+                    for (Symbol[] pair : expr.lhsObject)
+                        if (!invariant(pair[0], relative, state) || !invariant(pair[1], relative, state))
+                            return false;
+                    return true;
+                }
+                if (expr.operator == Operator.ARRAY)
+                    return all(expr.expressions, relative, state);
+                return expr.operator == Operator.NEGATE && invariant(expr.expression, relative, state);
+            case "binary":
+                return expr.operator != null && invariant(expr.lhs, relative, state) && invariant(expr.rhs, relative, state);
+            case "condition":
+                return invariant(expr.condition, relative, state) && invariant(expr.then, relative, state)
+                    && invariant(expr._else, relative, state);
+            case "block":
+                return all(expr.expressions, relative, state);
+            case "function": {
+                Symbol procedure = expr.procedure;
+                if (!"variable".equals(procedure.type) || procedure.frameDepth >= 0 || procedure.predicate != null)
+                    return false;
+                String name = "" + procedure.value;
+                if (state.names.contains(name) || name.equals("random") || name.equals("eval"))
+                    return false;
+                Object proc = Jsonata.staticFrame.lookup(name);
+                if (!(proc instanceof JFunction) || ((JFunction) proc).signature == null
+                    || ((JFunction) proc).signature.hasFunctionOrContextParam())
+                    return false;
+                return all(expr.arguments, relative, state);
+            }
+            default:
+                return false;
+        }
+    }
+
+    static boolean all(List<Symbol> list, boolean relative, Hoisting state) {
+        // null for constant constructors pre-built by the optimizer
+        if (list == null)
+            return true;
+        for (Symbol s : list)
+            if (!invariant(s, relative, state))
+                return false;
+        return true;
+    }
+
+    /**
+     * Loop fusion: marks the calls of $map, $filter, $reduce and $sort that are passed a
+     * literal lambda whose frame cannot be captured, e.g. $map(items, function($v){ $v.price * 2 }).
+     * The lambda body is evaluated in a loop over the array that rebinds the parameters
+     * in a single frame (see FusedLoop). The function is checked when the call is evaluated,
+     * since a built-in can be replaced by a binding.
+     */
+    static void fuse(Symbol expr, Set<Symbol> visited) {
+        if (expr == null || !visited.add(expr))
+            return;
+        if ("function".equals(expr.type) && "variable".equals(expr.procedure.type) && expr.procedure.frameDepth < 0
+            && expr.procedure.predicate == null && FusedLoop.NAMES.contains("" + expr.procedure.value))
+            for (Symbol arg : expr.arguments)
+                if ("lambda".equals(arg.type) && !arg.thunk && arg.reuseFrame && arg.signature == null)
+                    expr.fuse = true;
+        for (Symbol s : children(expr))
+            fuse(s, visited);
+    }
+
+    /**
+     * Constant folding and dead code elimination: folds constant sub expressions
+     * into literals, replaces conditions with a constant condition by the branch taken
+     * and removes block expressions without effect, including bindings that are never read.
+     * Constant array and object constructors are pre-built and copied on evaluation.
+     * 
+     * @param constants - evaluates a constant sub expression (expressions that throw are not folded)
+     */
+    Symbol optimize(Symbol ast, Function<Symbol, Object> constants) {
+        Set<String> reads = new HashSet<>();
+        // with $eval, variables can be read dynamically
+        if (!reads(ast, reads, Collections.newSetFromMap(new IdentityHashMap<>())))
+            reads = null;
+        return optimize(ast, constants, reads, new IdentityHashMap<>());
+    }
+
+    /**
+     * collect the names of the variables read in the expression
+     * @return false if the expression uses $eval
+     */
+    boolean reads(Symbol expr, Set<String> reads, Set<Symbol> visited) {
+        if (expr == null || !visited.add(expr))
+            return true;
+        List<Symbol> children;
+        switch (expr.type != null ? expr.type : "") {
+            case "variable":
+                reads.add("" + expr.value);
+                return !"eval".equals(expr.value);
+            case "bind":
+                children = outer(expr);
+                children.add(expr.rhs);
+                break;
+            case "lambda":
+                children = outer(expr);
+                children.add(expr.body);
+                break;
+            default:
+                children = children(expr);
+        }
+        for (Symbol s : children)
+            if (!reads(s, reads, visited))
+                return false;
+        return true;
+    }
+
+    Symbol optimize(Symbol expr, Function<Symbol, Object> constants, Set<String> reads, Map<Symbol, Symbol> done) {
+        if (expr == null)
+            return null;
+        Symbol res = done.get(expr);
+        if (res != null)
+            return res;
+        done.put(expr, expr);
+
+        // optimize the sub expressions first
+        expr.lhs = optimize(expr.lhs, constants, reads, done);
+        expr.rhs = optimize(expr.rhs, constants, reads, done);
+        expr.condition = optimize(expr.condition, constants, reads, done);
+        expr.then = optimize(expr.then, constants, reads, done);
+        expr._else = optimize(expr._else, constants, reads, done);
+        expr.procedure = optimize(expr.procedure, constants, reads, done);
+        expr.body = optimize(expr.body, constants, reads, done);
+        expr.expression = optimize(expr.expression, constants, reads, done);
+        expr.pattern = optimize(expr.pattern, constants, reads, done);
+        expr.update = optimize(expr.update, constants, reads, done);
+        expr.delete = optimize(expr.delete, constants, reads, done);
+        for (List<Symbol> list : Arrays.asList(expr.steps, expr.arguments, expr.expressions, expr.terms))
+            if (list != null)
+                for (int i = 0; i < list.size(); i++) {
+                    Symbol s = optimize(list.get(i), constants, reads, done);
+                    if (s != list.get(i))
+                        list.set(i, s);
+                }
+        for (List<Symbol> stages : Arrays.asList(expr.stages, expr.predicate))
+            if (stages != null)
+                for (Symbol stage : stages)
+                    if (stage.expr instanceof Symbol)
+                        stage.expr = optimize((Symbol) stage.expr, constants, reads, done);
+        for (Symbol group : new Symbol[] {expr, expr.group})
+            if (group != null && group.lhsObject != null)
+                for (Symbol[] pair : group.lhsObject) {
+                    pair[0] = optimize(pair[0], constants, reads, done);
+                    pair[1] = optimize(pair[1], constants, reads, done);
+                }
+
+        res = fold(expr, constants, reads);
+        done.put(expr, res);
+        return res;
+    }
+
+    Symbol fold(Symbol expr, Function<Symbol, Object> constants, Set<String> reads) {
+        if (!plain(expr))
+            return expr;
+        switch (expr.type != null ? expr.type : "") {
+            case "binary":
+                switch ("" + expr.value) {
+                    case "+": case "-": case "*": case "/": case "%":
+                    case "=": case "!=": case "<": case "<=": case ">": case ">=":
+                    case "&": case "in": case "and": case "or":
+                        if (literal(expr.lhs) && literal(expr.rhs))
+                            return constant(expr, constants);
+                }
+                return expr;
+            case "unary":
+                switch ("" + expr.value) {
+                    case "-":
+                        if (literal(expr.expression))
+                            return constant(expr, constants);
+                        return expr;
+                    case "[":
+                        for (Symbol item : expr.expressions)
+                            if (!literal(item) && !range(item))
+                                return expr;
+                        return constant(expr, constants);
+                    case "{":
+                        for (Symbol[] pair : expr.lhsObject)
+                            if (!literal(pair[0]) || !literal(pair[1]))
+                                return expr;
+                        return constant(expr, constants);
+                }
+                return expr;
+            case "condition":
+                if (literal(expr.condition)) {
+                    Object condition = evaluate(expr.condition, constants);
+                    if (condition != null && Jsonata.boolize(condition))
+                        return expr.then;
+                    if (condition != null && expr._else != null)
+                        return expr._else;
+                }
+                return expr;
+            case "block": {
+                // expressions without effect, except the last one which is the value of the block
+                var expressions = expr.expressions;
+                for (int i = expressions.size() - 2; i >= 0; i--)
+                    if (dead(expressions.get(i), reads))
+                        expressions.remove(i);
+                if (expressions.size() == 1 && literal(expressions.get(0)))
+                    return expressions.get(0);
+                return expr;
+            }
+            default:
+                return expr;
+        }
+    }
+
+    /**
+     * no predicates, grouping or path / tuple annotations
+     */
+    static boolean plain(Symbol expr) {
+        return expr.predicate == null && expr.group == null && expr.stages == null && !expr.keepArray &&
+            expr.focus == null && expr.index == null && expr.tuple == null && expr.ancestor == null;
+    }
+
+    /**
+     * literal or constant array / object
+     */
+    static boolean literal(Symbol expr) {
+        if (expr == null || !plain(expr))
+            return false;
+        switch (expr.type) {
+            case "string":
+            case "number":
+            case "value":
+                return true;
+            default:
+                return expr.literal != null;
+        }
+    }
+
+    /**
+     * range with constant bounds (only valid within an array constructor)
+     */
+    static boolean range(Symbol expr) {
+        return "binary".equals(expr.type) && "..".equals(expr.value) && plain(expr) && literal(expr.lhs) && literal(expr.rhs);
+    }
+
+    /**
+     * pure expression (or binding that is never read) whose value is not used
+     */
+    static boolean dead(Symbol expr, Set<String> reads) {
+        if (!plain(expr))
+            return false;
+        switch (expr.type) {
+            case "bind":
+                return reads != null && !reads.contains("" + expr.lhs.value) && dead(expr.rhs, reads);
+            case "lambda":
+            case "variable":
+                return true;
+            default:
+                return literal(expr);
+        }
+    }
+
+    /**
+     * @return the value of a constant expression or null if it cannot be evaluated at parse time
+     */
+    static Object evaluate(Symbol expr, Function<Symbol, Object> constants) {
+        try {
+            return constants.apply(expr);
+        } catch (RuntimeException e) {
+            // raised on evaluation
+            return null;
+        }
+    }
+
+    Symbol constant(Symbol expr, Function<Symbol, Object> constants) {
+        Object value = evaluate(expr, constants);
+        var res = new Symbol();
+        res.position = expr.position;
+        if (value == Jsonata.NULL_VALUE) {
+            res.type = "value";
+        } else if (value instanceof String) {
+            res.type = "string";
+            res.value = value;
+        } else if (value instanceof Number) {
+            res.type = "number";
+            res.value = value;
+        } else if (value instanceof Boolean) {
+            res.type = "value";
+            res.value = value;
+        } else if ((value instanceof List || value instanceof Map) && expr.type.equals("unary")) {
+            res.type = expr.type;
+            res.value = expr.value;
+            res.operator = expr.operator;
+            res.consarray = expr.consarray;
+            res.literal = value;
+        } else {
+            // undefined, functions
+            return expr;
+        }
+        return res;
+    }
+
+    /**
+     * Common sub expression elimination: paths of names that start with the same steps
+     * and are evaluated against the same context (e.g. the values of an object constructor)
+     * share the evaluation of the common prefix. The prefix sequence is remembered per
+     * context input for the duration of an evaluation (see Jsonata.evaluatePath).
+     * 
+     * Lambda bodies, predicates, sort terms, path steps and object keys have contexts
+     * of their own.
+     */
+    void eliminate(Symbol ast) {
+        Map<Object, Map<List<Object>, List<Symbol>>> contexts = new IdentityHashMap<>();
+        paths(ast, new Object(), contexts, Collections.newSetFromMap(new IdentityHashMap<>()));
+        for (Map<List<Object>, List<Symbol>> prefixes : contexts.values()) {
+            // longest prefix each path shares with another path
+            Map<List<Object>, List<Symbol>> shared = new HashMap<>();
+            for (Map.Entry<List<Object>, List<Symbol>> e : prefixes.entrySet())
+                if (e.getValue().size() > 1)
+                    for (Symbol path : e.getValue())
+                        if (path.cse == null || ((List<?>) path.cse).size() < e.getKey().size())
+                            path.cse = e.getKey();
+            for (List<Symbol> paths : prefixes.values())
+                for (Symbol path : paths)
+                    if (path.cse != null)
+                        shared.computeIfAbsent((List<Object>) path.cse, k -> new ArrayList<>()).add(path);
+            for (Map.Entry<List<Object>, List<Symbol>> e : shared.entrySet())
+                for (Symbol path : e.getValue())
+                    if (e.getValue().size() > 1) {
+                        path.cse = e.getKey();
+                        path.cseSteps = e.getKey().size();
+                    } else
+                        path.cse = null;
+        }
+    }
+
+    void paths(Symbol expr, Object context, Map<Object, Map<List<Object>, List<Symbol>>> contexts, Set<Symbol> visited) {
+        if (expr == null || !visited.add(expr))
+            return;
+
+        // predicates are evaluated per item, group keys per item and group values per group
+        if (expr.predicate != null)
+            for (Symbol p : expr.predicate)
+                if (p.expr instanceof Symbol)
+                    paths((Symbol) p.expr, new Object(), contexts, visited);
+        pairs(expr.group, contexts, visited);
+
+        switch (expr.type != null ? expr.type : "") {
+            case "path": {
+                int names = 0;
+                while (names < expr.steps.size() && expr.steps.get(names).type.equals("name") && plain(expr.steps.get(names)))
+                    names++;
+                if (names == expr.steps.size() && names > 2 && expr.tuple == null && expr.seekingParent == null) {
+                    var prefixes = contexts.computeIfAbsent(context, k -> new HashMap<>());
+                    List<Object> prefix = new ArrayList<>();
+                    for (int i = 0; i < names - 1; i++) {
+                        prefix.add(expr.steps.get(i).value);
+                        if (i > 0)
+                            prefixes.computeIfAbsent(new ArrayList<>(prefix), k -> new ArrayList<>()).add(expr);
+                    }
+                    return;
+                }
+                for (int i = 0; i < expr.steps.size(); i++) {
+                    Symbol step = expr.steps.get(i);
+                    if (step.stages != null)
+                        for (Symbol stage : step.stages)
+                            if (stage.expr instanceof Symbol)
+                                paths((Symbol) stage.expr, new Object(), contexts, visited);
+                    paths(step, i == 0 ? context : new Object(), contexts, visited);
+                }
+                return;
+            }
+            case "lambda":
+                paths(expr.body, new Object(), contexts, visited);
+                return;
+            case "unary":
+                if ("{".equals(expr.value)) {
+                    pairs(expr, contexts, visited);
+                    return;
+                }
+                break;
+            case "sort":
+                if (expr.terms != null)
+                    for (Symbol term : expr.terms)
+                        paths(term.expression, new Object(), contexts, visited);
+                return;
+            case "transform":
+                paths(expr.pattern, context, contexts, visited);
+                paths(expr.update, new Object(), contexts, visited);
+                paths(expr.delete, new Object(), contexts, visited);
+                return;
+        }
+        List<Symbol> children = children(expr);
+        children.removeAll(outer(expr));
+        for (Symbol s : children)
+            paths(s, context, contexts, visited);
+    }
+
+    void pairs(Symbol group, Map<Object, Map<List<Object>, List<Symbol>>> contexts, Set<Symbol> visited) {
+        if (group == null || group.lhsObject == null)
+            return;
+        Object values = new Object();
+        for (Symbol[] pair : group.lhsObject) {
+            paths(pair[0], new Object(), contexts, visited);
+            paths(pair[1], values, contexts, visited);
+        }
+    }
+
     public Symbol parse(String jsonata) {
+        return parse(jsonata, null, null, false);
+    }
+
+    /**
+     * @param constants - evaluates constant sub expressions for the optimizer (null = do not optimize)
+     * @param root - variables of the root frame addressed by slot (parameters of a prepared expression, null = none)
+     * @param nested - the expression is evaluated in the frames of its caller (see $eval)
+     */
+    Symbol parse(String jsonata, Function<Symbol, Object> constants, String[] root, boolean nested) {
         source = jsonata;
 
         // now invoke the tokenizer and the parser and return the syntax tree
@@ -1446,6 +2554,22 @@ public class Parser {
         }
 
         expr = processAST(expr);
+        operators(expr, Collections.newSetFromMap(new IdentityHashMap<>()));
+
+        if (constants != null) {
+            expr = optimize(expr, constants);
+            eliminate(expr);
+        }
+
+        positional(expr, Collections.newSetFromMap(new IdentityHashMap<>()));
+
+        resolve(expr, root, nested);
+
+        infer(expr, Collections.newSetFromMap(new IdentityHashMap<>()));
+
+        hoist(expr);
+
+        fuse(expr, Collections.newSetFromMap(new IdentityHashMap<>()));
 
         if(expr.type.equals("parent") || expr.seekingParent != null) {
             // error - trying to derive ancestor at top level
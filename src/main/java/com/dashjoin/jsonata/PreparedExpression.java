@@ -0,0 +1,65 @@
+/**
+ * jsonata-java is the JSONata Java reference port
+ *
+ * Copyright Dashjoin GmbH. https://dashjoin.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dashjoin.jsonata;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Expression with positional parameters, see Jsonata.prepare.
+ *
+ * The parameters are the variables of the root frame following the input:
+ * references to them are resolved to a slot when the expression is parsed,
+ * and the arguments of an evaluation are copied into the slots of its root frame.
+ */
+public class PreparedExpression {
+
+    final Jsonata jsonata;
+
+    PreparedExpression(Jsonata jsonata) {
+        this.jsonata = jsonata;
+    }
+
+    /**
+     * Evaluate the expression against input data
+     *
+     * @param input - Input data to evaluate against
+     * @param arguments - values of the parameters, in the order they were declared
+     * @return Evaluated input data
+     */
+    public Object evaluate(Object input, Object... arguments) {
+        if (arguments.length != jsonata.root.length - 1)
+            throw new IllegalArgumentException("Expected " + (jsonata.root.length - 1) + " arguments, got " + arguments.length);
+        return jsonata.evaluate(input, null, arguments);
+    }
+
+    /**
+     * @return the names of the parameters
+     */
+    public List<String> getParameters() {
+        return Arrays.asList(jsonata.root).subList(1, jsonata.root.length);
+    }
+
+    /**
+     * The underlying expression, e.g. to select the engine or to evaluate with callbacks / bounds.
+     * Its evaluate methods look the parameters up in the bindings by name.
+     */
+    public Jsonata getJsonata() {
+        return jsonata;
+    }
+}
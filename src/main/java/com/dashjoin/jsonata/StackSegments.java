@@ -0,0 +1,234 @@
+/**
+ * jsonata-java is the JSONata Java reference port
+ *
+ * Copyright Dashjoin GmbH. https://dashjoin.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dashjoin.jsonata;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import com.dashjoin.jsonata.Jsonata.Frame;
+
+/**
+ * Segmented evaluation stack, see Frame.setStackBounds.
+ *
+ * Nested lambda calls are counted per evaluation. Every segmentDepth nested calls,
+ * the evaluation continues on a worker thread with a stack of segmentSize bytes while
+ * the calling thread waits, so the depth of a recursion is bounded by maxDepth
+ * instead of the stack of the thread that runs the evaluation (e.g. a virtual thread).
+ * The first segment is the stack of the evaluating thread. The worker threads are pooled
+ * per segment size and shared by all configurations; idle workers stop after a minute.
+ *
+ * The segments are thread stacks rather than a continuation stack on the heap: the
+ * interpreter and the compiled engines evaluate recursively, so an evaluation needs at
+ * most maxDepth / segmentDepth waiting workers of segmentSize bytes each.
+ *
+ * Recursions over nested data (descendants, input validation, null conversion) continue
+ * on a new segment every segmentDepth levels of the data (see full). Their depth is not
+ * bounded by maxDepth.
+ *
+ * If the calling thread is interrupted while it waits, the worker is interrupted as well
+ * and the caller waits until it stops. Workers check the interrupt flag on lambda calls,
+ * on new segments and on timebox checks (see Timebox.checkTimeout).
+ */
+final class StackSegments {
+
+    final int maxDepth;
+    final int segmentDepth;
+    final long segmentSize;
+
+    /**
+     * Worker threads per segment size
+     */
+    static final Map<Long, ExecutorService> executors = new ConcurrentHashMap<>();
+
+    /**
+     * State of a running evaluation (see start): nested lambda calls
+     * and the depth the current segment starts at
+     */
+    StackSegments origin;
+    int depth;
+    int base;
+
+    StackSegments(Frame frame, int maxDepth, int segmentDepth, long segmentSize) {
+        if (segmentDepth < 1 || segmentSize < 1)
+            throw new IllegalArgumentException("segmentDepth and segmentSize must be positive");
+        this.maxDepth = maxDepth;
+        this.segmentDepth = segmentDepth;
+        this.segmentSize = segmentSize;
+        this.origin = this;
+        frame.bind("__stack", this);
+    }
+
+    StackSegments(StackSegments origin) {
+        this.origin = origin;
+        this.maxDepth = origin.maxDepth;
+        this.segmentDepth = origin.segmentDepth;
+        this.segmentSize = origin.segmentSize;
+    }
+
+    /**
+     * @return the stack of a new evaluation
+     */
+    StackSegments start() {
+        return new StackSegments(this);
+    }
+
+    /**
+     * Runs the body of a lambda, on a new segment if the current one is full
+     */
+    Object call(EvaluationContext context, Supplier<Object> body) {
+        if (Thread.currentThread().isInterrupted())
+            throw interrupted();
+        if (depth >= maxDepth)
+            throw overflow(depth + 1);
+        if (depth - base < segmentDepth) {
+            depth++;
+            try {
+                return body.get();
+            } finally {
+                depth--;
+            }
+        }
+        int _base = base;
+        base = depth;
+        depth++;
+        try {
+            return segment(context, body);
+        } finally {
+            depth--;
+            base = _base;
+        }
+    }
+
+    /**
+     * Runs the body on a worker thread and waits for its result
+     */
+    Object segment(EvaluationContext context, Supplier<Object> body) {
+        if (Thread.currentThread().isInterrupted())
+            throw interrupted();
+        Timebox timebox = context.timebox;
+        // the clock of a CPU time bound continues on the worker
+        long[] elapsed = {timebox != null ? timebox.elapsed() : 0};
+        Worker worker = new Worker();
+        Future<Object> future = executor(segmentSize).submit(() -> {
+            if (!worker.enter())
+                throw interrupted();
+            EvaluationContext.current.set(context);
+            if (timebox != null)
+                timebox.resume(elapsed[0]);
+            try {
+                return body.get();
+            } catch (StackOverflowError e) {
+                throw overflow(depth);
+            } finally {
+                if (timebox != null)
+                    elapsed[0] = timebox.elapsed();
+                EvaluationContext.current.remove();
+                worker.exit();
+            }
+        });
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException)
+                throw (RuntimeException) e.getCause();
+            if (e.getCause() instanceof Error)
+                throw (Error) e.getCause();
+            throw new IllegalStateException(e.getCause());
+        } catch (InterruptedException e) {
+            // the state of the evaluation is released once the caller returns
+            worker.cancel();
+            future.cancel(false);
+            Thread.currentThread().interrupt();
+            throw interrupted();
+        } finally {
+            if (timebox != null)
+                timebox.resume(elapsed[0]);
+        }
+    }
+
+    /**
+     * Thread running a segment. A cancelled worker is interrupted and the caller waits
+     * until it stops at its next check
+     */
+    static final class Worker {
+        Thread thread;
+        boolean cancelled;
+
+        /**
+         * @return false if the segment was cancelled before it started
+         */
+        synchronized boolean enter() {
+            if (cancelled)
+                return false;
+            thread = Thread.currentThread();
+            return true;
+        }
+
+        synchronized void exit() {
+            thread = null;
+            notifyAll();
+        }
+
+        synchronized void cancel() {
+            cancelled = true;
+            if (thread != null)
+                thread.interrupt();
+            while (thread != null)
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    // already interrupted
+                }
+        }
+    }
+
+    /**
+     * @param level - levels of a recursion over nested data on the current segment
+     * @return true if the recursion continues on a new segment (starting at level 0)
+     */
+    static boolean full(EvaluationContext context, int level) {
+        return context != null && context.stack != null && level >= context.stack.segmentDepth;
+    }
+
+    /**
+     * @return the shared pool of workers with a stack of segmentSize bytes
+     */
+    static ExecutorService executor(long segmentSize) {
+        return executors.computeIfAbsent(segmentSize, size ->
+            new ThreadPoolExecutor(0, Integer.MAX_VALUE, 60, TimeUnit.SECONDS, new SynchronousQueue<>(), r -> {
+                Thread thread = new Thread(null, r, "jsonata-stack-segment", size);
+                thread.setDaemon(true);
+                return thread;
+            }));
+    }
+
+    static JException interrupted() {
+        return new JException("Evaluation interrupted", -1);
+    }
+
+    JException overflow(int depth) {
+        return new JException("Stack overflow error: Check for non-terminating recursive function.  Consider rewriting as tail-recursive. Depth="+depth+" max="+maxDepth,-1);
+    }
+}
@@ -17,19 +17,35 @@
  */
 package com.dashjoin.jsonata;
 
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
 import com.dashjoin.jsonata.Jsonata.Frame;
 
 /**
  * Configure max runtime / max recursion depth.
  * See Frame.setRuntimeBounds - usually not used directly
+ *
+ * The bounds are enforced by a governor that is started once per evaluation:
+ * the clock is read every checkInterval evaluated nodes / function calls and
+ * the depth is tracked when a lambda is invoked.
  */
 public class Timebox {
 
+    static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
     long timeout = 5000L;
     int maxDepth = 100;
+    boolean cpuTime;
+    int checkInterval = 1000;
 
-    long time = System.currentTimeMillis();
+    /**
+     * State of a running evaluation (see start)
+     */
+    Timebox origin;
+    long time;
     int depth = 0;
+    int count = 0;
 
     /**
      * Protect the process/browser from a runnaway expression
@@ -44,37 +60,109 @@ public class Timebox {
     }
 
     public Timebox(Frame expr, long timeout, int maxDepth) {
+        this(expr, timeout, maxDepth, false);
+    }
+
+    /**
+     * @param cpuTime - measure the timeout in CPU time of the evaluating thread
+     *                  (falls back to wall clock time if not supported by the JVM)
+     */
+    public Timebox(Frame expr, long timeout, int maxDepth, boolean cpuTime) {
         this.timeout = timeout;
         this.maxDepth = maxDepth;
+        this.cpuTime = cpuTime && THREADS.isCurrentThreadCpuTimeSupported();
 
-        // register callbacks
-        expr.setEvaluateEntryCallback( (_exp, _input, _env)-> {
-            if (_env.isParallelCall) return;
-            depth++;
-            checkRunnaway();
-        });
-        expr.setEvaluateExitCallback( (_exp, _input, _env, _res)-> {
-            if (_env.isParallelCall) return;
-            depth--;
-            checkRunnaway();
-        });
+        // register the governor
+        expr.bind("__timebox", this);
+    }
+
+    Timebox(Timebox origin) {
+        this.origin = origin;
+        this.timeout = origin.timeout;
+        this.maxDepth = origin.maxDepth;
+        this.cpuTime = origin.cpuTime;
+        this.checkInterval = origin.checkInterval;
+        this.time = now();
     }
 
-    void checkRunnaway() {
+    /**
+     * @param checkInterval - number of evaluated nodes / function calls between two clock reads
+     */
+    public void setCheckInterval(int checkInterval) {
+        if (checkInterval < 1)
+            throw new IllegalArgumentException("checkInterval must be positive");
+        this.checkInterval = checkInterval;
+    }
+
+    /**
+     * @return the governor of a new evaluation
+     */
+    Timebox start() {
+        return new Timebox(this);
+    }
+
+    long now() {
+        return cpuTime ? THREADS.getCurrentThreadCpuTime() / 1000000L : System.currentTimeMillis();
+    }
+
+    /**
+     * Called for evaluated nodes
+     */
+    void tick() {
+        if (++count >= checkInterval) {
+            count = 0;
+            checkTimeout();
+        }
+    }
+
+    /**
+     * Called when a lambda is invoked
+     */
+    void enter() {
+        depth++;
         if (depth > maxDepth) {
+            depth--;
             // stack too deep
-            throw new JException("Stack overflow error: Check for non-terminating recursive function.  Consider rewriting as tail-recursive. Depth="+depth+" max="+maxDepth,-1);
+            throw new JException("Stack overflow error: Check for non-terminating recursive function.  Consider rewriting as tail-recursive. Depth="+(depth+1)+" max="+maxDepth,-1);
                 //stack: new Error().stack,
                 //code: "U1001"
             //};
         }
-        if (System.currentTimeMillis() - time > timeout) {
+        tick();
+    }
+
+    /**
+     * Called when a lambda returns
+     */
+    void exit() {
+        depth--;
+    }
+
+    /**
+     * @return the time the evaluation has run so far
+     */
+    long elapsed() {
+        return now() - time;
+    }
+
+    /**
+     * Continues the clock on the current thread (CPU time is measured per thread, see StackSegments)
+     */
+    void resume(long elapsed) {
+        time = now() - elapsed;
+    }
+
+    void checkTimeout() {
+        // the evaluation was cancelled, e.g. by the caller of a stack segment
+        if (Thread.currentThread().isInterrupted())
+            throw StackSegments.interrupted();
+        if (now() - time > timeout) {
             // expression has run for too long
             throw new JException("Expression evaluation timeout: Check for infinite loop",-1);
                 //stack: new Error().stack,
                 //code: "U1001"
             //};
         }
-    };
+    }
 
 }
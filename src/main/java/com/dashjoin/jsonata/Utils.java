@@ -19,11 +19,22 @@ package com.dashjoin.jsonata;
 
 import java.util.AbstractList;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.ListIterator;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.function.UnaryOperator;
 
 import com.dashjoin.jsonata.Jsonata.JFunction;
 import com.dashjoin.jsonata.Jsonata.JFunctionCallable;
@@ -77,7 +88,7 @@ public class Utils {
     public static List<Object> createSequence() { return createSequence(NONE); }
 
     public static List<Object> createSequence(Object el) {
-        JList<Object> sequence = new JList<>();
+        JList<Object> sequence = new SmallSequence();
         sequence.sequence = true;
         if (el!=NONE) {
             sequence.add(el);
@@ -85,6 +96,288 @@ public class Utils {
         return sequence;
     }
 
+    /**
+     * Sequence that holds a single item without a backing array.
+     *
+     * Most sequences of an evaluation are empty or have one item and are unwrapped right away
+     * (see Jsonata.mangle). The backing array of the list is allocated when a second item is added
+     * or the list is modified otherwise. The flags are those of a JList.
+     */
+    static final class SmallSequence extends JList<Object> {
+
+        private static final long serialVersionUID = 1L;
+
+        Object item;
+
+        /**
+         * Flag: item is the only item of the list (the backing array is empty)
+         */
+        boolean single;
+
+        /**
+         * Moves the item to the backing array
+         */
+        void spill() {
+            if (single) {
+                single = false;
+                super.add(item);
+                item = null;
+            }
+        }
+
+        @Override
+        public int size() {
+            return single ? 1 : super.size();
+        }
+
+        @Override
+        public boolean isEmpty() {
+            return !single && super.isEmpty();
+        }
+
+        @Override
+        public Object get(int index) {
+            if (!single)
+                return super.get(index);
+            if (index != 0)
+                throw new IndexOutOfBoundsException(index);
+            return item;
+        }
+
+        @Override
+        public boolean add(Object e) {
+            if (!single && super.isEmpty()) {
+                item = e;
+                single = true;
+                return true;
+            }
+            spill();
+            return super.add(e);
+        }
+
+        @Override
+        public Iterator<Object> iterator() {
+            if (!single)
+                return super.iterator();
+            Object value = item;
+            return new Iterator<Object>() {
+                boolean next = true;
+
+                @Override
+                public boolean hasNext() {
+                    return next;
+                }
+
+                @Override
+                public Object next() {
+                    if (!next)
+                        throw new NoSuchElementException();
+                    next = false;
+                    return value;
+                }
+            };
+        }
+
+        @Override
+        public void forEach(Consumer<? super Object> action) {
+            if (single)
+                action.accept(item);
+            else
+                super.forEach(action);
+        }
+
+        @Override
+        public boolean contains(Object o) {
+            return single ? Objects.equals(o, item) : super.contains(o);
+        }
+
+        @Override
+        public int indexOf(Object o) {
+            if (single)
+                return Objects.equals(o, item) ? 0 : -1;
+            return super.indexOf(o);
+        }
+
+        @Override
+        public int lastIndexOf(Object o) {
+            return indexOf(o);
+        }
+
+        @Override
+        public Object[] toArray() {
+            return single ? new Object[] {item} : super.toArray();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!single)
+                return super.equals(o);
+            return o instanceof List && ((List) o).size() == 1 && Objects.equals(item, ((List) o).get(0));
+        }
+
+        @Override
+        public int hashCode() {
+            return single ? 31 + Objects.hashCode(item) : super.hashCode();
+        }
+
+        @Override
+        public void clear() {
+            single = false;
+            item = null;
+            super.clear();
+        }
+
+        // the other methods work on the backing array
+
+        @Override
+        public <T> T[] toArray(T[] a) {
+            spill();
+            return super.toArray(a);
+        }
+
+        @Override
+        public Object set(int index, Object element) {
+            spill();
+            return super.set(index, element);
+        }
+
+        @Override
+        public void add(int index, Object element) {
+            spill();
+            super.add(index, element);
+        }
+
+        @Override
+        public Object remove(int index) {
+            spill();
+            return super.remove(index);
+        }
+
+        @Override
+        public boolean remove(Object o) {
+            spill();
+            return super.remove(o);
+        }
+
+        @Override
+        public boolean addAll(Collection<? extends Object> c) {
+            spill();
+            return super.addAll(c);
+        }
+
+        @Override
+        public boolean addAll(int index, Collection<? extends Object> c) {
+            spill();
+            return super.addAll(index, c);
+        }
+
+        @Override
+        protected void removeRange(int fromIndex, int toIndex) {
+            spill();
+            super.removeRange(fromIndex, toIndex);
+        }
+
+        @Override
+        public boolean removeAll(Collection<?> c) {
+            spill();
+            return super.removeAll(c);
+        }
+
+        @Override
+        public boolean retainAll(Collection<?> c) {
+            spill();
+            return super.retainAll(c);
+        }
+
+        @Override
+        public boolean removeIf(Predicate<? super Object> filter) {
+            spill();
+            return super.removeIf(filter);
+        }
+
+        @Override
+        public void replaceAll(UnaryOperator<Object> operator) {
+            spill();
+            super.replaceAll(operator);
+        }
+
+        @Override
+        public void sort(Comparator<? super Object> c) {
+            spill();
+            super.sort(c);
+        }
+
+        @Override
+        public ListIterator<Object> listIterator() {
+            spill();
+            return super.listIterator();
+        }
+
+        @Override
+        public ListIterator<Object> listIterator(int index) {
+            spill();
+            return super.listIterator(index);
+        }
+
+        @Override
+        public List<Object> subList(int fromIndex, int toIndex) {
+            spill();
+            return super.subList(fromIndex, toIndex);
+        }
+
+        @Override
+        public Spliterator<Object> spliterator() {
+            spill();
+            return super.spliterator();
+        }
+
+        @Override
+        public void ensureCapacity(int minCapacity) {
+            spill();
+            super.ensureCapacity(minCapacity);
+        }
+
+        @Override
+        public void trimToSize() {
+            spill();
+            super.trimToSize();
+        }
+
+        // List methods of newer JDKs, where ArrayList reads the backing array directly
+
+        public Object getFirst() {
+            if (isEmpty())
+                throw new NoSuchElementException();
+            return get(0);
+        }
+
+        public Object getLast() {
+            if (isEmpty())
+                throw new NoSuchElementException();
+            return get(size() - 1);
+        }
+
+        public void addFirst(Object e) {
+            add(0, e);
+        }
+
+        public void addLast(Object e) {
+            add(e);
+        }
+
+        public Object removeFirst() {
+            if (isEmpty())
+                throw new NoSuchElementException();
+            return remove(0);
+        }
+
+        public Object removeLast() {
+            if (isEmpty())
+                throw new NoSuchElementException();
+            return remove(size() - 1);
+        }
+    }
+
     public static class JList<E> extends ArrayList<E> {
         public JList() { super(); }
         public JList(int capacity) { super(capacity); }
@@ -104,6 +397,35 @@ public class Utils {
         public boolean cons;
     }
 
+    /**
+     * Deep copy of a pre-built array / object, keeping the JSONata specific flags.
+     * Ranges are immutable and are shared
+     */
+    static Object copy(Object value) {
+        if (value instanceof List && !(value instanceof RangeList)) {
+            var list = (List) value;
+            var res = new JList<>(list.size());
+            for (Object item : list)
+                res.add(copy(item));
+            if (value instanceof JList) {
+                var jlist = (JList) value;
+                res.sequence = jlist.sequence;
+                res.outerWrapper = jlist.outerWrapper;
+                res.tupleStream = jlist.tupleStream;
+                res.keepSingleton = jlist.keepSingleton;
+                res.cons = jlist.cons;
+            }
+            return res;
+        }
+        if (value instanceof Map) {
+            var res = new LinkedHashMap<>();
+            for (var e : ((Map<?, ?>) value).entrySet())
+                res.put(e.getKey(), copy(e.getValue()));
+            return res;
+        }
+        return value;
+    }
+
     public static boolean isSequence(Object result) {
         return result instanceof JList && ((JList)result).sequence;
     }
@@ -139,18 +461,276 @@ public class Utils {
         @Override
         public Number get(int index) {
             if (index < size) {
-                try {
-                    return Utils.convertNumber( a + index );
-                } catch (JException e) {
-                    // TODO Auto-generated catch block
-                    e.printStackTrace();
-                }
+                return Utils.convertNumber( a + index );
             }
             throw new IndexOutOfBoundsException(index);
-        }        
+        }
+    }
+
+    /**
+     * Read-only + immutable view of other lists: a concatenation, a reversed list or an index range.
+     * Like a copy (see Functions.append), a view carries no JSONata flags.
+     *
+     * Used to avoid copying the parts of a sequence. The lists a view is built from are not modified
+     * afterwards. Views are materialized when the result of an evaluation is handed back (see materialize)
+     * and when they are passed to a function implemented outside of the library (see JFunction.external).
+     */
+    static abstract class View extends AbstractList<Object> {
+
+        /**
+         * Flags the evaluation if the value is a view. Called by the evaluation with the
+         * results of the operations that create views
+         * @return the value
+         */
+        static Object track(Object value, EvaluationContext context) {
+            if (value instanceof View)
+                context.views = true;
+            return value;
+        }
+    }
+
+    /**
+     * Lists up to this size are copied instead of being referenced by a concatenation
+     */
+    static final int COPY = 8;
+
+    /**
+     * @return list ++ items: a new list (without flags) or a concatenation
+     */
+    static List<Object> concat(List<?> list, List<?> items) {
+        if (list instanceof ConcatList)
+            return ((ConcatList) list).append(items, true);
+        if (list.size() + items.size() <= COPY) {
+            var res = new JList<Object>(list);
+            res.addAll(items);
+            return res;
+        }
+        return new ConcatList(list).append(items, true);
+    }
+
+    /**
+     * @return list ++ [item]: a new list (without flags) or a concatenation
+     */
+    static List<Object> concatItem(List<?> list, Object item) {
+        if (list instanceof ConcatList)
+            return ((ConcatList) list).append(item, false);
+        if (list.size() < COPY) {
+            var res = new JList<Object>(list);
+            res.add(item);
+            return res;
+        }
+        return new ConcatList(list).append(item, false);
+    }
+
+    /**
+     * Concatenation of lists.
+     *
+     * The concatenations of a chain of appends share their parts: appending to the
+     * latest concatenation adds a part (or adds the items of a small list to the last part)
+     * instead of copying, so building a sequence of n parts is linear.
+     */
+    static final class ConcatList extends View {
+
+        /**
+         * Parts shared by the concatenations of a chain of appends. The parts
+         * are append only, so a concatenation sees the first size items
+         */
+        static final class Parts {
+            List<?>[] lists = new List<?>[4];
+            int[] ends = new int[4];
+            int count;
+            int size;
+
+            /**
+             * The last part if it is owned by the chain and items can be added to it
+             */
+            ArrayList<Object> tail;
+
+            void push(List<?> list) {
+                if (count == lists.length) {
+                    lists = Arrays.copyOf(lists, count * 2);
+                    ends = Arrays.copyOf(ends, count * 2);
+                }
+                lists[count] = list;
+                size += list.size();
+                ends[count++] = size;
+                tail = null;
+            }
+
+            void add(Object item) {
+                if (tail == null) {
+                    var list = new ArrayList<>();
+                    push(list);
+                    tail = list;
+                }
+                tail.add(item);
+                ends[count - 1] = ++size;
+            }
+
+            void addAll(List<?> list) {
+                if (list.size() > COPY)
+                    push(list);
+                else
+                    for (Object item : list)
+                        add(item);
+            }
+        }
+
+        final Parts parts;
+        final int size;
+
+        ConcatList(List<?> list) {
+            parts = new Parts();
+            parts.addAll(list);
+            size = parts.size;
+        }
+
+        ConcatList(Parts parts) {
+            this.parts = parts;
+            this.size = parts.size;
+        }
+
+        /**
+         * @param value - the items to append or the item to append
+         * @param items - flag: value is a list of items
+         */
+        ConcatList append(Object value, boolean items) {
+            Parts res = parts;
+            if (res.size != size) {
+                // a later concatenation extended the parts
+                res = new Parts();
+                res.push(this);
+            }
+            if (items)
+                res.addAll((List<?>) value);
+            else
+                res.add(value);
+            return new ConcatList(res);
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+
+        @Override
+        public Object get(int index) {
+            if (index < 0 || index >= size)
+                throw new IndexOutOfBoundsException(index);
+            int[] ends = parts.ends;
+            // first part that ends after the index
+            int lo = 0, hi = parts.count - 1;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (ends[mid] > index)
+                    hi = mid;
+                else
+                    lo = mid + 1;
+            }
+            return parts.lists[lo].get(index - (lo > 0 ? ends[lo - 1] : 0));
+        }
+
+        @Override
+        public Iterator<Object> iterator() {
+            return new Iterator<Object>() {
+                int index, part, start;
+
+                @Override
+                public boolean hasNext() {
+                    return index < size;
+                }
+
+                @Override
+                public Object next() {
+                    if (index >= size)
+                        throw new NoSuchElementException();
+                    while (parts.ends[part] <= index)
+                        start = parts.ends[part++];
+                    return parts.lists[part].get(index++ - start);
+                }
+            };
+        }
+    }
+
+    /**
+     * List in reverse order
+     */
+    static final class ReversedList extends View {
+
+        final List<?> list;
+
+        ReversedList(List<?> list) {
+            this.list = list;
+        }
+
+        @Override
+        public int size() {
+            return list.size();
+        }
+
+        @Override
+        public Object get(int index) {
+            return list.get(list.size() - 1 - index);
+        }
     }
-     
+
+    /**
+     * Items [from, to) of a list
+     */
+    static final class SliceList extends View {
+
+        final List<?> list;
+        final int from, to;
+
+        SliceList(List<?> list, int from, int to) {
+            this.list = list;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        public int size() {
+            return to - from;
+        }
+
+        @Override
+        public Object get(int index) {
+            if (index < 0 || index >= to - from)
+                throw new IndexOutOfBoundsException(index);
+            return list.get(from + index);
+        }
+    }
+
+    /**
+     * Flattens nested lists. Runs of items that are not lists are not copied
+     * (the list itself is returned if it has no nested lists)
+     */
+    static List<?> flatten(List<?> list) {
+        List<Object> res = null;
+        int run = 0;
+        for (int i = 0; i < list.size(); i++) {
+            Object item = list.get(i);
+            if (item instanceof List) {
+                if (res == null)
+                    res = new JList<>();
+                if (run < i)
+                    res = concat(res, new SliceList(list, run, i));
+                res = concat(res, flatten((List<?>) item));
+                run = i + 1;
+            }
+        }
+        if (res == null)
+            return list;
+        if (run < list.size())
+            res = concat(res, new SliceList(list, run, list.size()));
+        return res;
+    }
+
     public static Number convertNumber(Number n) {
+        if (n instanceof Integer)
+            return n;
+        if (n instanceof Double)
+            return Numbers.of((double) n);
         // Use long if the number is not fractional
         if (!isNumeric(n)) return null;
         if (n.longValue()==n.doubleValue()) {
@@ -163,6 +743,17 @@ public class Utils {
         return n.doubleValue();
     }
 
+    /**
+     * convertNumber without boxing the argument (see Numbers)
+     */
+    public static Number convertNumber(double d) {
+        return Numbers.of(d);
+    }
+
+    public static Number convertNumber(long l) {
+        return Numbers.of(l);
+    }
+
     public static void checkUrl(String str) {
       boolean isHigh = false;
       for ( int i=0; i<str.length(); i++) {
@@ -179,31 +770,45 @@ public class Utils {
         return val != Jsonata.NULL_VALUE ? val : null;
     }
 
-    static void convertNulls(Map<String, Object> res) {
-        for (Entry<String, Object> e : res.entrySet()) {
-            Object val = e.getValue();
-            Object l = convertValue(val);
-            if (l!=val)
-                e.setValue(l);
-            recurse(val);
-        }
+    /**
+     * Converts NULL_VALUEs (if nulls is set) and materializes views, replacing them
+     * in the containing object or list
+     * @return the converted value
+     */
+    static Object convert(Object val, boolean nulls) {
+        return convert(val, nulls, null, 0);
     }
 
-    static void convertNulls(List<Object> res) {
-        for (int i=0; i<res.size(); i++) {
-            Object val = res.get(i);
-            Object l = convertValue(val);
-            if (l!=val)
-                res.set(i, l);
-            recurse(val);
+    /**
+     * @param level - levels of the value on the current stack segment (see StackSegments.full)
+     */
+    @SuppressWarnings("unchecked")
+    static Object convert(Object val, boolean nulls, EvaluationContext context, int level) {
+        if (StackSegments.full(context, level))
+            return context.stack.segment(context, () -> convert(val, nulls, context, 0));
+        if (nulls && val == Jsonata.NULL_VALUE)
+            return null;
+        if (val instanceof Map) {
+            for (Entry<Object, Object> e : ((Map<Object, Object>) val).entrySet()) {
+                Object v = e.getValue();
+                Object l = convert(v, nulls, context, level + 1);
+                if (l!=v)
+                    e.setValue(l);
+            }
         }
-    }
-
-    static void recurse(Object val) {
-        if (val instanceof Map)
-            convertNulls((Map)val);
-        if (val instanceof List)
-            convertNulls((List)val);
+        if (val instanceof List) {
+            List<Object> res = (List<Object>) val;
+            if (res instanceof View)
+                res = new JList<>(res);
+            for (int i=0; i<res.size(); i++) {
+                Object v = res.get(i);
+                Object l = convert(v, nulls, context, level + 1);
+                if (l!=v)
+                    res.set(i, l);
+            }
+            return res;
+        }
+        return val;
     }
 
     /**
@@ -213,8 +818,14 @@ public class Utils {
      * @return The same object with NULL_VALUEs replaced with null
      */
     public static Object convertNulls(Object res) {
-        recurse(res);
-        return convertValue(res);
+        return convert(res, true);
+    }
+
+    /**
+     * @return the value with the views it contains replaced by lists
+     */
+    static Object materialize(Object res) {
+        return convert(res, false);
     }
     
     /**
@@ -65,7 +65,12 @@ public class Json {
 
         @Override
         public void endNumber(String string) {
-            double d = Double.valueOf(string);
+            // integers with up to 15 digits are exact doubles: parse them without the detour
+            if (string.length() <= 15 && isInteger(string)) {
+                value = Utils.convertNumber(Long.parseLong(string));
+                return;
+            }
+            double d = Double.parseDouble(string);
             try {
                 value = Utils.convertNumber(d);
             } catch (JException e) {
@@ -74,6 +79,15 @@ public class Json {
             }
         }
 
+        static boolean isInteger(String string) {
+            for (int i = 0; i < string.length(); i++) {
+                char c = string.charAt(i);
+                if (c != '-' && (c < '0' || c > '9'))
+                    return false;
+            }
+            return true;
+        }
+
         @Override
         public void endArray(List array) {
             value = array;
@@ -82,6 +82,7 @@ public class Signature implements Serializable {
     Param _prevParam = _param;
     Pattern _regex = null;
     String _signature = "";
+    String _returnType;
     String functionName;
 
     public Signature(String signature, String function) {
@@ -169,8 +170,8 @@ public class Signature implements Serializable {
         while (position < signature.length()) {
             char symbol = signature.charAt(position);
             if (symbol == ':') {
-                // TODO figure out what to do with the return type
-                // ignore it for now
+                // the return type is not validated, it is used by the type inference of the parser
+                _returnType = signature.substring(position + 1, signature.length() - 1);
                 break;
             }
 
@@ -399,6 +400,23 @@ public class Signature implements Serializable {
         return null; // dead code -> compiler happy
     }
 
+    /**
+     * Returns the declared return type (e.g. "n" or "a<s>"), null if there is none.
+     */
+    public String getReturnType() {
+        return _returnType;
+    }
+
+    /**
+     * Returns true if a parameter is a function or defaults to the context ('-').
+     */
+    public boolean hasFunctionOrContextParam() {
+        for (Param p : _params)
+            if (p.context || (p.type != null && p.type.contains("f")))
+                return true;
+        return false;
+    }
+
     public int getNumberOfArgs() {
         return _params.size();
     }
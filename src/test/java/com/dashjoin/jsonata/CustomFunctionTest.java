@@ -7,6 +7,7 @@ import org.junit.jupiter.api.Disabled;
 import org.junit.jupiter.api.Test;
 import com.dashjoin.jsonata.Jsonata.JFunction;
 import com.dashjoin.jsonata.Jsonata.JFunctionCallable;
+import com.dashjoin.jsonata.json.Json;
 
 public class CustomFunctionTest {
 
@@ -58,6 +59,36 @@ public class CustomFunctionTest {
     Assertions.assertEquals("abc", expression.evaluate(Map.of("a", "a", "b", "b", "c", "c")));
   }
 
+  /**
+   * Functions can modify their arguments, including sequences built by the evaluation
+   */
+  @Test
+  public void testModifyArgument() {
+    var input = Json.parseJson("{\"a\": [1, 2, 3, 4, 5, 6, 7, 8, 9, 10], \"b\": 11}");
+    for (var engine : Jsonata.Engine.values())
+      for (String[] test : new String[][] {
+          {"$add1($reverse([1,2,3]))", "[3, 2, 1, 0]"},
+          {"$add1($append([1..10],[11]))", "[1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 0]"},
+          {"$add1(*)", "[1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 0]"},
+          {"$add2({'x': $reverse([1,2,3])})", "{x=[3, 2, 1, 0]}"}}) {
+        var expression = Jsonata.jsonata(test[0]);
+        expression.setEngine(engine);
+        expression.registerFunction("add1", (List<Object> list) -> {
+          list.add(0);
+          return list;
+        });
+        expression.registerFunction("add2", new JFunction(new JFunctionCallable() {
+          @SuppressWarnings("unchecked")
+          @Override
+          public Object call(Object input, @SuppressWarnings("rawtypes") List args) throws Throwable {
+            ((List<Object>) ((Map<String, Object>) args.get(0)).get("x")).add(0);
+            return args.get(0);
+          }
+        }, "<o:o>"));
+        Assertions.assertEquals(test[1], "" + expression.evaluate(input), test[0]);
+      }
+  }
+
   /**
    * Lambdas use no signature - in case of an error, a ClassCastException is thrown
    */
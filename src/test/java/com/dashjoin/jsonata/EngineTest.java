@@ -0,0 +1,538 @@
+package com.dashjoin.jsonata;
+
+import static com.dashjoin.jsonata.Jsonata.jsonata;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import com.dashjoin.jsonata.Jsonata.Engine;
+import com.dashjoin.jsonata.json.Json;
+
+public class EngineTest {
+
+  static final String DATA = "{\"a\": [{\"b\": 1, \"c\": \"x\"}, {\"b\": 2, \"c\": \"y\"}, {\"b\": 3, \"c\": \"x\"}], \"d\": [1, [2, 3]], " +
+      "\"e\": [{\"f\": [[{\"g\": 1}], {\"g\": [2, 3]}]}, {\"f\": {\"g\": [[4]]}}]}";
+
+  static final String[] EXPRESSIONS = {
+      "a.b",
+      "a[b > 1].c",
+      "a[0].b",
+      "a[-1]",
+      "$sum(a.b) * 2 - 1",
+      "a.b ~> $sum()",
+      "[1..3].($ * 10)",
+      "[1,2,3][0]",
+      "d",
+      "d[1]",
+      "a{c: $sum(b)}",
+      "a^(>b).b",
+      "a#$i[$i > 0].b",
+      "a@$x.$x.c",
+      "($f := function($v) { $v > 1 ? $v * $f($v - 1) : 1 }; $f(5))",
+      "a.b = 2 and a.c = 'y'",
+      "false or a.b",
+      "'a' & 1 & true",
+      "2 in a.b",
+      "-a[0].b",
+      "[a.b, 4][[0..1]]",
+      "{'k': a.c}",
+      "**.b",
+      "*.b",
+      "$string(a) ~> $substring(0, 3)",
+      "a.$eval('b * 10')",
+      "$map(a, function($v, $i) { $i & $v.c })",
+      "$ ~> | a | {'z': true} |",
+      "($inc := $sum(?, 1); a.b.$inc($))",
+      "a.b.%.c",
+      "$sort(a, function($l, $r) { $l.b < $r.b }).c",
+      "a[c='x']{c: $count($)}",
+      "e.f.g",
+      "e.f",
+      "e.f.g[]",
+      "e[1].f.g",
+      "e.f.g.h",
+      "{'x': e.f.g, 'y': e.f.g[0], 'z': e.f}"
+  };
+
+  Object run(String expr, Engine engine) {
+    var e = jsonata(expr);
+    e.setEngine(engine);
+    try {
+      return e.evaluate(Json.parseJson(DATA));
+    } catch (JException ex) {
+      return ex.getError();
+    }
+  }
+
+  @Test
+  public void testSameResults() {
+    for (String expr : EXPRESSIONS) {
+      Assertions.assertEquals("" + run(expr, Engine.INTERPRETER), "" + run(expr, Engine.COMPILED), expr);
+      Assertions.assertEquals("" + run(expr, Engine.INTERPRETER), "" + run(expr, Engine.BYTECODE), expr);
+    }
+  }
+
+  @Test
+  public void testBytecode() {
+    for (String expr : new String[] {"a.b", "a[b > 1].c", "a.b[0] + 1", "-a[0].b", "a.b = 2 and a.c = 'y'",
+        "false or $unknown()", "$ ? a.b : 0", "$.a[0].b", "[1..3] = 2"}) {
+      var e = jsonata(expr);
+      e.setEngine(Engine.BYTECODE);
+      Assertions.assertEquals(Engine.BYTECODE, e.getTier(), expr);
+    }
+    // no gain: the root is a function call
+    var e = jsonata("$sum(a.b)");
+    e.setEngine(Engine.BYTECODE);
+    Assertions.assertEquals(Engine.COMPILED, e.getTier());
+  }
+
+  @Test
+  public void testBytecodeUnloaded() throws Exception {
+    Assertions.assertEquals(Runtime.version().feature() >= 15, Bytecode.unloadable);
+    if (!Bytecode.unloadable)
+      return;
+    var e = jsonata("a.b");
+    e.setEngine(Engine.BYTECODE);
+    Assertions.assertEquals(Engine.BYTECODE, e.getTier());
+    Class<?> c = e.bytecode.getClass();
+    Assertions.assertEquals(true, Class.class.getMethod("isHidden").invoke(c));
+    // the class is unloaded once the expression is no longer referenced
+    var ref = new WeakReference<Class<?>>(c);
+    c = null;
+    e = null;
+    for (int i = 0; i < 50 && ref.get() != null; i++) {
+      System.gc();
+      Thread.sleep(10);
+    }
+    Assertions.assertNull(ref.get());
+  }
+
+  @Test
+  public void testNamePath() {
+    var e = jsonata("a.b");
+    e.setEngine(Engine.COMPILED);
+    Assertions.assertTrue(e.ast.compiled instanceof Compiler.NamePathNode);
+    e = jsonata("a[0].b");
+    e.setEngine(Engine.COMPILED);
+    Assertions.assertFalse(e.ast.compiled instanceof Compiler.NamePathNode);
+  }
+
+  @Test
+  public void testTypedOperators() {
+    var e = jsonata("$count(a) * 2");
+    e.setEngine(Engine.COMPILED);
+    Assertions.assertTrue(e.ast.compiled instanceof Compiler.TypedNumericNode);
+    e = jsonata("$string(a) = 'x'");
+    e.setEngine(Engine.COMPILED);
+    Assertions.assertTrue(e.ast.compiled instanceof Compiler.TypedEqualityNode);
+    e = jsonata("a.b * 2");
+    e.setEngine(Engine.COMPILED);
+    Assertions.assertTrue(e.ast.compiled instanceof Compiler.NumericNode);
+
+    for (Engine engine : Engine.values()) {
+      Assertions.assertEquals(6, run("$count(a) * 2", engine));
+      Assertions.assertEquals(true, run("$count(a) >= 3", engine));
+      Assertions.assertEquals(4611686014132420608L, run("$number('2147483647') * $number('2147483647')", engine));
+      // a registered function replaces the built-in: the operators fall back to the generic checks
+      var replaced = jsonata("$count(a) * 2");
+      replaced.setEngine(engine);
+      replaced.registerFunction("count", (Object x) -> "many");
+      Assertions.assertThrows(JException.class, () -> replaced.evaluate(Json.parseJson(DATA)));
+    }
+  }
+
+  @Test
+  public void testObjectConstructors() {
+    var e = jsonata("a.{'b': b, 'c': c}");
+    e.setEngine(Engine.COMPILED);
+    Assertions.assertTrue(e.ast.steps.get(1).compiled instanceof Compiler.FixedKeysObjectNode);
+    // computed and duplicate keys use the grouping constructor
+    for (String expr : new String[] {"a.{c: b}", "a.{'b': b, 'b': c}"}) {
+      e = jsonata(expr);
+      e.setEngine(Engine.COMPILED);
+      Assertions.assertTrue(e.ast.steps.get(1).compiled instanceof Compiler.ObjectConstructorNode, expr);
+    }
+
+    for (Engine engine : Engine.values()) {
+      Assertions.assertEquals("[{b=1, c=x}, {b=2, c=y}, {b=3, c=x}]", "" + run("a.{'b': b, 'c': c}", engine));
+      Assertions.assertEquals("{b=[1, 2, 3], d=[1, [2, 3]]}", "" + run("{'b': a.b, 'x': a.x, 'd': d}", engine));
+      // array input: the items are grouped
+      Assertions.assertEquals("{b=[1, 2, 3]}", "" + run("a{'b': b}", engine));
+      var array = jsonata("{'v': $}");
+      array.setEngine(engine);
+      Assertions.assertEquals("{v=[1, 2, 3]}", "" + array.evaluate(List.of(1, 2, 3)));
+      Assertions.assertEquals("D1009", run("{'b': 1, 'b': 2}", engine));
+    }
+  }
+
+  @Test
+  public void testSequenceViews() {
+    var a = new ArrayList<Object>();
+    for (int i = 0; i < 20; i++)
+      a.add(i);
+    // appending to the latest concatenation extends its parts, earlier ones are not affected
+    var b = Functions.append(a, a);
+    var c = Functions.append(b, 20);
+    var d = Functions.append(b, List.of(30, 31));
+    Assertions.assertTrue(b instanceof Utils.ConcatList);
+    Assertions.assertEquals(40, ((List<?>) b).size());
+    Assertions.assertEquals(20, ((List<?>) c).get(40));
+    Assertions.assertEquals(List.of(19, 30, 31), ((List<?>) d).subList(39, 42));
+    Assertions.assertEquals(20, a.size());
+    Assertions.assertEquals(List.of(3, 2, 1), Functions.reverse(List.of(1, 2, 3)));
+    Assertions.assertEquals(List.of(1, 2, 3, 4, 5), Utils.flatten(List.of(1, List.of(2, List.of(3)), 4, 5)));
+
+    for (Engine engine : Engine.values())
+      for (String[] test : new String[][] {
+          {"($a := [1..10]; $b := [$a, $a, 13, [14]]; $b[[8..11]])", "[9, 10, 1, 2]"},
+          {"($a := [1..10]; [$a, $a, 13, [14]])", "[1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 13, [14]]"},
+          {"[1..3, [4]]", "[1, 2, 3, [4]]"},
+          {"[$reverse([1..10]), null, 0]", "[10, 9, 8, 7, 6, 5, 4, 3, 2, 1, null, 0]"},
+          {"$reverse([1..10])", "[10, 9, 8, 7, 6, 5, 4, 3, 2, 1]"},
+          {"($x := [1..10]{'k': $}; $x.k)", "[1, 2, 3, 4, 5, 6, 7, 8, 9, 10]"},
+          {"{'a': [1..10], 'b': [[11..12], 13]}.*", "[1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13]"}}) {
+        var e = jsonata(test[0]);
+        e.setEngine(engine);
+        for (boolean convertNulls : new boolean[] {true, false}) {
+          e.setOutputConvertNulls(convertNulls);
+          Object res = e.evaluate(null);
+          // views are materialized when the result is handed back
+          Assertions.assertTrue(res instanceof Utils.JList, test[0]);
+          Assertions.assertEquals(test[1], "" + res, test[0]);
+        }
+      }
+  }
+
+  @Test
+  public void testSmallSequences() {
+    var s = (Utils.SmallSequence) Utils.createSequence("a");
+    Assertions.assertTrue(s.single);
+    Assertions.assertEquals(List.of("a"), s);
+    Assertions.assertEquals(List.of("a"), new ArrayList<>(s));
+    Assertions.assertEquals(List.of("a").hashCode(), s.hashCode());
+    // the second item and other modifications use the backing array
+    s.add("b");
+    Assertions.assertFalse(s.single);
+    Assertions.assertEquals(List.of("a", "b"), s);
+    s = (Utils.SmallSequence) Utils.createSequence(null);
+    s.set(0, "c");
+    Assertions.assertEquals(List.of("c"), s);
+    s.clear();
+    Assertions.assertTrue(s.isEmpty());
+    Assertions.assertTrue(Utils.isSequence(s));
+
+    for (Engine engine : Engine.values()) {
+      Assertions.assertEquals("[1]", "" + run("a[0].b[]", engine));
+      Assertions.assertEquals(null, run("a[b > 5].c", engine));
+    }
+  }
+
+  @Test
+  public void testSameErrors() {
+    Assertions.assertEquals("T1005", run("sum(1)", Engine.COMPILED));
+    Assertions.assertEquals("T1006", run("$foo(1)", Engine.COMPILED));
+    Assertions.assertEquals("D1002", run("-'x'", Engine.COMPILED));
+    Assertions.assertEquals("T2001", run("'x' + 1", Engine.COMPILED));
+    Assertions.assertEquals("T2001", run("'x' + 1", Engine.BYTECODE));
+    Assertions.assertEquals("D1002", run("-'x'", Engine.BYTECODE));
+    Assertions.assertEquals("Unexpected", run("true and $sort([1, 'a'])", Engine.BYTECODE));
+  }
+
+  @Test
+  public void testDefaultEngine() throws Exception {
+    var e = jsonata("1");
+    Assertions.assertEquals(Engine.TIERED, e.getEngine());
+    Assertions.assertEquals(Engine.INTERPRETER, e.getTier());
+
+    // starts in the interpreter and is promoted without selecting an engine
+    e.setPromotionThreshold(Engine.COMPILED, 1, Long.MAX_VALUE);
+    for (int i = 0; i < 100 && e.getTier() == Engine.INTERPRETER; i++) {
+      Assertions.assertEquals(1, e.evaluate(null));
+      Thread.sleep(10);
+    }
+    Assertions.assertEquals(Engine.COMPILED, e.getTier());
+    Assertions.assertEquals(1, e.evaluate(null));
+
+    // a fixed engine is never promoted
+    e = jsonata("1");
+    e.setEngine(Engine.INTERPRETER);
+    e.setPromotionThreshold(Engine.COMPILED, 1, 1);
+    long promotions = e.getStatistics().getPromotions();
+    for (int i = 0; i < 10; i++)
+      Assertions.assertEquals(1, e.evaluate(null));
+    Assertions.assertEquals(Engine.INTERPRETER, e.getTier());
+    Assertions.assertEquals(promotions, e.getStatistics().getPromotions());
+  }
+
+  @Test
+  public void testPromotion() throws Exception {
+    var e = jsonata("a[b > 1].c");
+    e.setEngine(Engine.TIERED);
+    e.setPromotionThreshold(Engine.COMPILED, 3, Long.MAX_VALUE);
+    e.setPromotionThreshold(Engine.BYTECODE, Long.MAX_VALUE, 20);
+    var input = Json.parseJson(DATA);
+    for (int i = 0; i < 2; i++)
+      Assertions.assertEquals("[y, x]", "" + e.evaluate(input));
+    Assertions.assertEquals(Engine.INTERPRETER, e.getTier());
+
+    // promoted in the background after the third invocation
+    for (int i = 0; i < 100 && e.getTier() != Engine.BYTECODE; i++) {
+      Assertions.assertEquals("[y, x]", "" + e.evaluate(input));
+      Thread.sleep(10);
+    }
+    Assertions.assertEquals(Engine.BYTECODE, e.getTier());
+    Assertions.assertEquals("[y, x]", "" + e.evaluate(input));
+
+    var stats = e.getStatistics();
+    Assertions.assertEquals(Engine.BYTECODE, stats.getTier());
+    Assertions.assertEquals(2, stats.getPromotions());
+    Assertions.assertTrue(stats.getLoops() >= 20);
+  }
+
+  @Test
+  public void testPromotionThreshold() {
+    Assertions.assertThrows(IllegalArgumentException.class,
+        () -> jsonata("1").setPromotionThreshold(Engine.INTERPRETER, 1, 1));
+  }
+
+  @Test
+  public void testCallbacksUseInterpreter() {
+    var e = jsonata("a.b");
+    var frame = e.createFrame();
+    int[] count = {0};
+    frame.setEvaluateEntryCallback((expr, input, environment) -> count[0]++);
+    Assertions.assertEquals("[1, 2, 3]", "" + e.evaluate(Json.parseJson(DATA), frame));
+    Assertions.assertTrue(count[0] > 0);
+  }
+
+  @Test
+  public void testPositionalPredicates() {
+    List<Object> items = new ArrayList<>();
+    for (int i = 0; i < 1000; i++)
+      items.add(Map.of("v", i));
+    var input = Map.of("items", items);
+    for (Engine engine : Engine.values())
+      for (String[] test : new String[][] {
+          {"items[$check(v)][0].v", "10", "11"},
+          {"items[$check(v)][2].v", "12", "13"},
+          {"items[$check(v)][[0..9]].v", "[10, 11, 12, 13, 14, 15, 16, 17, 18, 19]", "20"},
+          {"items[$check(v)][-1].v", "999", "1000"},
+          {"items[[2, 0]].v", "[0, 2]", "0"}}) {
+        int[] count = {0};
+        var e = jsonata(test[0]);
+        e.setEngine(engine);
+        e.registerFunction("check", (Integer v) -> {
+          count[0]++;
+          return v >= 10;
+        });
+        Assertions.assertEquals(test[1], "" + e.evaluate(input), test[0]);
+        Assertions.assertEquals(test[2], "" + count[0], test[0]);
+      }
+  }
+
+  @Test
+  public void testLazySequences() {
+    List<Object> items = new ArrayList<>();
+    for (int i = 0; i < 1000; i++)
+      items.add(Map.of("v", i));
+    var input = Map.of("items", items);
+    for (Engine engine : Engine.values())
+      for (String[] test : new String[][] {
+          {"$exists(items[$check(v)].v)", "true", "12"},
+          {"$count(items[$check(v)].v)", "990", "1000"},
+          {"$sum(items[$check(v)].v)", "499455", "1000"},
+          {"$max(items[$check(v)].v)", "999", "1000"},
+          {"$exists(items[$check(v) and v > 2000])", "false", "1000"}}) {
+        int[] count = {0};
+        var e = jsonata(test[0]);
+        e.setEngine(engine);
+        e.registerFunction("check", (Integer v) -> {
+          count[0]++;
+          return v >= 10;
+        });
+        Assertions.assertEquals(test[1], "" + e.evaluate(input), test[0]);
+        Assertions.assertEquals(test[2], "" + count[0], test[0]);
+      }
+  }
+
+  @Test
+  public void testLazyAggregatesOfNull() {
+    for (Engine engine : Engine.values())
+      for (String[] test : new String[][] {
+          {"{\"a\": null}", "$count(a)", "0"},
+          {"{\"a\": null}", "$exists(a)", "true"},
+          {"{\"a\": null}", "$sum(a)", "null"},
+          {"{\"a\": {\"b\": null}}", "$count(a.b)", "0"},
+          {"{\"a\": {\"b\": null}}", "$exists(a.b)", "true"},
+          {"{\"a\": {\"b\": null}}", "$sum(a.b)", "null"},
+          {"{\"a\": [{\"b\": null}]}", "$count(a.b)", "0"},
+          {"{\"a\": [null, 1]}", "$count(a)", "2"},
+          {"{\"a\": [null, 1]}", "$exists(a)", "true"}}) {
+        var e = jsonata(test[1]);
+        e.setEngine(engine);
+        Assertions.assertEquals(test[2], "" + e.evaluate(Json.parseJson(test[0])), test[0] + " " + test[1]);
+      }
+  }
+
+  @Test
+  public void testLazyAggregateError() {
+    List<Object> items = new ArrayList<>();
+    for (int i = 0; i < 1000; i++)
+      items.add(Map.of("v", i == 500 ? "x" : i));
+    var input = Map.of("items", items);
+    for (Engine engine : Engine.values()) {
+      int[] count = {0};
+      var e = jsonata("$sum(items[$check()].v)");
+      e.setEngine(engine);
+      e.registerFunction("check", () -> {
+        count[0]++;
+        return true;
+      });
+      var ex = Assertions.assertThrows(JException.class, () -> e.evaluate(input));
+      Assertions.assertEquals("T0412", ex.getError());
+      // the items pulled before the error are not evaluated again
+      Assertions.assertEquals(1000, count[0]);
+    }
+  }
+
+  @Test
+  public void testTimeout() {
+    // loops without lambda calls are governed on all engines
+    for (Engine engine : Engine.values())
+      for (String expr : new String[] {"$count([1..5000000][$ % 2 = 0])", "$count([1..5000000].($ + 1))"}) {
+        var e = jsonata(expr);
+        e.setEngine(engine);
+        var frame = e.createFrame();
+        frame.setRuntimeBounds(100, 100);
+        var ex = Assertions.assertThrows(JException.class, () -> e.evaluate(null, frame), engine + " " + expr);
+        Assertions.assertTrue(ex.getMessage().contains("timeout"), ex.getMessage());
+      }
+  }
+
+  @Test
+  public void testLoopInvariants() {
+    List<Object> items = new ArrayList<>();
+    for (int i = 0; i < 100; i++)
+      items.add(Map.of("v", i));
+    var input = Map.of("items", items, "limits", List.of(Map.of("v", 90), Map.of("v", 95)));
+    for (String[] test : new String[][] {
+        {"items[v > $max($$.limits.v)].v", "[96, 97, 98, 99]"},
+        {"$count($filter(items, function($i){ $i.v < $max($$.limits.v) }))", "95"},
+        {"items^(>$abs(v - $max($$.limits.v)))[0].v", "0"},
+        {"$count(items{$string(v % 2): $max($$.limits.v)})", "1"}}) {
+      // the entry callback counts the evaluations on the interpreter
+      int[] count = {0};
+      var e = jsonata(test[0]);
+      var frame = e.createFrame();
+      frame.setEvaluateEntryCallback((expr, input_, environment) -> {
+        if ("function".equals(expr.type) && "max".equals(expr.procedure.value))
+          count[0]++;
+      });
+      Assertions.assertEquals(test[1], "" + e.evaluate(input, frame), test[0]);
+      Assertions.assertEquals(1, count[0], test[0]);
+    }
+  }
+
+  @Test
+  public void testLoopInvariantsRebound() {
+    // the variable read by the invariant is bound after the first call of the closure
+    for (Engine engine : Engine.values()) {
+      var e = jsonata("($f := function($v){ $v & $count($x.y) }; $a := $f('a'); $x := {'y': [1, 2, 3]}; [$a, $f('b')])");
+      e.setEngine(engine);
+      Assertions.assertEquals("[a0, b3]", "" + e.evaluate(null));
+      // parameters are bound per call: the predicate does not reuse the count of a previous call
+      e = jsonata("($loop := function($n, $acc) { $n = 0 ? $acc : $loop($n - 1, $append($acc, $count([1..4][$ > $count([1..$n])]))) }; $loop(3, []))");
+      e.setEngine(engine);
+      Assertions.assertEquals("[1, 2, 3]", "" + e.evaluate(null));
+    }
+  }
+
+  @Test
+  public void testFusedLoops() {
+    Assertions.assertTrue(jsonata("$map(a, function($v){ $v.b * 2 })").ast.fuse);
+    Assertions.assertTrue(jsonata("a ~> $filter(function($v, $i){ $i > 0 })").ast.rhs.fuse);
+    // closures capture the frame of the lambda, signatures validate every call
+    Assertions.assertFalse(jsonata("$map(a, function($v){ function(){ $v } })").ast.fuse);
+    Assertions.assertFalse(jsonata("$map(a, function($v)<o:n>{ $v.b })").ast.fuse);
+    Assertions.assertFalse(jsonata("($f := function($v){ $v.b }; $map(a, $f))").ast.expressions.get(1).fuse);
+
+    for (Engine engine : Engine.values()) {
+      for (String[] test : new String[][] {
+          {"$map(a, function($v, $i, $a){ $v.b * $i + $count($a) })", "[3, 5, 9]"},
+          {"$filter(a, function($v){ $v.c = 'x' }).b", "[1, 3]"},
+          {"$reduce(a.b, function($x, $y, $i){ $x + $y * $i }, 10)", "18"},
+          {"$sort(a, function($l, $r){ $l.b < $r.b }).b", "[3, 2, 1]"},
+          {"($f := function($n){ $n = 0 ? 0 : $f($n - 1) }; $map(a.b, function($v){ $f($v) + $v }))", "[1, 2, 3]"}}) {
+        var e = jsonata(test[0]);
+        e.setEngine(engine);
+        Assertions.assertEquals(test[1], "" + e.evaluate(Json.parseJson(DATA)), test[0]);
+      }
+      // a built-in replaced by a binding is called as usual
+      var e = jsonata("$map(a, function($v){ $v.b })");
+      e.setEngine(engine);
+      var bindings = e.createFrame();
+      bindings.bind("map", (Jsonata.Fn2<Object, Object, Object>) (a, f) -> "bound");
+      Assertions.assertEquals("bound", e.evaluate(Json.parseJson(DATA), bindings));
+    }
+    Assertions.assertThrows(JException.class, () -> jsonata("$reduce(a, function($x){ $x })").evaluate(Json.parseJson(DATA)));
+  }
+
+  @Test
+  public void testComposition() {
+    for (Engine engine : Engine.values()) {
+      var e = jsonata("$trim ~> $uppercase ~> $substring(?, 0, 3)");
+      e.setEngine(engine);
+      var composed = (Composition) e.evaluate(null);
+      // flattened, the partial application is called directly
+      Assertions.assertEquals(3, composed.stages.length);
+      Assertions.assertNotNull(composed.natives[2]);
+
+      for (String[] test : new String[][] {
+          {"($c := $trim ~> $uppercase ~> $substring(?, 0, 3); $c('  abcdef'))", "ABC"},
+          {"($inc := function($x){ $x + 1 }; $f := $inc ~> $inc; ($f ~> $f ~> $string)(0))", "4"},
+          {"$map(a.c, $uppercase ~> $substring(?, 0, 1) ~> $lowercase)", "[x, y, x]"},
+          // the unbound arguments of the partial application do not read variables of the caller
+          {"($c := $trim; ($substring(?, 1) ~> $c)('  abc'))", "abc"}}) {
+        e = jsonata(test[0]);
+        e.setEngine(engine);
+        Assertions.assertEquals(test[1], "" + e.evaluate(Json.parseJson(DATA)), test[0]);
+      }
+    }
+  }
+
+  @Test
+  public void testEvaluateIterator() throws Exception {
+    List<Object> items = new ArrayList<>();
+    for (int i = 0; i < 1000; i++)
+      items.add(Map.of("v", i));
+    var input = Map.of("items", items);
+    int[] count = {0};
+    var e = jsonata("items[$check(v)].v");
+    e.registerFunction("check", (Integer v) -> {
+      count[0]++;
+      return v >= 10;
+    });
+    var it = e.evaluateIterator(input);
+    Assertions.assertEquals(10, it.next());
+    Assertions.assertEquals(11, it.next());
+    Assertions.assertEquals(12, count[0]);
+
+    // an iterator that is dropped is finished once it is collected
+    e.setEngine(Engine.TIERED);
+    e.evaluateIterator(input).next();
+    for (int i = 0; i < 100 && e.getStatistics().getInvocations() == 0; i++) {
+      System.gc();
+      Thread.sleep(10);
+    }
+    Assertions.assertEquals(1, e.getStatistics().getInvocations());
+
+    for (String expr : new String[] {"items.v", "items[0].v", "items[v > 1000]", "[items.v]", "$sum(items.v)"}) {
+      List<Object> res = new ArrayList<>();
+      jsonata(expr).evaluateIterator(input).forEachRemaining(res::add);
+      Object expected = jsonata(expr).evaluate(input);
+      Assertions.assertEquals(expected == null ? List.of() : expected instanceof List ? expected : List.of(expected), res, expr);
+    }
+  }
+}
@@ -1,11 +1,13 @@
 package com.dashjoin.jsonata;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.nio.charset.Charset;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
@@ -16,6 +18,7 @@ import org.junit.jupiter.api.Disabled;
 import org.junit.jupiter.api.Test;
 
 import static com.dashjoin.jsonata.Jsonata.jsonata;
+import com.dashjoin.jsonata.Jsonata.Engine;
 import com.dashjoin.jsonata.Jsonata.Frame;
 import com.dashjoin.jsonata.json.Json;
 import com.fasterxml.jackson.core.JsonProcessingException;
@@ -30,12 +33,34 @@ import static com.dashjoin.jsonata.Jsonata.NULL_VALUE;
 @SuppressWarnings({"rawtypes", "unchecked"})
 public class JsonataTest {
 
+    /**
+     * Engines the test cases run on: all engines except TIERED (which runs on the
+     * interpreter until promotion) or the comma separated list of the jsonata.engines property
+     */
+    static List<Engine> engines() {
+        String engines = System.getProperty("jsonata.engines");
+        if (engines == null)
+            return List.of(Engine.INTERPRETER, Engine.COMPILED, Engine.BYTECODE);
+        List<Engine> res = new ArrayList<>();
+        for (String engine : engines.split(","))
+            res.add(Engine.valueOf(engine.trim()));
+        return res;
+    }
+
     boolean testExpr(String expr, Object data, Map<String,Object> bindings,
         Object expected, String code) {
         boolean success = true;
+        for (Engine engine : engines())
+            success &= testExpr(expr, data, bindings, expected, code, engine);
+        return success;
+    }
+
+    boolean testExpr(String expr, Object data, Map<String,Object> bindings,
+        Object expected, String code, Engine engine) {
+        boolean success = true;
         try {
 
-        if (debug) System.out.println("Expr="+expr+" Expected="+expected+" ErrorCode="+code);
+        if (debug) System.out.println("Expr="+expr+" Expected="+expected+" ErrorCode="+code+" Engine="+engine);
         if (debug) System.out.println(data);
 
         Frame bindingFrame = null;
@@ -48,6 +73,7 @@ public class JsonataTest {
         }
 
         Jsonata jsonata = jsonata(expr);
+        jsonata.setEngine(engine);
         if (bindingFrame!=null)
             bindingFrame.setRuntimeBounds(debug ? 500000L : 1000L, 303);
         Object result = jsonata.evaluate(data, bindingFrame);
@@ -67,7 +93,7 @@ public class JsonataTest {
         if (debug && success) System.out.println("--Result = "+result);
 
         if (!success) {
-            System.out.println("--Expr="+expr+" Expected="+expected+" ErrorCode="+code);
+            System.out.println("--Expr="+expr+" Expected="+expected+" ErrorCode="+code+" Engine="+engine);
             System.out.println("--Data="+data);
             System.out.println("--Result = "+result+" Class="+(result!=null ? result.getClass():null));
             System.out.println("--Expect = "+expected+" ExpectedError="+code);
@@ -77,7 +103,7 @@ public class JsonataTest {
         //assertEquals("Must be equal", expected, ""+result);
         } catch (Throwable t) {
             if (code==null) {
-            System.out.println("--Expr="+expr+" Expected="+expected+" ErrorCode="+code);
+            System.out.println("--Expr="+expr+" Expected="+expected+" ErrorCode="+code+" Engine="+engine);
             System.out.println("--Data="+data);
 
                 if (t instanceof JException) {
@@ -119,8 +145,8 @@ public class JsonataTest {
 
     @Test
     public void testSimple() {
-        testExpr("42", null, null, 42,null);
-        testExpr("(3*(4-2)+1.01e2)/-2", null, null, -53.5,null);
+        assertTrue(testExpr("42", null, null, 42,null));
+        assertTrue(testExpr("(3*(4-2)+1.01e2)/-2", null, null, -53.5,null));
     }
 
     @Test
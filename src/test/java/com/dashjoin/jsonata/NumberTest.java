@@ -69,4 +69,27 @@ public class NumberTest {
     var res = expr1.evaluate(null);
     assertEquals(1, res);
   }
+
+  /**
+   * integral arithmetic is exact within the range of double and rounded like double beyond
+   */
+  @Test
+  public void testLong() {
+    assertEquals(4611686014132420608L, jsonata("$ * $").evaluate(2147483647));
+    assertEquals(2147483648L, jsonata("$ + 1").evaluate(2147483647));
+    assertEquals(9007199254740992L, jsonata("$sum($)").evaluate(java.util.List.of(4503599627370496L, 4503599627370496L, 1)));
+    assertEquals(-2, jsonata("$ / -3").evaluate(6));
+    assertEquals(-1, jsonata("$ % 4").evaluate(-9));
+  }
+
+  /**
+   * the JSON parser reads integers with the same precision as doubles
+   */
+  @Test
+  public void testJsonInteger() {
+    assertEquals(-12, Json.parseJson("-12"));
+    assertEquals(123456789012345L, Json.parseJson("123456789012345"));
+    assertEquals(9007199254740992L, Json.parseJson("9007199254740993"));
+    assertEquals(0, Json.parseJson("-0"));
+  }
 }
@@ -15,4 +15,83 @@ public class ParserTest {
     Assertions.assertThrows(JException.class, ()->jsonata("$substring('\\u"));
     Assertions.assertEquals("", jsonata("$substring('\\uDDDD', 1)").evaluate(null));
   }
+
+  @Test
+  public void testConstantFolding() {
+    Assertions.assertEquals("number", jsonata("1 + 2 * 3").ast.type);
+    Assertions.assertEquals(7, jsonata("1 + 2 * 3").evaluate(null));
+    Assertions.assertEquals("ab1", jsonata("'a' & 'b' & 1").ast.value);
+    Assertions.assertEquals("x", jsonata("true ? 'x' : a.b").ast.value);
+    Assertions.assertEquals("path", jsonata("false ? 'x' : a.b").ast.type);
+    Assertions.assertEquals("binary", jsonata("1 + 2", false).ast.type);
+
+    // errors are raised on evaluation
+    Assertions.assertEquals("binary", jsonata("'x' + 1").ast.type);
+    Assertions.assertThrows(JException.class, () -> jsonata("'x' + 1").evaluate(null));
+  }
+
+  @Test
+  public void testOperators() {
+    var ast = jsonata("a * 2 <= b and -c != d", false).ast;
+    Assertions.assertEquals(Parser.Operator.AND, ast.operator);
+    Assertions.assertEquals(Parser.Operator.LESS_EQUAL, ast.lhs.operator);
+    Assertions.assertEquals(Parser.Operator.MULTIPLY, ast.lhs.lhs.operator);
+    Assertions.assertEquals(Parser.Operator.NOT_EQUAL, ast.rhs.operator);
+    Assertions.assertEquals(Parser.Operator.NEGATE, ast.rhs.lhs.operator);
+    Assertions.assertEquals(Parser.Operator.ARRAY, jsonata("[1, [2]]").ast.operator);
+    Assertions.assertEquals(Parser.Operator.OBJECT, jsonata("{'a': b}").ast.operator);
+  }
+
+  @Test
+  public void testConstantStructures() {
+    var expr = jsonata("[1, [2, 3], {'a': [4]}]");
+    Assertions.assertNotNull(expr.ast.literal);
+    var res = (java.util.List) expr.evaluate(null);
+    Assertions.assertEquals("[1, [2, 3], {a=[4]}]", "" + res);
+    // the pre-built value is not shared with the caller
+    res.clear();
+    Assertions.assertEquals("[1, [2, 3], {a=[4]}]", "" + expr.evaluate(null));
+    Assertions.assertEquals("[1, 2]", "" + jsonata("[[1, 2], 3][0]").evaluate(null));
+  }
+
+  @Test
+  public void testDeadCode() {
+    var expr = jsonata("($x := 1; $y := 2; 'unused'; $x)");
+    Assertions.assertEquals(2, expr.ast.expressions.size());
+    Assertions.assertEquals(1, expr.evaluate(null));
+    // bindings with effects and bindings read by $eval are kept
+    Assertions.assertThrows(JException.class, () -> jsonata("($y := $error('e'); 1)").evaluate(null));
+    Assertions.assertEquals(2, jsonata("($y := 2; $eval('$y + 1'))").ast.expressions.size());
+  }
+
+  @Test
+  public void testCommonPaths() {
+    String mapping = "{'city': order.customer.address.city, 'zip': order.customer.address.zip, 'name': order.customer.name}";
+    var expr = jsonata(mapping);
+    var city = expr.ast.lhsObject.get(0)[1];
+    var zip = expr.ast.lhsObject.get(1)[1];
+    var name = expr.ast.lhsObject.get(2)[1];
+    Assertions.assertSame(city.cse, zip.cse);
+    Assertions.assertEquals(3, city.cseSteps);
+    // a.b is shared with the other paths, but they continue with a longer prefix
+    Assertions.assertNull(name.cse);
+
+    var data = com.dashjoin.jsonata.json.Json.parseJson("{'order': {'customer': {'name': 'n', 'address': [{'city': 'c', 'zip': 1}, {'city': 'd'}]}}}".replace('\'', '"'));
+    Assertions.assertEquals("{city=[c, d], zip=1, name=n}", "" + expr.evaluate(data));
+    Assertions.assertEquals("" + jsonata(mapping, false).evaluate(data), "" + expr.evaluate(data));
+    Assertions.assertEquals("{city=x, zip=null, name=null}", "" + jsonata("{'city': order.customer.address.city, 'zip': order.customer.address.zip ? order.customer.address.zip : 'null', 'name': order.customer.name ? 1 : 'null'}")
+        .evaluate(com.dashjoin.jsonata.json.Json.parseJson("{\"order\": {\"customer\": {\"address\": {\"city\": \"x\"}}}}")));
+  }
+
+  @Test
+  public void testCommonPathContexts() {
+    // the lambda body is evaluated against a different context
+    var expr = jsonata("[a.b.c, $map([1], function($v) { a.b.d })]");
+    Assertions.assertNull(expr.ast.expressions.get(0).cse);
+    // predicates are evaluated per item
+    expr = jsonata("a.b.c[x.y.z = x.y.w]");
+    Assertions.assertNull(expr.ast.cse);
+    var data = com.dashjoin.jsonata.json.Json.parseJson("{\"a\": {\"b\": {\"c\": [{\"x\": {\"y\": {\"z\": 1, \"w\": 1}}}, {\"x\": {\"y\": {\"z\": 1, \"w\": 2}}}]}}}");
+    Assertions.assertEquals("{x={y={z=1, w=1}}}", "" + expr.evaluate(data));
+  }
 }
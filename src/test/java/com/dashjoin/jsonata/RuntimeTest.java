@@ -1,6 +1,9 @@
 package com.dashjoin.jsonata;
 
 import static com.dashjoin.jsonata.Jsonata.jsonata;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
 import com.dashjoin.jsonata.Jsonata.Frame;
@@ -12,8 +15,9 @@ public class RuntimeTest {
   public void testRuntimeBounds() {
     var expr = jsonata("("
         + "$a := function(){42};"
-        + "$b := function(){$a()};"
-        + "$c := function(){$b()};"
+        + "$b := function(){$a() + 1};"
+        + "$c := function(){$b() + 1};"
+        + "$c()"
         + ")");
     var frame = expr.createFrame();
     
@@ -21,7 +25,106 @@ public class RuntimeTest {
     Assertions.assertThrows(JException.class, () -> expr.evaluate(null, frame));
     
     frame.setRuntimeBounds(1000, 3);
-    expr.evaluate(null, frame);
+    Assertions.assertEquals(44, expr.evaluate(null, frame));
+
+    // the depth is tracked on all engines
+    for (var engine : new Jsonata.Engine[] {Jsonata.Engine.COMPILED, Jsonata.Engine.BYTECODE}) {
+      expr.setEngine(engine);
+      Assertions.assertEquals(44, expr.evaluate(null, frame));
+      frame.setRuntimeBounds(1000, 2);
+      Assertions.assertThrows(JException.class, () -> expr.evaluate(null, frame));
+      frame.setRuntimeBounds(1000, 3);
+    }
+  }
+
+  @Test
+  public void testTimeout() {
+    // tail recursion does not increase the depth
+    var expr = jsonata("($f := function($n){ $f($n + 1) }; $f(0))");
+    expr.setEngine(Jsonata.Engine.INTERPRETER);
+    for (boolean cpuTime : new boolean[] {false, true}) {
+      var frame = expr.createFrame();
+      frame.setRuntimeBounds(100, 10, cpuTime);
+      var ex = Assertions.assertThrows(JException.class, () -> expr.evaluate(null, frame));
+      Assertions.assertTrue(ex.getMessage().contains("timeout"), ex.getMessage());
+    }
+  }
+
+  @Test
+  public void testStackBounds() throws Exception {
+    // deep (non tail) recursion on a thread with a small stack
+    var expr = jsonata("($f := function($n){ $n = 0 ? 0 : 1 + $f($n - 1) }; $f(20000))");
+    Object[] res = new Object[2];
+    Thread thread = new Thread(null, () -> {
+      for (var engine : new Jsonata.Engine[] {Jsonata.Engine.INTERPRETER, Jsonata.Engine.COMPILED}) {
+        expr.setEngine(engine);
+        var frame = expr.createFrame();
+        frame.setStackBounds(100000, 16, 4L << 20);
+        res[0] = expr.evaluate(null, frame);
+        frame.setStackBounds(1000, 16, 4L << 20);
+        try {
+          expr.evaluate(null, frame);
+        } catch (JException e) {
+          res[1] = e.getMessage();
+        }
+      }
+    }, "small", 256 << 10);
+    thread.start();
+    thread.join();
+    Assertions.assertEquals(20000, res[0]);
+    Assertions.assertTrue(("" + res[1]).contains("Stack overflow"), "" + res[1]);
+    // the configurations share the workers of a segment size
+    Assertions.assertSame(StackSegments.executor(4L << 20), StackSegments.executor(4L << 20));
+  }
+
+  @Test
+  public void testStackBoundsDeepInput() throws Exception {
+    // descendants, input validation and null conversion of deeply nested data
+    Object data = 1;
+    for (int i = 0; i < 5000; i++)
+      data = Map.of("a", List.of(data));
+    Object input = data;
+    Object[] res = new Object[2];
+    Thread thread = new Thread(null, () -> {
+      var frame = jsonata("$").createFrame();
+      frame.setStackBounds(1000, 64, 4L << 20);
+      res[0] = jsonata("$count(**)").evaluate(input, frame);
+      res[1] = jsonata("$").evaluate(input, frame);
+    }, "small", 256 << 10);
+    thread.start();
+    thread.join();
+    Assertions.assertEquals(5001, res[0]);
+    Assertions.assertEquals(input, res[1]);
+  }
+
+  @Test
+  public void testStackSegmentInterrupted() throws Exception {
+    // the recursion continues on a worker that loops until it is interrupted
+    var expr = jsonata("($f := function($n){ $n = 0 ? $count($map([1..10000000], function($v) { $tick() })) : 1 + $f($n - 1) }; $f(100))");
+    AtomicLong ticks = new AtomicLong();
+    expr.registerFunction("tick", () -> ticks.incrementAndGet());
+    var frame = expr.createFrame();
+    frame.setStackBounds(1000, 16, 4L << 20);
+    Object[] res = new Object[1];
+    Thread thread = new Thread(() -> {
+      try {
+        expr.evaluate(null, frame);
+      } catch (JException e) {
+        res[0] = e.getMessage();
+      }
+    });
+    thread.start();
+    while (ticks.get() == 0 && thread.isAlive())
+      Thread.sleep(1);
+    thread.interrupt();
+    thread.join();
+    Assertions.assertTrue(("" + res[0]).contains("interrupted"), "" + res[0]);
+
+    // the worker stops as well
+    Thread.sleep(100);
+    long stopped = ticks.get();
+    Thread.sleep(100);
+    Assertions.assertEquals(stopped, ticks.get());
   }
 
   boolean entered = false;
@@ -46,4 +149,28 @@ public class RuntimeTest {
     expr.evaluate(null, frame);
     Assertions.assertTrue(exited && entered);
   }
+
+  @Test
+  public void testCallbacksPerEvaluation() {
+    var expr = jsonata("[1, 2, 3].($ + 1)");
+    var frame = expr.createFrame();
+    int[] count = {0};
+    frame.setEvaluateEntryCallback((e, input, env) -> {
+      // evaluations started by a callback do not see its callbacks
+      jsonata("1 + 1").evaluate(null);
+      count[0]++;
+    });
+    expr.evaluate(null, frame);
+    int calls = count[0];
+    Assertions.assertTrue(calls > 3);
+
+    // not installed
+    expr.evaluate(null);
+    Assertions.assertEquals(calls, count[0]);
+
+    // installed on the expression
+    expr.assign("__evaluate_entry", (Jsonata.EntryCallback) (e, input, env) -> count[0]++);
+    expr.evaluate(null);
+    Assertions.assertEquals(2 * calls, count[0]);
+  }
 }
@@ -1,6 +1,8 @@
 package com.dashjoin.jsonata;
 
 import static com.dashjoin.jsonata.Jsonata.jsonata;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executors;
@@ -80,4 +82,33 @@ public class ThreadTest {
     Assertions.assertEquals(count, out.get());
     Assertions.assertEquals(2*count, sum);
   }
+
+  @Test
+  public void testSharedExpression() throws Exception {
+    Jsonata expr = jsonata("($f := function($n, $acc) { $n = 0 ? $acc : $f($n - 1, $acc + a) }; "
+        + "$map([1..3], function($v) { $f($v, 0) }))");
+    var executor = Executors.newFixedThreadPool(4);
+    List<Future<Object>> results = new ArrayList<>();
+    for (int i = 0; i < 100; i++) {
+      int a = i;
+      results.add(executor.submit(() -> expr.evaluate(Map.of("a", a))));
+    }
+    for (int i = 0; i < 100; i++)
+      Assertions.assertEquals(List.of(i, 2 * i, 3 * i), results.get(i).get());
+    executor.shutdown();
+
+    // no state is kept per thread
+    Assertions.assertNull(EvaluationContext.current.get());
+  }
+
+  @Test
+  public void testApplyReturnedLambda() throws Throwable {
+    Object f = jsonata("function($x) { $x + 1 }").evaluate(null);
+    Assertions.assertEquals(42, Functions.funcApply(f, List.of(41)));
+
+    // higher order functions apply the lambda in the evaluation that created it
+    Object g = jsonata("function($a) { $map($a, function($v) { $v + $count($a) }) }").evaluate(null);
+    Assertions.assertEquals(List.of(3, 4), Functions.funcApply(g, List.of(List.of(1, 2))));
+    Assertions.assertNull(EvaluationContext.current.get());
+  }
 }
@@ -1,8 +1,11 @@
 package com.dashjoin.jsonata;
 
+import java.util.List;
 import java.util.Map;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
+import com.dashjoin.jsonata.Jsonata.Engine;
+import com.dashjoin.jsonata.Parser.Symbol;
 import com.dashjoin.jsonata.json.Json;
 
 public class VariableTest {
@@ -29,4 +32,142 @@ public class VariableTest {
     var e = Jsonata.jsonata("model@$");
     Assertions.assertEquals(123, e.evaluate(Map.of("model", 123)));
   }
+
+  @Test
+  public void testLexicalScopes() {
+    Assertions.assertEquals(15, Jsonata.jsonata("($x := 1; $f := function($y) { $x + $y }; $x := 10; $f(5))").evaluate(null));
+    Assertions.assertEquals(3, Jsonata.jsonata("($x := 1; ($x := 2; $x) + $x)").evaluate(null));
+    Assertions.assertEquals(6, Jsonata.jsonata("($g := function($a) { function($b) { function($c) { $a + $b + $c } } }; $g(1)(2)(3))").evaluate(null));
+    Assertions.assertEquals(321, Jsonata.jsonata("($add := function($a, $b, $c) { $a + $b * 10 + $c * 100 }; $p := $add(1, ?, 3); $p(2))").evaluate(null));
+  }
+
+  @Test
+  public void testUnboundSlot() {
+    // referenced before it is bound: resolved in the enclosing frames
+    Assertions.assertEquals("[3, 42]", "" + Jsonata.jsonata("($s := $sum([1,2]); $sum := function($x) { 42 }; [$s, $sum([1,2])])").evaluate(null));
+    Assertions.assertEquals("[1, 2, 1]", "" + Jsonata.jsonata("($x := 1; $f := function($x) { $x }; [$f(), $f(2), $x])").evaluate(null));
+  }
+
+  @Test
+  public void testTupleVariables() {
+    Assertions.assertEquals(5, Jsonata.jsonata("($x := 5; [1,2,3]@$x.($x))").evaluate(null));
+    Assertions.assertEquals("[0, 1]", "" + Jsonata.jsonata("($x := 5; {'a':[{'b':1},{'b':2}]}.a#$x.b.($x))").evaluate(null));
+  }
+
+  @Test
+  public void testEvalBindings() {
+    Assertions.assertEquals(8, Jsonata.jsonata("($x := 7; $eval('$x + 1'))").evaluate(null));
+    Assertions.assertEquals(3, Jsonata.jsonata("($eval('$z := 3'); $z)").evaluate(null));
+  }
+
+  @Test
+  public void testResolution() {
+    var ast = Jsonata.jsonata("($x := 1; [1].($y := $x))").ast;
+    Assertions.assertArrayEquals(new String[] {"x"}, ast.scope);
+    var inner = ast.expressions.get(1).steps.get(1);
+    Assertions.assertEquals("block", inner.type);
+    Assertions.assertArrayEquals(new String[] {"y"}, inner.scope);
+    Assertions.assertEquals(1, inner.expressions.get(0).rhs.frameDepth);
+    Assertions.assertEquals(0, inner.expressions.get(0).rhs.frameSlot);
+
+    // no variables bound: no frame
+    ast = Jsonata.jsonata("($count([1]))").ast;
+    Assertions.assertTrue(ast.frameless);
+  }
+
+  @Test
+  public void testGlobalVariables() {
+    // built-ins and bindings are looked up from the root frame, binds and parameters use their slots
+    var e = Jsonata.jsonata("($f := function($v) { $sum([$v, $x]) * 1 }; $f(1))");
+    var lambda = e.ast.expressions.get(0).rhs;
+    Assertions.assertTrue(lambda.body.lhs.procedure.global);
+    Assertions.assertTrue(lambda.body.lhs.arguments.get(0).expressions.get(1).global);
+    Assertions.assertEquals(0, lambda.arguments.get(0).frameSlot);
+    Assertions.assertEquals(0, e.ast.expressions.get(0).lhs.frameDepth);
+    var bindings = e.createFrame();
+    bindings.bind("x", 2);
+    for (Engine engine : Engine.values()) {
+      e.setEngine(engine);
+      Assertions.assertEquals(3, e.evaluate(null, bindings), "" + engine);
+    }
+
+    // expressions passed to $eval read the frames of the caller (see testEvalBindings)
+    Assertions.assertFalse(new Jsonata("$x", true, null).ast.global);
+
+    // the index of a filtered step is bound in the tuple
+    var input = Json.parseJson("{\"a\": [{\"b\": 1}, {\"b\": 2}]}");
+    Assertions.assertEquals("[0, 1]", "" + Jsonata.jsonata("($i := 5; a[b > 0]#$i.($i))").evaluate(input));
+  }
+
+  @Test
+  public void testTailCalls() {
+    // self tail calls reuse the frame of the lambda
+    var e = Jsonata.jsonata("($loop := function($n, $acc) { $n = 0 ? $acc : $loop($n - 1, $acc + 1) }; $loop(100000, 0))");
+    Assertions.assertTrue(e.ast.expressions.get(0).rhs.reuseFrame);
+    Assertions.assertEquals(100000, e.evaluate(null));
+    Assertions.assertEquals(true, Jsonata.jsonata("($even := function($n) { $n = 0 ? true : $odd($n - 1) }; "
+        + "$odd := function($n) { $n = 0 ? false : $even($n - 1) }; $even(100000))").evaluate(null));
+
+    // closures capture the frame: not reused
+    e = Jsonata.jsonata("($f := function($n, $fs) { $n = 0 ? $fs.$() : $f($n - 1, [$fs, function() { $n }]) }; $f(3, []))");
+    Assertions.assertFalse(e.ast.expressions.get(0).rhs.reuseFrame);
+    Assertions.assertEquals("[3, 2, 1]", "" + e.evaluate(null));
+  }
+
+  @Test
+  public void testBindingsAreLayered() {
+    var e = Jsonata.jsonata("($y := $x + $; $y)");
+    var bindings = e.createFrame();
+    bindings.bind("x", 1);
+    Assertions.assertEquals(3, e.evaluate(2, bindings));
+    Assertions.assertEquals(11, e.evaluate(10, bindings));
+    // neither the bindings of the caller nor the environment of the expression are modified
+    Assertions.assertEquals(Map.of("x", 1), bindings.bindings);
+    Assertions.assertNull(e.environment.lookup("$"));
+    Assertions.assertNull(e.environment.lookup("y"));
+
+    // bindings made at the top level stay in the root frame of the evaluation
+    e = Jsonata.jsonata("$x := $");
+    Assertions.assertEquals(5, e.evaluate(5, bindings));
+    Assertions.assertEquals(1, bindings.lookup("x"));
+    Assertions.assertEquals(6, e.evaluate(6));
+    Assertions.assertNull(e.environment.lookup("x"));
+
+    // later changes of the bindings are seen by the next evaluation
+    bindings.bind("x", 2);
+    Assertions.assertEquals(4, Jsonata.jsonata("$x * $").evaluate(2, bindings));
+  }
+
+  @Test
+  public void testPreparedExpression() {
+    var input = Map.of("items", List.of(Map.of("name", "a", "price", 5), Map.of("name", "b", "price", 20)));
+    for (Engine engine : Engine.values()) {
+      var e = Jsonata.prepare("items[price > $min].($prefix & name)", "min", "prefix");
+      e.getJsonata().setEngine(engine);
+      Assertions.assertEquals("x-b", e.evaluate(input, 10, "x-"), "" + engine);
+      Assertions.assertEquals("[y-a, y-b]", "" + e.evaluate(input, 0, "y-"), "" + engine);
+      Assertions.assertEquals("b", e.evaluate(input, 10, null), "" + engine);
+    }
+
+    // resolved to a slot of the root frame
+    var e = Jsonata.prepare("($f := function($v) { $v * $factor }; $f(2))", "factor");
+    Assertions.assertEquals(0, e.getJsonata().ast.expressions.get(1).procedure.frameDepth);
+    Assertions.assertEquals(2, ((Symbol) e.getJsonata().ast.expressions.get(0).rhs.body.rhs).frameDepth);
+    Assertions.assertEquals(6, e.evaluate(null, 3));
+    Assertions.assertEquals(List.of("factor"), e.getParameters());
+
+    // shadowed by local and tuple bindings, read by $eval
+    Assertions.assertEquals(2, Jsonata.prepare("($p := 2; $p)", "p").evaluate(null, 1));
+    Assertions.assertEquals("b", Jsonata.prepare("items#$p[$p > 0].name", "p").evaluate(input, 9));
+    Assertions.assertEquals(10, Jsonata.prepare("$eval('$p * 10')", "p").evaluate(null, 1));
+    Assertions.assertEquals(5, Jsonata.prepare("$$ + $p", "p").evaluate(4, 1));
+
+    // the underlying expression looks the parameters up by name
+    var bindings = e.getJsonata().createFrame();
+    bindings.bind("factor", 4);
+    Assertions.assertEquals(8, e.getJsonata().evaluate(null, bindings));
+
+    Assertions.assertThrows(IllegalArgumentException.class, () -> Jsonata.prepare("$p", "p").evaluate(null));
+    Assertions.assertThrows(IllegalArgumentException.class, () -> Jsonata.prepare("$p", "p", "p"));
+  }
 }